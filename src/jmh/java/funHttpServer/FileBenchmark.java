@@ -0,0 +1,50 @@
+package funHttpServer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * readFileInBytes for small to large files. They are read from the page
+ * cache, so this measures the copy into the heap, not the disk.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class FileBenchmark {
+
+  @Param({"1024", "65536", "1048576"})
+  int size;
+
+  private File file;
+
+  @Setup(Level.Trial)
+  public void createFile() throws IOException {
+    file = File.createTempFile("fun-bench", ".bin");
+    byte[] data = new byte[size];
+    ThreadLocalRandom.current().nextBytes(data);
+    Files.write(file.toPath(), data);
+  }
+
+  @TearDown(Level.Trial)
+  public void deleteFile() {
+    file.delete();
+  }
+
+  @Benchmark
+  public byte[] readFileInBytes() throws IOException {
+    return WebServer.readFileInBytes(file);
+  }
+}
@@ -0,0 +1,20 @@
+package funHttpServer;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+
+/**
+ * buildFileList for the www directory. Run from the project directory.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class FileListBenchmark {
+
+  @Benchmark
+  public String buildFileList() {
+    return WebServer.buildFileList();
+  }
+}
@@ -0,0 +1,100 @@
+package funHttpServer;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Compares bytes allocated and time per request for the old line based
+ * request reading (a new BufferedReader per request, one String per header
+ * line) and the reusable RequestParser. Run with: gradle ParserBenchmark
+ */
+class ParserBenchmark {
+
+  /** a typical browser request */
+  private static final byte[] REQUEST = ("GET /multiply?num1=3&num2=4 HTTP/1.1\r\n"
+      + "Host: localhost:9000\r\n"
+      + "User-Agent: Mozilla/5.0 (X11; Linux x86_64; rv:109.0) Gecko/20100101 Firefox/115.0\r\n"
+      + "Accept: text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8\r\n"
+      + "Accept-Language: en-US,en;q=0.5\r\n"
+      + "Accept-Encoding: gzip, deflate, br\r\n"
+      + "Connection: keep-alive\r\n"
+      + "Upgrade-Insecure-Requests: 1\r\n"
+      + "\r\n").getBytes(StandardCharsets.US_ASCII);
+
+  private static final int WARMUP = 200_000;
+  private static final int ITERATIONS = 1_000_000;
+
+  /** keeps the JIT from dropping the work */
+  private static int sink;
+
+  public static void main(String[] args) throws IOException {
+    com.sun.management.ThreadMXBean threads =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    ByteArrayInputStream in = new ByteArrayInputStream(REQUEST);
+    RequestParser parser = new RequestParser(RequestParser.DEFAULT_MAX_HEAD_BYTES,
+        RequestParser.DEFAULT_MAX_BODY_BYTES);
+
+    for (int round = 0; round < 2; round++) {
+      boolean report = round == 1;
+      int count = report ? ITERATIONS : WARMUP;
+
+      long allocated = threads.getCurrentThreadAllocatedBytes();
+      long start = System.nanoTime();
+      for (int i = 0; i < count; i++) {
+        in.reset();
+        sink += lineBased(in).length();
+      }
+      long lineNanos = System.nanoTime() - start;
+      long lineBytes = threads.getCurrentThreadAllocatedBytes() - allocated;
+
+      allocated = threads.getCurrentThreadAllocatedBytes();
+      start = System.nanoTime();
+      for (int i = 0; i < count; i++) {
+        in.reset();
+        HttpRequest req = parser.read(in);
+        sink += req.target.length();
+        parser.next();
+      }
+      long parserNanos = System.nanoTime() - start;
+      long parserBytes = threads.getCurrentThreadAllocatedBytes() - allocated;
+
+      if (report) {
+        System.out.printf("%-22s %10s %12s%n", "", "ns/request", "bytes/request");
+        System.out.printf("%-22s %10d %12d%n", "BufferedReader lines",
+            lineNanos / count, lineBytes / count);
+        System.out.printf("%-22s %10d %12d%n", "RequestParser",
+            parserNanos / count, parserBytes / count);
+      }
+    }
+    if (sink == 42) {
+      System.out.println();
+    }
+  }
+
+  /**
+   * The request reading createResponse used before RequestParser
+   * @return the request target
+   */
+  private static String lineBased(InputStream inStream) throws IOException {
+    BufferedReader in = new BufferedReader(new InputStreamReader(inStream, "UTF-8"));
+    String request = null;
+    boolean done = false;
+    while (!done) {
+      String line = in.readLine();
+      if (line == null || line.equals("")) {
+        done = true;
+      } else if (line.startsWith("GET")) {
+        int firstSpace = line.indexOf(" ");
+        int secondSpace = line.indexOf(" ", firstSpace + 1);
+        request = line.substring(firstSpace + 2, secondSpace);
+      }
+    }
+    return request;
+  }
+}
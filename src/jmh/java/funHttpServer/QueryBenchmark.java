@@ -0,0 +1,29 @@
+package funHttpServer;
+
+import java.io.UnsupportedEncodingException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * splitQuery on the queries the routes get
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class QueryBenchmark {
+
+  @Param({"num1=3&num2=4", "howMany=20&radius=20", "query=users/amehlhase316/repos"})
+  String query;
+
+  @Benchmark
+  public Map<String, String> splitQuery() throws UnsupportedEncodingException {
+    return WebServer.splitQuery(query);
+  }
+}
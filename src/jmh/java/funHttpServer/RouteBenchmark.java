@@ -0,0 +1,52 @@
+package funHttpServer;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * createResponse end to end for every route: parse a request from an
+ * in-memory stream, route it and write the whole response into a byte
+ * array. /github is left out, it would measure the network. Run from the
+ * project directory so www/ is found.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class RouteBenchmark {
+
+  @Param({"", "json", "random", "file/README.md", "multiply?num1=3&num2=4", "kiss",
+      "circle?howMany=5&radius=10", "triangle?howMany=5&length=10", "metrics", "nope"})
+  String target;
+
+  @Param({"identity", "gzip"})
+  String encoding;
+
+  private WebServer server;
+  private byte[] request;
+
+  @Setup
+  public void setUp() {
+    Properties props = new Properties();
+    props.setProperty("fun.accessLog", "off");
+    server = WebServer.responder(new ServerConfig(props, 0));
+    request = ("GET /" + target + " HTTP/1.1\r\n"
+        + "Host: localhost:9000\r\n"
+        + "Accept-Encoding: " + encoding + "\r\n"
+        + "\r\n").getBytes(StandardCharsets.US_ASCII);
+  }
+
+  @Benchmark
+  public byte[] createResponse() {
+    return server.createResponse(new ByteArrayInputStream(request));
+  }
+}
@@ -0,0 +1,32 @@
+package funHttpServer;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * drawCircle and drawTriangle for a few sizes
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ShapeBenchmark {
+
+  @Param({"5", "50", "500"})
+  int size;
+
+  @Benchmark
+  public String drawCircle() {
+    return WebServer.drawCircle(size);
+  }
+
+  @Benchmark
+  public String drawTriangle() {
+    return WebServer.drawTriangle(size);
+  }
+}
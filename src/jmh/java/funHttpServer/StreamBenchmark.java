@@ -0,0 +1,64 @@
+package funHttpServer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * A ResponseWriter streaming a body of small writes as chunks, into a sink
+ * that only counts the bytes. Measures the buffering and chunk framing, not
+ * the socket.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class StreamBenchmark {
+
+  private static final byte[] LINE = "<li>a line of a streamed body</li>\n"
+      .getBytes(StandardCharsets.US_ASCII);
+
+  @Param({"10", "1000", "100000"})
+  int lines;
+
+  @Param({"true", "false"})
+  boolean chunked;
+
+  private long sent;
+
+  private final ResponseWriter.Sink sink = new ResponseWriter.Sink() {
+    @Override
+    public void send(ByteBuffer... parts) {
+      for (ByteBuffer part : parts) {
+        sent += part.remaining();
+        part.position(part.limit());
+      }
+    }
+
+    @Override
+    public void close() {
+      // nothing to close
+    }
+  };
+
+  @Benchmark
+  public long write() throws IOException {
+    ResponseWriter out = new ResponseWriter(sink, chunked);
+    try {
+      for (int i = 0; i < lines; i++) {
+        out.write(LINE);
+      }
+      out.finish();
+    } finally {
+      out.release();
+    }
+    return out.bytes();
+  }
+}
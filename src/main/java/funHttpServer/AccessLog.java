@@ -0,0 +1,258 @@
+package funHttpServer;
+
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * One line per answered request, e.g.
+ * time=2026-10-18T09:12:01.532Z method=GET path=/json status=200 bytes=55 ms=0.231
+ *
+ * Request threads never touch the output. They copy an entry into a slot
+ * of a fixed ring and go on; a single writer thread formats what is in the
+ * ring and writes it in batches, one write and one flush per batch instead
+ * of a synchronized println per line.
+ *
+ * The ring is D. Vyukov's bounded multi-producer queue: every slot has a
+ * sequence number that says whether it is free for the current lap or holds
+ * an entry. A request thread claims a slot with one CAS on the tail, fills
+ * it and publishes it by advancing its sequence; no locks are taken. When
+ * the ring is full the entry is dropped and counted (the count is written to
+ * the log), or with fun.accessLogFull=block the request thread waits for the
+ * writer to make room.
+ */
+final class AccessLog {
+
+  /** entries written per batch at most, so a busy ring is not one huge write */
+  private static final int BATCH = 1024;
+
+  /** how long the idle writer sleeps before looking again, if nobody wakes it */
+  private static final long IDLE_NANOS = 100_000_000L;
+
+  private static final DateTimeFormatter TIME =
+      DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'").withZone(ZoneOffset.UTC);
+
+  /** one entry, reused every lap of the ring */
+  private static final class Slot {
+    long timeMillis;
+    String method;
+    String target;
+    String status;
+    long bytes;
+    long nanos;
+  }
+
+  private final Slot[] slots;
+  private final AtomicLongArray sequences;
+  private final int mask;
+  private final AtomicLong tail = new AtomicLong();
+  private final boolean block;
+
+  /** where lines go, null if the log is off */
+  private final OutputStream out;
+  private final Thread writer;
+
+  /** next slot to read, only used by the writer */
+  private long head;
+
+  /** entries dropped because the ring was full, since the writer last reported */
+  private final AtomicLong dropped = new AtomicLong();
+  private volatile boolean sleeping;
+  private volatile boolean closed;
+
+  /**
+   * Opens the log configured with fun.accessLog and starts its writer
+   * @param config access log destination, buffer size and full policy
+   */
+  AccessLog(ServerConfig config) {
+    int capacity = Integer.highestOneBit(config.accessLogBuffer - 1) << 1;
+    slots = new Slot[capacity];
+    sequences = new AtomicLongArray(capacity);
+    for (int i = 0; i < capacity; i++) {
+      slots[i] = new Slot();
+      sequences.set(i, i);
+    }
+    mask = capacity - 1;
+    block = config.accessLogBlock;
+    out = open(config.accessLog);
+    if (out == null) {
+      writer = null;
+      return;
+    }
+    writer = new Thread(this::run, "fun-access-log");
+    writer.setDaemon(true);
+    writer.start();
+    Runtime.getRuntime().addShutdownHook(new Thread(this::close, "fun-access-log-close"));
+  }
+
+  private static OutputStream open(String destination) {
+    if (destination.equalsIgnoreCase("off")) {
+      return null;
+    }
+    if (!destination.equalsIgnoreCase("stdout")) {
+      try {
+        return new FileOutputStream(destination, true);
+      } catch (IOException e) {
+        System.out.println("Cannot open access log " + destination + ", using stdout: " + e);
+      }
+    }
+    // the file descriptor itself, System.out would add its own lock and buffer
+    return new FileOutputStream(FileDescriptor.out);
+  }
+
+  /**
+   * Queues one line for a response whose last byte has been written
+   * @param response the response, with the method and target of its request
+   * @param nanos time from the first request byte to the last response byte
+   */
+  void log(HttpResponse response, long nanos) {
+    if (out == null) {
+      return;
+    }
+    long pos;
+    while ((pos = claim()) < 0) {
+      if (!block || closed) {
+        dropped.incrementAndGet();
+        return;
+      }
+      LockSupport.unpark(writer);
+      LockSupport.parkNanos(50_000);
+    }
+    int i = (int) pos & mask;
+    Slot slot = slots[i];
+    slot.timeMillis = System.currentTimeMillis();
+    slot.method = response.method;
+    slot.target = response.target;
+    slot.status = response.status;
+    slot.bytes = response.bytesSent();
+    slot.nanos = nanos;
+    // publishes the slot to the writer. Volatile, like the sleeping flag, so
+    // either the writer sees the entry or we see that it went to sleep
+    sequences.set(i, pos + 1);
+    if (sleeping) {
+      LockSupport.unpark(writer);
+    }
+  }
+
+  /** a free slot for this thread, -1 if the ring is full */
+  private long claim() {
+    long pos = tail.get();
+    while (true) {
+      long sequence = sequences.getAcquire((int) pos & mask);
+      if (sequence == pos) {
+        long witness = tail.compareAndExchange(pos, pos + 1);
+        if (witness == pos) {
+          return pos;
+        }
+        pos = witness;
+      } else if (sequence < pos) {
+        return -1; // the slot still holds the entry from one lap ago
+      } else {
+        pos = tail.get(); // another thread got there first
+      }
+    }
+  }
+
+  /**
+   * Writes what is queued and stops the writer. Entries logged after this
+   * are dropped.
+   */
+  void close() {
+    if (out == null || closed) {
+      return;
+    }
+    closed = true;
+    LockSupport.unpark(writer);
+    try {
+      writer.join(1000);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void run() {
+    StringBuilder batch = new StringBuilder(BATCH * 96);
+    try {
+      while (true) {
+        batch.setLength(0);
+        int n = 0;
+        while (n < BATCH && take(batch)) {
+          n++;
+        }
+        long drops = dropped.getAndSet(0);
+        if (drops > 0) {
+          batch.append("access log buffer full, dropped ").append(drops).append(" entries\n");
+        }
+        if (batch.length() > 0) {
+          out.write(batch.toString().getBytes(StandardCharsets.UTF_8));
+          out.flush();
+          continue;
+        }
+        if (closed) {
+          break;
+        }
+        sleeping = true;
+        if (!ready()) {
+          LockSupport.parkNanos(this, IDLE_NANOS);
+        }
+        sleeping = false;
+      }
+    } catch (IOException e) {
+      closed = true; // so nobody waits for room any more
+      System.out.println("Access log failed, no more entries are written: " + e);
+    } finally {
+      if (out instanceof FileOutputStream) {
+        try {
+          if (((FileOutputStream) out).getFD() != FileDescriptor.out) {
+            out.close();
+          }
+        } catch (IOException e) {
+          // nothing left to do
+        }
+      }
+    }
+  }
+
+  /** whether the next slot holds an entry */
+  private boolean ready() {
+    return sequences.get((int) head & mask) == head + 1;
+  }
+
+  /** formats the next entry into batch, false if there is none */
+  private boolean take(StringBuilder batch) {
+    if (!ready()) {
+      return false;
+    }
+    int i = (int) head & mask;
+    Slot slot = slots[i];
+    batch.append("time=");
+    TIME.formatTo(Instant.ofEpochMilli(slot.timeMillis), batch);
+    batch.append(" method=").append(slot.method != null ? slot.method : "-")
+        .append(" path=").append(slot.target != null ? "/" + slot.target : "-")
+        .append(" status=").append(slot.status, 0, Math.min(3, slot.status.length()))
+        .append(" bytes=").append(slot.bytes)
+        .append(" ms=");
+    long micros = slot.nanos / 1000;
+    batch.append(micros / 1000).append('.');
+    long fraction = micros % 1000;
+    if (fraction < 100) {
+      batch.append(fraction < 10 ? "00" : "0");
+    }
+    batch.append(fraction).append('\n');
+    slot.method = null;
+    slot.target = null;
+    slot.status = null;
+    // hands the slot back for the next lap
+    sequences.setRelease(i, head + slots.length);
+    head++;
+    return true;
+  }
+}
@@ -0,0 +1,119 @@
+package funHttpServer;
+
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Admission control: at most maxInFlight requests are handled at once, up to
+ * maxQueued more wait for a turn (each for at most the queue timeout), and
+ * anything beyond that is turned away at once so the server spends no work
+ * on it. Under overload the admitted requests keep their usual latency and
+ * the rest get a quick 503, instead of every request getting slower until
+ * they all time out.
+ *
+ * A waiting request holds a future. A request that finishes hands its turn
+ * straight to the oldest waiting one by completing that future with true;
+ * the queue timeout completes it with false. Whichever comes first wins.
+ */
+final class Admission {
+
+  private static final CompletableFuture<Boolean> ADMITTED =
+      CompletableFuture.completedFuture(true);
+  private static final CompletableFuture<Boolean> REJECTED =
+      CompletableFuture.completedFuture(false);
+
+  private final int maxInFlight;
+  private final int maxQueued;
+  private final long queueTimeoutMillis;
+
+  private final AtomicInteger inFlight = new AtomicInteger();
+  private final AtomicInteger queued = new AtomicInteger();
+
+  /** waiting requests, oldest first. May hold ones that already timed out */
+  private final Queue<CompletableFuture<Boolean>> waiting = new ConcurrentLinkedQueue<>();
+
+  /**
+   * @param maxInFlight requests handled at once, 0 for no limit
+   * @param maxQueued requests waiting for a turn at once
+   * @param queueTimeoutMillis longest a request waits for a turn
+   */
+  Admission(int maxInFlight, int maxQueued, long queueTimeoutMillis) {
+    this.maxInFlight = maxInFlight;
+    this.maxQueued = maxQueued;
+    this.queueTimeoutMillis = queueTimeoutMillis;
+  }
+
+  /**
+   * Asks for a turn to handle a request
+   * @return completes with true once the request may be handled (already
+   *         complete when there was room), or with false if it has to be
+   *         turned away. After true, call exit() once the handler is done.
+   */
+  CompletableFuture<Boolean> enter() {
+    if (maxInFlight <= 0 || tryTake()) {
+      return ADMITTED;
+    }
+    if (queued.incrementAndGet() > maxQueued) {
+      queued.decrementAndGet();
+      return REJECTED;
+    }
+    CompletableFuture<Boolean> turn = new CompletableFuture<>();
+    turn.whenComplete((admitted, error) -> queued.decrementAndGet());
+    waiting.add(turn);
+    turn.completeOnTimeout(false, queueTimeoutMillis, TimeUnit.MILLISECONDS);
+    // a request may have finished between tryTake and the add, and found
+    // nobody waiting
+    if (tryTake() && !turn.complete(true)) {
+      exit();
+    }
+    return turn;
+  }
+
+  /**
+   * A handler admitted by enter() is done, its turn goes to the next
+   * waiting request
+   */
+  void exit() {
+    if (maxInFlight <= 0) {
+      return;
+    }
+    while (true) {
+      CompletableFuture<Boolean> next;
+      while ((next = waiting.poll()) != null) {
+        if (next.complete(true)) {
+          return; // the turn is handed over, inFlight stays the same
+        }
+      }
+      inFlight.decrementAndGet();
+      // someone may have queued after the poll and missed the free turn
+      if (waiting.isEmpty() || !tryTake()) {
+        return;
+      }
+    }
+  }
+
+  /** requests being handled */
+  int inFlight() {
+    return inFlight.get();
+  }
+
+  /** requests waiting for a turn */
+  int queued() {
+    return queued.get();
+  }
+
+  private boolean tryTake() {
+    int n = inFlight.get();
+    while (n < maxInFlight) {
+      int witness = inFlight.compareAndExchange(n, n + 1);
+      if (witness == n) {
+        return true;
+      }
+      n = witness;
+    }
+    return false;
+  }
+}
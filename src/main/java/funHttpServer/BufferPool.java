@@ -0,0 +1,408 @@
+package funHttpServer;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Direct ByteBuffers for socket and file I/O, handed out again and again
+ * instead of being allocated for every request.
+ *
+ * The kernel reads into a direct buffer and writes from it as it is; a heap
+ * buffer is first copied through a temporary direct buffer by the JDK. But
+ * direct buffers are slow to allocate and only freed after a garbage
+ * collection has found them unreachable, so they are pooled: response
+ * heads, Source and streamed body chunks, HTTP/2 DATA frames and the buffer
+ * files are read through come from here and go back when the response (or
+ * connection) is done with them.
+ *
+ * Buffers come in a few sizes and a request is rounded up to the next one.
+ * Anything larger than the largest size is allocated on its own and not
+ * pooled. Each platform thread keeps a few free buffers of every size for
+ * itself, so the usual acquire and release take no lock. Beyond those,
+ * released buffers go to a free list shared by all threads that holds up to
+ * fun.bufferPoolBytes in all; what does not fit is left to the garbage
+ * collector. The cache of a thread that has ended is moved to the shared
+ * list the next time that list runs dry. Virtual threads have no cache of
+ * their own, there are too many of them and they do not live long.
+ *
+ * With fun.bufferLeaks on, every buffer handed out is tracked together with
+ * the stack it was acquired from. A buffer that is garbage collected
+ * without having been released is reported with that stack, and a buffer
+ * released twice is reported and not pooled again. That costs a stack trace
+ * per acquire, so it is meant for testing.
+ *
+ * Like the direct memory it comes from, the pool is shared by everything in
+ * the process. configure sets its limits, the last WebServer created wins.
+ */
+final class BufferPool {
+
+  /** buffer sizes, in bytes */
+  static final int[] SIZES = {1024, 2048, 4096, 8192, 16 * 1024, 32 * 1024, 64 * 1024};
+
+  /** default limit for the shared free lists, all sizes together */
+  static final int DEFAULT_POOL_BYTES = 32 * 1024 * 1024;
+
+  /** free buffers a thread keeps for itself, per size, in bytes */
+  private static final int LOCAL_BYTES = 64 * 1024;
+
+  /** least time between two looks for caches of ended threads */
+  private static final long SWEEP_INTERVAL_NANOS = 100_000_000L;
+
+  /** one buffer size: its shared free list and its counters */
+  private static final class SizeClass {
+    final int size;
+
+    /** released buffers, guarded by itself */
+    final ArrayDeque<ByteBuffer> free = new ArrayDeque<>();
+    volatile int maxFree;
+
+    final LongAdder acquired = new LongAdder();
+    final LongAdder released = new LongAdder();
+    final LongAdder allocated = new LongAdder();
+    final LongAdder dropped = new LongAdder();
+
+    SizeClass(int size) {
+      this.size = size;
+    }
+  }
+
+  /** the free buffers one thread keeps, only touched by that thread while it runs */
+  private static final class LocalCache {
+    final Thread owner;
+    final ByteBuffer[][] free = new ByteBuffer[SIZES.length][];
+    final int[] count = new int[SIZES.length];
+
+    LocalCache(Thread owner, boolean enabled) {
+      this.owner = owner;
+      for (int i = 0; i < SIZES.length; i++) {
+        free[i] = new ByteBuffer[enabled ? Math.max(1, LOCAL_BYTES / SIZES[i]) : 0];
+      }
+    }
+  }
+
+  /** a buffer that is out, with where it was acquired */
+  private static final class Tracked extends WeakReference<ByteBuffer> {
+    final int key;
+    final Throwable acquiredAt;
+
+    Tracked(ByteBuffer buffer) {
+      super(buffer, COLLECTED);
+      key = System.identityHashCode(buffer);
+      acquiredAt = new Throwable("A " + buffer.capacity()
+          + " byte buffer from the BufferPool was never released, it was acquired here");
+    }
+  }
+
+  private static final SizeClass[] CLASSES = new SizeClass[SIZES.length];
+
+  static {
+    for (int i = 0; i < SIZES.length; i++) {
+      CLASSES[i] = new SizeClass(SIZES[i]);
+    }
+  }
+
+  private static final LongAdder UNPOOLED = new LongAdder();
+  private static final LongAdder LEAKS = new LongAdder();
+
+  /** Thread.isVirtual on Java 21+, null before */
+  private static final Method IS_VIRTUAL = isVirtualMethod();
+
+  private static final LocalCache NO_CACHE = new LocalCache(null, false);
+  private static final ThreadLocal<LocalCache> LOCAL =
+      ThreadLocal.withInitial(BufferPool::newCache);
+
+  /** caches of platform threads, so they can be emptied once their thread ends */
+  private static final ConcurrentLinkedQueue<LocalCache> CACHES = new ConcurrentLinkedQueue<>();
+  private static final AtomicLong LAST_SWEEP = new AtomicLong(System.nanoTime());
+
+  private static volatile boolean trackLeaks;
+
+  /** buffers that are out by identity hash code, only while tracking; guarded by itself */
+  private static final HashMap<Integer, List<Tracked>> TRACKED = new HashMap<>();
+  private static final ReferenceQueue<ByteBuffer> COLLECTED = new ReferenceQueue<>();
+
+  static {
+    configure(DEFAULT_POOL_BYTES, false);
+  }
+
+  private BufferPool() {
+  }
+
+  /**
+   * Sets the limits
+   * @param poolBytes free bytes kept in the shared lists, split evenly between the sizes
+   * @param leakDetection whether to track buffers that are out (fun.bufferLeaks)
+   */
+  static void configure(int poolBytes, boolean leakDetection) {
+    for (SizeClass sizeClass : CLASSES) {
+      sizeClass.maxFree = poolBytes / CLASSES.length / sizeClass.size;
+    }
+    trackLeaks = leakDetection;
+  }
+
+  /**
+   * Hands out a direct buffer
+   * @param size bytes needed
+   * @return a cleared buffer of at least size bytes; give it back with release
+   *         once nothing refers to it any more
+   */
+  static ByteBuffer acquire(int size) {
+    int index = sizeClass(size);
+    ByteBuffer buffer;
+    if (index < 0) {
+      UNPOOLED.increment();
+      buffer = ByteBuffer.allocateDirect(size);
+    } else {
+      SizeClass sizeClass = CLASSES[index];
+      sizeClass.acquired.increment();
+      buffer = take(index);
+      if (buffer == null) {
+        sizeClass.allocated.increment();
+        buffer = ByteBuffer.allocateDirect(sizeClass.size);
+      }
+      buffer.clear();
+    }
+    if (trackLeaks) {
+      track(buffer);
+    }
+    return buffer;
+  }
+
+  /**
+   * Takes back a buffer from acquire. Null is ignored, so finally blocks
+   * need no check.
+   */
+  static void release(ByteBuffer buffer) {
+    if (buffer == null) {
+      return;
+    }
+    if (trackLeaks && !untrack(buffer)) {
+      return;
+    }
+    int index = sizeClass(buffer.capacity());
+    if (index < 0 || SIZES[index] != buffer.capacity() || !buffer.isDirect()) {
+      return; // allocated on its own
+    }
+    SizeClass sizeClass = CLASSES[index];
+    sizeClass.released.increment();
+    LocalCache local = LOCAL.get();
+    if (local.count[index] < local.free[index].length) {
+      local.free[index][local.count[index]++] = buffer;
+      return;
+    }
+    share(sizeClass, buffer);
+  }
+
+  private static ByteBuffer take(int index) {
+    LocalCache local = LOCAL.get();
+    if (local.count[index] > 0) {
+      int last = --local.count[index];
+      ByteBuffer buffer = local.free[index][last];
+      local.free[index][last] = null;
+      return buffer;
+    }
+    SizeClass sizeClass = CLASSES[index];
+    synchronized (sizeClass.free) {
+      ByteBuffer buffer = sizeClass.free.poll();
+      if (buffer != null) {
+        return buffer;
+      }
+    }
+    if (!sweep()) {
+      return null;
+    }
+    synchronized (sizeClass.free) {
+      return sizeClass.free.poll();
+    }
+  }
+
+  private static void share(SizeClass sizeClass, ByteBuffer buffer) {
+    synchronized (sizeClass.free) {
+      if (sizeClass.free.size() < sizeClass.maxFree) {
+        sizeClass.free.push(buffer);
+        return;
+      }
+    }
+    sizeClass.dropped.increment();
+  }
+
+  /**
+   * Moves the buffers cached by threads that have ended to the shared
+   * lists, at most every SWEEP_INTERVAL_NANOS
+   * @return whether it ran
+   */
+  private static boolean sweep() {
+    long now = System.nanoTime();
+    long last = LAST_SWEEP.get();
+    if (now - last < SWEEP_INTERVAL_NANOS || !LAST_SWEEP.compareAndSet(last, now)) {
+      return false;
+    }
+    for (Iterator<LocalCache> it = CACHES.iterator(); it.hasNext(); ) {
+      LocalCache cache = it.next();
+      // once isAlive is false, everything the thread did is visible here
+      if (cache.owner.isAlive()) {
+        continue;
+      }
+      it.remove();
+      for (int i = 0; i < SIZES.length; i++) {
+        for (int j = 0; j < cache.count[i]; j++) {
+          share(CLASSES[i], cache.free[i][j]);
+        }
+      }
+    }
+    return true;
+  }
+
+  /** index of the smallest size that holds size bytes, -1 if none does */
+  private static int sizeClass(int size) {
+    for (int i = 0; i < SIZES.length; i++) {
+      if (size <= SIZES[i]) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private static LocalCache newCache() {
+    Thread thread = Thread.currentThread();
+    if (isVirtual(thread)) {
+      return NO_CACHE;
+    }
+    LocalCache cache = new LocalCache(thread, true);
+    CACHES.add(cache);
+    return cache;
+  }
+
+  private static Method isVirtualMethod() {
+    try {
+      // looked up reflectively so the server still builds and runs on Java 17
+      return Thread.class.getMethod("isVirtual");
+    } catch (NoSuchMethodException e) {
+      return null;
+    }
+  }
+
+  private static boolean isVirtual(Thread thread) {
+    if (IS_VIRTUAL == null) {
+      return false;
+    }
+    try {
+      return (Boolean) IS_VIRTUAL.invoke(thread);
+    } catch (ReflectiveOperationException e) {
+      return false;
+    }
+  }
+
+  // ---- leak detection
+
+  private static void track(ByteBuffer buffer) {
+    reportLeaks();
+    Tracked tracked = new Tracked(buffer);
+    synchronized (TRACKED) {
+      TRACKED.computeIfAbsent(tracked.key, k -> new ArrayList<>(1)).add(tracked);
+    }
+  }
+
+  /** false if the buffer is not out: released twice, or never acquired here */
+  private static boolean untrack(ByteBuffer buffer) {
+    int key = System.identityHashCode(buffer);
+    synchronized (TRACKED) {
+      List<Tracked> list = TRACKED.get(key);
+      if (list != null) {
+        for (int i = 0; i < list.size(); i++) {
+          Tracked tracked = list.get(i);
+          if (tracked.get() == buffer) {
+            remove(list, i, key);
+            tracked.clear(); // released, nothing to report
+            return true;
+          }
+        }
+      }
+    }
+    new Throwable("A " + buffer.capacity() + " byte buffer was released to the BufferPool "
+        + "while it was not out (released twice?), it is not pooled again").printStackTrace();
+    return false;
+  }
+
+  private static void remove(List<Tracked> list, int i, int key) {
+    list.remove(i);
+    if (list.isEmpty()) {
+      TRACKED.remove(key);
+    }
+  }
+
+  /**
+   * Reports the buffers that were garbage collected while they were out,
+   * with the stack they were acquired from
+   */
+  private static void reportLeaks() {
+    Tracked leaked;
+    while ((leaked = (Tracked) COLLECTED.poll()) != null) {
+      synchronized (TRACKED) {
+        List<Tracked> list = TRACKED.get(leaked.key);
+        if (list != null) {
+          for (int i = 0; i < list.size(); i++) {
+            if (list.get(i) == leaked) {
+              remove(list, i, leaked.key);
+              break;
+            }
+          }
+        }
+      }
+      LEAKS.increment();
+      leaked.acquiredAt.printStackTrace();
+    }
+  }
+
+  // ---- numbers for /metrics, index is the position in SIZES
+
+  static long acquired(int index) {
+    return CLASSES[index].acquired.sum();
+  }
+
+  /** buffers that had to be allocated because none was free */
+  static long allocated(int index) {
+    return CLASSES[index].allocated.sum();
+  }
+
+  static long inUse(int index) {
+    SizeClass sizeClass = CLASSES[index];
+    return sizeClass.acquired.sum() - sizeClass.released.sum();
+  }
+
+  /** buffers in the shared free list, thread caches not included */
+  static int free(int index) {
+    SizeClass sizeClass = CLASSES[index];
+    synchronized (sizeClass.free) {
+      return sizeClass.free.size();
+    }
+  }
+
+  /** released buffers left to the garbage collector because the pool was full */
+  static long dropped(int index) {
+    return CLASSES[index].dropped.sum();
+  }
+
+  /** buffers larger than the largest size, allocated on their own */
+  static long unpooled() {
+    return UNPOOLED.sum();
+  }
+
+  /** buffers garbage collected without being released, only counted with fun.bufferLeaks */
+  static long leaks() {
+    if (trackLeaks) {
+      reportLeaks();
+    }
+    return LEAKS.sum();
+  }
+}
@@ -0,0 +1,146 @@
+package funHttpServer;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Range: bytes=... request headers, and the framing of a
+ * multipart/byteranges body.
+ *
+ * Ranges are resolved against the file size, sorted and merged where they
+ * overlap or touch, so every byte is sent at most once and a file body can
+ * be sent front to back with positioned transfers.
+ */
+final class ByteRanges {
+
+  /** more ranges than this are ignored and the whole file is sent */
+  static final int MAX_RANGES = 16;
+
+  private ByteRanges() {
+  }
+
+  /**
+   * Resolves a Range header against a file
+   * @param header the Range header value, e.g. "bytes=0-99,200-"
+   * @param size file size
+   * @return start and end (exclusive) of each range in order, an empty
+   *         array if none of them is satisfiable, or null if the header
+   *         is malformed or asks for too many ranges and should be ignored
+   */
+  static long[] parse(String header, long size) {
+    String value = header.trim();
+    if (!value.regionMatches(true, 0, "bytes=", 0, 6)) {
+      return null;
+    }
+    String[] specs = value.substring(6).split(",");
+    if (specs.length > MAX_RANGES) {
+      return null;
+    }
+    long[] ranges = new long[2 * specs.length];
+    int count = 0;
+    for (String spec : specs) {
+      spec = spec.trim();
+      int dash = spec.indexOf('-');
+      if (dash < 0) {
+        return null;
+      }
+      long first = number(spec.substring(0, dash));
+      long last = number(spec.substring(dash + 1));
+      long start;
+      long end;
+      if (dash == 0) {
+        // suffix range: the last n bytes
+        if (last < 0) {
+          return null;
+        }
+        start = Math.max(0, size - last);
+        end = size;
+      } else {
+        if (first < 0 || (dash < spec.length() - 1 && (last < 0 || last < first))) {
+          return null;
+        }
+        start = first;
+        end = dash == spec.length() - 1 ? size : Math.min(last + 1, size);
+      }
+      if (start < end) {
+        ranges[2 * count] = start;
+        ranges[2 * count + 1] = end;
+        count++;
+      }
+    }
+    return merge(ranges, count);
+  }
+
+  private static long[] merge(long[] ranges, int count) {
+    Integer[] order = new Integer[count];
+    for (int i = 0; i < count; i++) {
+      order[i] = i;
+    }
+    Arrays.sort(order, (a, b) -> Long.compare(ranges[2 * a], ranges[2 * b]));
+    long[] merged = new long[2 * count];
+    int n = 0;
+    for (int i : order) {
+      long start = ranges[2 * i];
+      long end = ranges[2 * i + 1];
+      if (n > 0 && start <= merged[2 * n - 1]) {
+        merged[2 * n - 1] = Math.max(merged[2 * n - 1], end);
+      } else {
+        merged[2 * n] = start;
+        merged[2 * n + 1] = end;
+        n++;
+      }
+    }
+    return Arrays.copyOf(merged, 2 * n);
+  }
+
+  /** a decimal number, -1 if the text is not one */
+  private static long number(String text) {
+    text = text.trim();
+    if (text.isEmpty() || text.length() > 18) {
+      return -1;
+    }
+    long value = 0;
+    for (int i = 0; i < text.length(); i++) {
+      char c = text.charAt(i);
+      if (c < '0' || c > '9') {
+        return -1;
+      }
+      value = value * 10 + (c - '0');
+    }
+    return value;
+  }
+
+  /** Content-Range value of one range, e.g. "bytes 0-99/1234" */
+  static String contentRange(long start, long end, long size) {
+    return "bytes " + start + "-" + (end - 1) + "/" + size;
+  }
+
+  /** a boundary for one multipart body */
+  static String boundary() {
+    return Long.toHexString(ThreadLocalRandom.current().nextLong() | Long.MIN_VALUE);
+  }
+
+  /**
+   * The part headers of a multipart/byteranges body: one before each range
+   * and the closing boundary as the last element
+   * @param ranges from parse, at least one range
+   * @param size file size
+   * @param contentType type of the file
+   * @param boundary from boundary()
+   */
+  static ByteBuffer[] separators(long[] ranges, long size, String contentType, String boundary) {
+    ByteBuffer[] separators = new ByteBuffer[ranges.length / 2 + 1];
+    for (int i = 0; i < ranges.length / 2; i++) {
+      String head = (i == 0 ? "" : "\r\n") + "--" + boundary + "\r\n"
+          + "Content-Type: " + contentType + "\r\n"
+          + "Content-Range: " + contentRange(ranges[2 * i], ranges[2 * i + 1], size) + "\r\n"
+          + "\r\n";
+      separators[i] = ByteBuffer.wrap(head.getBytes(StandardCharsets.US_ASCII));
+    }
+    separators[separators.length - 1] = ByteBuffer.wrap(
+        ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII));
+    return separators;
+  }
+}
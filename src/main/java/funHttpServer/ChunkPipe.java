@@ -0,0 +1,149 @@
+package funHttpServer;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+
+/**
+ * Hands the chunks of a streaming response from the worker thread running
+ * the handler to the NIO selector thread writing the socket.
+ *
+ * At most a few chunks are queued. When the client reads slowly the handler
+ * blocks in send until the selector has written one, so a large body never
+ * piles up in memory. When the selector runs out of chunks it parks the
+ * connection (stalled) and the ready callback wakes it once the next chunk
+ * arrives. Chunk buffers are direct ones from the BufferPool, recycled
+ * within the pipe and given back once the body is done or the connection is.
+ */
+class ChunkPipe implements ResponseWriter.Sink {
+
+  private static final int MAX_QUEUED = 4;
+
+  private final ArrayDeque<ByteBuffer> queue = new ArrayDeque<>();
+  private final ArrayDeque<ByteBuffer> free = new ArrayDeque<>();
+
+  /** called, on the handler thread, when a chunk arrives for a stalled writer */
+  private final Runnable ready;
+
+  private boolean waiting;
+  private boolean finished;
+  private boolean aborted;
+  private IOException failure;
+
+  ChunkPipe(Runnable ready) {
+    this.ready = ready;
+  }
+
+  @Override
+  public synchronized void send(ByteBuffer... parts) throws IOException {
+    while (queue.size() >= MAX_QUEUED && !aborted) {
+      try {
+        wait();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted while streaming a response");
+      }
+    }
+    if (aborted) {
+      throw new IOException("Connection closed while streaming a response");
+    }
+    int length = 0;
+    for (ByteBuffer part : parts) {
+      length += part.remaining();
+    }
+    ByteBuffer chunk = free.poll();
+    if (chunk == null || chunk.capacity() < length) {
+      BufferPool.release(chunk);
+      chunk = BufferPool.acquire(Math.max(length, ResponseWriter.CHUNK_SIZE + 32));
+    }
+    chunk.clear();
+    for (ByteBuffer part : parts) {
+      chunk.put(part);
+    }
+    chunk.flip();
+    queue.add(chunk);
+    signal();
+  }
+
+  @Override
+  public synchronized void close() {
+    finished = true;
+    signal();
+  }
+
+  /**
+   * The handler failed, the selector gives up on the connection
+   */
+  synchronized void fail(Throwable error) {
+    failure = error instanceof IOException ? (IOException) error
+        : new IOException("Streaming handler failed", error);
+    signal();
+  }
+
+  /**
+   * The connection is gone, a handler blocked in send gets an IOException
+   */
+  synchronized void abort() {
+    aborted = true;
+    releaseAll(queue);
+    releaseAll(free);
+    notifyAll();
+  }
+
+  /**
+   * Writes queued chunks. Runs on the selector thread.
+   * @return true once the whole body has been written
+   * @throws IOException if the handler failed or the socket write fails
+   */
+  boolean drain(WritableByteChannel out) throws IOException {
+    while (true) {
+      ByteBuffer chunk;
+      synchronized (this) {
+        if (failure != null) {
+          throw failure;
+        }
+        chunk = queue.peek();
+        if (chunk == null) {
+          if (finished) {
+            releaseAll(free);
+            return true;
+          }
+          waiting = true;
+          return false;
+        }
+      }
+      out.write(chunk);
+      if (chunk.hasRemaining()) {
+        return false; // socket buffer is full
+      }
+      synchronized (this) {
+        queue.poll();
+        free.add(chunk);
+        notifyAll();
+      }
+    }
+  }
+
+  /**
+   * True if the last drain ran out of chunks and the next one has not arrived
+   */
+  synchronized boolean stalled() {
+    return waiting;
+  }
+
+  private static void releaseAll(ArrayDeque<ByteBuffer> chunks) {
+    ByteBuffer chunk;
+    while ((chunk = chunks.poll()) != null) {
+      BufferPool.release(chunk);
+    }
+  }
+
+  private void signal() {
+    if (waiting) {
+      waiting = false;
+      ready.run();
+    }
+  }
+}
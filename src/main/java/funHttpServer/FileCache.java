@@ -0,0 +1,420 @@
+package funHttpServer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+/**
+ * Shared in-memory cache of file contents in front of readFileInBytes.
+ *
+ * Small files are copied to the heap. Larger files inside the docroot are
+ * memory mapped instead, so they are served from the page cache without
+ * growing the heap. Files too large for either are not cached at all and
+ * callers stream them from disk with transferTo.
+ *
+ * Entries are kept in least recently used order and the oldest ones are
+ * dropped once the total size goes over the byte budget. Files inside the
+ * docroot are watched with a WatchService, so a cache hit for them never
+ * touches the filesystem and edits are picked up as soon as the change event
+ * arrives. Files outside the docroot (e.g. /file/README.md) are checked
+ * against their modification time and size on every hit instead.
+ *
+ * Heap entries can also hold a gzip copy of the file. It is made the first
+ * time a client that accepts gzip asks for the file, counts against the
+ * same byte budget and goes away with the entry, so a file is compressed
+ * once per change instead of once per request.
+ *
+ * Every entry carries the ETag and Last-Modified of the version it was
+ * loaded from, so conditional requests are answered without a stat.
+ */
+class FileCache {
+
+  /** one file, with its contents if they are cached */
+  static final class Entry {
+    final Path path;
+    final long lastModified;
+    final long size;
+
+    /** heap copy of a small file, or null */
+    final byte[] bytes;
+
+    /** mapping of a larger docroot file, or null */
+    final MappedByteBuffer mapped;
+
+    /** true if a watcher will tell us about changes, so no stat is needed */
+    final boolean watched;
+
+    /** ETag and Last-Modified of this version of the file */
+    final Validators validators;
+
+    /** gzip copy of bytes, NOT_COMPRESSIBLE, or null if not made yet. Set under the cache lock. */
+    private volatile byte[] gzip;
+
+    Entry(Path path, long lastModified, long size, byte[] bytes, MappedByteBuffer mapped,
+        boolean watched) {
+      this.path = path;
+      this.lastModified = lastModified;
+      this.size = size;
+      this.bytes = bytes;
+      this.mapped = mapped;
+      this.watched = watched;
+      this.validators = new Validators(tag(lastModified, size, bytes), lastModified);
+    }
+
+    /**
+     * Heap copies are tagged by their contents, so touching a file or
+     * deploying it again keeps the tag. Other files are tagged by
+     * modification time and size, reading them just for a tag would cost
+     * more than sending them.
+     */
+    private static String tag(long lastModified, long size, byte[] bytes) {
+      if (bytes == null) {
+        return Long.toHexString(lastModified) + "-" + Long.toHexString(size);
+      }
+      CRC32C crc = new CRC32C();
+      crc.update(bytes);
+      return Long.toHexString(crc.getValue()) + "-" + Long.toHexString(size);
+    }
+
+    /** true if the contents are held in memory */
+    boolean cached() {
+      return bytes != null || mapped != null;
+    }
+
+    /**
+     * The contents in a buffer of their own, or null if they are not cached
+     */
+    ByteBuffer data() {
+      if (bytes != null) {
+        return ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+      }
+      return mapped == null ? null : mapped.asReadOnlyBuffer();
+    }
+
+    private long heapBytes() {
+      return (bytes == null ? 0 : bytes.length) + (gzip == null ? 0 : gzip.length);
+    }
+
+    private long mappedBytes() {
+      return mapped == null ? 0 : size;
+    }
+  }
+
+  private final long maxBytes;
+  private final long maxEntryBytes;
+  private final long maxMappedBytes;
+  private final long maxMappedEntryBytes;
+  private final Path docroot;
+
+  /** marks an entry whose gzip copy would not be smaller */
+  private static final byte[] NOT_COMPRESSIBLE = new byte[0];
+
+  /** returned by docrootVersion when changes are not being watched */
+  static final long UNKNOWN_VERSION = -1;
+
+  /** access ordered, so iteration starts with the least recently used entry */
+  private final LinkedHashMap<Path, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+  private long totalBytes;
+  private long totalMappedBytes;
+
+  /**
+   * bumped under the cache lock on every watcher event, lets a load notice
+   * it raced with a change
+   */
+  private volatile long invalidations;
+  private volatile boolean watching;
+
+  /**
+   * @param maxBytes total heap bytes the cache may hold
+   * @param maxEntryBytes files larger than this are not copied to the heap
+   * @param maxMappedBytes total bytes of docroot files that may be mapped
+   * @param maxMappedEntryBytes docroot files larger than this are never mapped
+   * @param docroot directory to watch for changes, may be null
+   */
+  FileCache(long maxBytes, long maxEntryBytes, long maxMappedBytes, long maxMappedEntryBytes,
+      File docroot) {
+    this.maxBytes = maxBytes;
+    this.maxEntryBytes = Math.min(maxEntryBytes, maxBytes);
+    this.maxMappedBytes = maxMappedBytes;
+    this.maxMappedEntryBytes = Math.min(maxMappedEntryBytes, maxMappedBytes);
+    this.docroot = docroot == null ? null : key(docroot);
+    if (this.docroot != null && Files.isDirectory(this.docroot)) {
+      startWatcher();
+    }
+  }
+
+  /**
+   * Gets the contents of a file, from memory if possible
+   * @param f file to read
+   * @return the file contents or null if f is not an existing regular file
+   * @throws IOException if the file cannot be read
+   */
+  byte[] read(File f) throws IOException {
+    Entry entry = get(f);
+    if (entry == null) {
+      return null;
+    }
+    if (entry.bytes != null) {
+      return entry.bytes;
+    }
+    if (entry.mapped != null) {
+      byte[] bytes = new byte[(int) entry.size];
+      entry.mapped.asReadOnlyBuffer().get(bytes);
+      return bytes;
+    }
+    return WebServer.readFileInBytes(f);
+  }
+
+  /**
+   * Looks up a file, loading it into the cache if it fits
+   * @param f file to look up
+   * @return the entry, whose contents may or may not be cached, or null if f
+   *         is not an existing regular file
+   * @throws IOException if the file cannot be read
+   */
+  Entry get(File f) throws IOException {
+    Path path = key(f);
+
+    Entry entry;
+    synchronized (this) {
+      entry = entries.get(path);
+    }
+    if (entry != null) {
+      if (entry.watched) {
+        return entry;
+      }
+      BasicFileAttributes attrs = attributes(path);
+      if (attrs != null && attrs.lastModifiedTime().toMillis() == entry.lastModified
+          && attrs.size() == entry.size) {
+        return entry;
+      }
+      invalidate(path);
+    }
+    return load(path, f);
+  }
+
+  private Entry load(Path path, File f) throws IOException {
+    long seenInvalidations = invalidations;
+    BasicFileAttributes attrs = attributes(path);
+    if (attrs == null || !attrs.isRegularFile()) {
+      return null;
+    }
+    long size = attrs.size();
+    boolean underDocroot = watching && isUnderDocroot(path);
+
+    byte[] bytes = null;
+    MappedByteBuffer mapped = null;
+    if (size <= maxEntryBytes) {
+      bytes = WebServer.readFileInBytes(f);
+      size = bytes.length;
+    } else if (underDocroot && size <= maxMappedEntryBytes) {
+      // only watched files are mapped, so a changed file is dropped right away
+      try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+        mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+      }
+    }
+
+    Entry entry = new Entry(path, attrs.lastModifiedTime().toMillis(), size, bytes, mapped,
+        underDocroot);
+    if (entry.cached()) {
+      put(path, entry, seenInvalidations);
+    }
+    return entry;
+  }
+
+  /**
+   * The gzip copy of a heap entry, made on first use
+   * @param entry entry from get
+   * @return the compressed bytes, or null if the entry is not on the heap or
+   *         compressing does not make it smaller
+   */
+  byte[] gzip(Entry entry) throws IOException {
+    if (entry.bytes == null) {
+      return null;
+    }
+    byte[] gz = entry.gzip;
+    if (gz == null) {
+      // concurrent first requests may both compress, only one copy is kept
+      gz = Gzip.compress(new ByteBuffer[] {ByteBuffer.wrap(entry.bytes)}, Gzip.STATIC_LEVEL);
+      if (gz.length >= entry.bytes.length) {
+        gz = NOT_COMPRESSIBLE;
+      }
+      synchronized (this) {
+        if (entry.gzip == null) {
+          entry.gzip = gz;
+          if (entries.get(entry.path) == entry) {
+            totalBytes += gz.length;
+            evict();
+          }
+        }
+        gz = entry.gzip;
+      }
+    }
+    return gz == NOT_COMPRESSIBLE ? null : gz;
+  }
+
+  /**
+   * Stores a loaded entry, unless it is watched and the watcher fired since
+   * the load started: the event may have been about this file and came too
+   * early to drop it, so the contents may be stale and no later event is
+   * coming. The caller still answers its one request with them.
+   * @param seenInvalidations the invalidations count before the file was read
+   */
+  private synchronized void put(Path path, Entry entry, long seenInvalidations) {
+    if (entry.watched && seenInvalidations != invalidations) {
+      return;
+    }
+    Entry old = entries.put(path, entry);
+    if (old != null) {
+      totalBytes -= old.heapBytes();
+      totalMappedBytes -= old.mappedBytes();
+    }
+    totalBytes += entry.heapBytes();
+    totalMappedBytes += entry.mappedBytes();
+    evict();
+  }
+
+  /** drops least recently used entries until both budgets are met */
+  private void evict() {
+    Iterator<Entry> eldest = entries.values().iterator();
+    while ((totalBytes > maxBytes || totalMappedBytes > maxMappedBytes) && eldest.hasNext()) {
+      Entry e = eldest.next();
+      if ((totalBytes > maxBytes && e.bytes != null)
+          || (totalMappedBytes > maxMappedBytes && e.mapped != null)) {
+        totalBytes -= e.heapBytes();
+        totalMappedBytes -= e.mappedBytes();
+        eldest.remove();
+      }
+    }
+  }
+
+  /**
+   * Drops a file, or everything below a directory, from the cache
+   * @param path normalized absolute path
+   */
+  synchronized void invalidate(Path path) {
+    Iterator<Map.Entry<Path, Entry>> it = entries.entrySet().iterator();
+    while (it.hasNext()) {
+      Map.Entry<Path, Entry> e = it.next();
+      if (e.getKey().startsWith(path)) {
+        totalBytes -= e.getValue().heapBytes();
+        totalMappedBytes -= e.getValue().mappedBytes();
+        it.remove();
+      }
+    }
+  }
+
+  /**
+   * What the watcher does for an event: counts it, so loads in progress do
+   * not store what they read, and drops what changed. Both happen under the
+   * cache lock, so a load either sees the new count in put or put its entry
+   * before and has it dropped here.
+   */
+  private synchronized void changed(Path path) {
+    invalidations++;
+    invalidate(path);
+  }
+
+  /**
+   * A number that changes whenever anything in the docroot changes
+   * @return the version or UNKNOWN_VERSION if the docroot is not watched
+   */
+  long docrootVersion() {
+    return watching ? invalidations : UNKNOWN_VERSION;
+  }
+
+  /** current number of cached heap bytes */
+  synchronized long size() {
+    return totalBytes;
+  }
+
+  private boolean isUnderDocroot(Path path) {
+    return docroot != null && path.startsWith(docroot);
+  }
+
+  private static Path key(File f) {
+    return f.toPath().toAbsolutePath().normalize();
+  }
+
+  private static BasicFileAttributes attributes(Path path) {
+    try {
+      return Files.readAttributes(path, BasicFileAttributes.class);
+    } catch (IOException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Registers the docroot and its sub directories with a WatchService and
+   * starts a daemon thread that drops changed files from the cache.
+   */
+  private void startWatcher() {
+    try {
+      WatchService watcher = FileSystems.getDefault().newWatchService();
+      register(watcher, docroot);
+      Thread thread = new Thread(() -> watch(watcher), "fun-file-watcher");
+      thread.setDaemon(true);
+      thread.start();
+      watching = true;
+    } catch (IOException e) {
+      System.out.println("Cannot watch " + docroot + ", using modification times: "
+          + e.getMessage());
+    }
+  }
+
+  private static void register(WatchService watcher, Path dir) throws IOException {
+    try (Stream<Path> dirs = Files.walk(dir)) {
+      for (Path d : (Iterable<Path>) dirs.filter(Files::isDirectory)::iterator) {
+        d.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+            StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+      }
+    }
+  }
+
+  private void watch(WatchService watcher) {
+    try {
+      while (true) {
+        WatchKey key = watcher.take();
+        Path dir = (Path) key.watchable();
+        for (WatchEvent<?> event : key.pollEvents()) {
+          if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+            // lost track of what changed, start over for the whole docroot
+            changed(docroot);
+            continue;
+          }
+          Path changed = dir.resolve((Path) event.context());
+          changed(changed);
+          if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE
+              && Files.isDirectory(changed)) {
+            register(watcher, changed);
+          }
+        }
+        if (!key.reset() && dir.equals(docroot)) {
+          // docroot itself is gone, stop trusting the watcher
+          watching = false;
+          changed(docroot);
+          return;
+        }
+      }
+    } catch (InterruptedException | IOException e) {
+      watching = false;
+      changed(docroot);
+    }
+  }
+}
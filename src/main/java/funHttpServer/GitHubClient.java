@@ -0,0 +1,217 @@
+package funHttpServer;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpResponse.BodySubscriber;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Flow;
+
+/**
+ * Upstream client for the /github route.
+ *
+ * Requests go through one shared java.net.http.HttpClient, which sends them
+ * asynchronously and keeps connections to the API open for reuse, so no
+ * server thread sits waiting for GitHub. Successful answers are cached per
+ * query for a while. A query that is already being fetched is not fetched
+ * again: everyone asking for it gets the same future, so a burst of identical
+ * lookups costs one round trip.
+ *
+ * Only the fields the page shows are kept. They are picked out of the body
+ * with JsonFields while it arrives, and the download is cancelled as soon
+ * as all of them have been seen, so the full document is never held.
+ */
+class GitHubClient {
+
+  /** what GitHub answered for one query */
+  static final class Answer {
+    /** HTTP status of the upstream response */
+    final int status;
+
+    /** the requested fields, null for those not in the document */
+    final Map<String, String> fields;
+
+    Answer(int status, Map<String, String> fields) {
+      this.status = status;
+      this.fields = fields;
+    }
+  }
+
+  /** one query: the answer, or the fetch still in flight */
+  private static final class Cached {
+    final CompletableFuture<Answer> body = new CompletableFuture<>();
+
+    /** System.nanoTime() after which the answer is stale, set once it arrived */
+    volatile long expires;
+
+    /** true while the answer is on its way or still fresh */
+    boolean usable(long now) {
+      return !body.isDone() || now - expires < 0;
+    }
+  }
+
+  private final HttpClient client;
+  private final String base;
+  private final long ttlNanos;
+  private final Duration timeout;
+  private final int maxEntries;
+  private final String[] fields;
+
+  private final ConcurrentHashMap<String, Cached> cache = new ConcurrentHashMap<>();
+
+  /**
+   * @param base URL the query is appended to, e.g. https://api.github.com/
+   * @param ttlMillis how long an answer is served from the cache
+   * @param timeoutMillis how long to wait for GitHub before giving up
+   * @param maxEntries number of cached queries kept at most
+   * @param fields JSON fields to extract from each answer, see JsonFields
+   */
+  GitHubClient(String base, long ttlMillis, long timeoutMillis, int maxEntries,
+      String... fields) {
+    this.fields = fields.clone();
+    this.base = base.endsWith("/") ? base : base + "/";
+    this.ttlNanos = ttlMillis * 1_000_000;
+    this.timeout = Duration.ofMillis(timeoutMillis);
+    this.maxEntries = Math.max(1, maxEntries);
+    this.client = HttpClient.newBuilder()
+        .connectTimeout(timeout)
+        .followRedirects(HttpClient.Redirect.NORMAL)
+        .build();
+  }
+
+  /**
+   * Gets the fields for a query, e.g. "users/amehlhase316/repos"
+   * @param query API path below the base URL
+   * @return the answer, from the cache or from a (possibly shared) request.
+   *         Fails if the request fails, the body is not JSON or the query is
+   *         not a valid URL.
+   */
+  CompletableFuture<Answer> fetch(String query) {
+    long now = System.nanoTime();
+    Cached entry = cache.get(query);
+    if (entry != null && entry.usable(now)) {
+      return entry.body;
+    }
+
+    URI uri;
+    try {
+      uri = URI.create(base + query);
+    } catch (IllegalArgumentException e) {
+      return CompletableFuture.failedFuture(e);
+    }
+
+    Cached created = new Cached();
+    entry = cache.compute(query, (k, old) -> old != null && old.usable(now) ? old : created);
+    if (entry != created) {
+      return entry.body; // someone else started the fetch first
+    }
+    if (cache.size() > maxEntries) {
+      trim(now);
+    }
+
+    java.net.http.HttpRequest request = java.net.http.HttpRequest.newBuilder(uri)
+        .timeout(timeout)
+        .header("Accept", "application/vnd.github+json")
+        .GET()
+        .build();
+    client.sendAsync(request, info -> new FieldSubscriber(new JsonFields(fields)))
+        .whenComplete((response, error) -> {
+          if (error != null) {
+            cache.remove(query, created);
+            created.body.completeExceptionally(error);
+            return;
+          }
+          if (response.statusCode() / 100 != 2) {
+            // error answers (rate limit, not found) are passed on but not kept
+            cache.remove(query, created);
+          }
+          created.expires = System.nanoTime() + ttlNanos;
+          created.body.complete(new Answer(response.statusCode(), response.body()));
+        });
+    return created.body;
+  }
+
+  /**
+   * Drops stale answers, and arbitrary finished others if that is not
+   * enough: the map has no order, and a miss when the cache is full should
+   * not have to sort it
+   */
+  private void trim(long now) {
+    cache.values().removeIf(e -> !e.usable(now));
+    Iterator<Cached> it = cache.values().iterator();
+    while (cache.size() > maxEntries && it.hasNext()) {
+      Cached e = it.next();
+      if (e.body.isDone()) {
+        it.remove();
+      }
+    }
+  }
+
+  /**
+   * Feeds the body to a JsonFields as it arrives and cancels the rest of the
+   * download once every field has been found
+   */
+  private static final class FieldSubscriber implements BodySubscriber<Map<String, String>> {
+    private final JsonFields parser;
+    private final CompletableFuture<Map<String, String>> result = new CompletableFuture<>();
+    private Flow.Subscription subscription;
+
+    FieldSubscriber(JsonFields parser) {
+      this.parser = parser;
+    }
+
+    @Override
+    public CompletionStage<Map<String, String>> getBody() {
+      return result;
+    }
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+      this.subscription = subscription;
+      subscription.request(1);
+    }
+
+    @Override
+    public void onNext(List<ByteBuffer> buffers) {
+      if (result.isDone()) {
+        return;
+      }
+      try {
+        for (ByteBuffer buf : buffers) {
+          if (parser.feed(buf)) {
+            subscription.cancel();
+            result.complete(parser.values());
+            return;
+          }
+        }
+      } catch (IOException e) {
+        subscription.cancel();
+        result.completeExceptionally(e);
+        return;
+      }
+      subscription.request(1);
+    }
+
+    @Override
+    public void onError(Throwable error) {
+      result.completeExceptionally(error);
+    }
+
+    @Override
+    public void onComplete() {
+      try {
+        parser.finish();
+        result.complete(parser.values());
+      } catch (IOException e) {
+        result.completeExceptionally(e);
+      }
+    }
+  }
+}
@@ -0,0 +1,105 @@
+package funHttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * gzip content encoding: Accept-Encoding negotiation and the compressors
+ * used for precompressed files and for dynamic responses.
+ */
+final class Gzip {
+
+  /** compressed copies of files are made once, so they get the best compression */
+  static final int STATIC_LEVEL = Deflater.BEST_COMPRESSION;
+
+  /** responses compressed on every request use the default trade-off */
+  static final int DYNAMIC_LEVEL = Deflater.DEFAULT_COMPRESSION;
+
+  private Gzip() {
+  }
+
+  /**
+   * Whether an Accept-Encoding header allows gzip, e.g. "gzip, deflate, br".
+   * A q value of 0 refuses it, "*" accepts it unless gzip itself is refused.
+   * @param acceptEncoding header value, may be null
+   */
+  static boolean accepted(String acceptEncoding) {
+    if (acceptEncoding == null) {
+      return false;
+    }
+    boolean star = false;
+    for (String item : acceptEncoding.split(",")) {
+      int semicolon = item.indexOf(';');
+      String coding = (semicolon < 0 ? item : item.substring(0, semicolon)).trim();
+      boolean allowed = semicolon < 0 || quality(item.substring(semicolon + 1)) > 0;
+      if (coding.equalsIgnoreCase("gzip") || coding.equalsIgnoreCase("x-gzip")) {
+        return allowed;
+      }
+      if (coding.equals("*")) {
+        star = allowed;
+      }
+    }
+    return star;
+  }
+
+  private static double quality(String params) {
+    for (String param : params.split(";")) {
+      param = param.trim();
+      if (param.startsWith("q=") || param.startsWith("Q=")) {
+        try {
+          return Double.parseDouble(param.substring(2).trim());
+        } catch (NumberFormatException e) {
+          return 0;
+        }
+      }
+    }
+    return 1;
+  }
+
+  /**
+   * Compresses buffers in memory
+   * @param parts the data, left unchanged
+   * @param level Deflater level
+   * @return the gzip bytes
+   */
+  static byte[] compress(ByteBuffer[] parts, int level) throws IOException {
+    ByteArrayOutputStream data = new ByteArrayOutputStream();
+    try (GZIPOutputStream gz = open(data, level)) {
+      for (ByteBuffer part : parts) {
+        write(gz, part.duplicate());
+      }
+    }
+    return data.toByteArray();
+  }
+
+  /**
+   * A gzip stream at the given level. Closing it finishes the gzip data and
+   * closes out.
+   */
+  static GZIPOutputStream open(OutputStream out, int level) throws IOException {
+    return new GZIPOutputStream(out, 8192) {
+      {
+        def.setLevel(level);
+      }
+    };
+  }
+
+  /** writes the remaining bytes of a buffer, heap or direct */
+  static void write(OutputStream out, ByteBuffer buf) throws IOException {
+    if (buf.hasArray()) {
+      out.write(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+      buf.position(buf.limit());
+      return;
+    }
+    byte[] copy = new byte[Math.min(buf.remaining(), 8192)];
+    while (buf.hasRemaining()) {
+      int n = Math.min(copy.length, buf.remaining());
+      buf.get(copy, 0, n);
+      out.write(copy, 0, n);
+    }
+  }
+}
@@ -0,0 +1,419 @@
+package funHttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+
+/**
+ * HPACK (RFC 7541), the header compression of HTTP/2: a decoder for request
+ * header blocks and an encoder for response headers.
+ *
+ * Both sides keep a dynamic table of recently sent fields, newest first,
+ * after the 61 entries of the static table. A field is sent as an index
+ * into the tables when it is there, otherwise as a literal that may be
+ * added to them. Literal strings may be Huffman coded with the fixed code
+ * of the RFC; it is canonical, so the table below only holds the code
+ * length of each symbol and the codes follow from those.
+ *
+ * Header strings are ISO-8859-1, like HttpRequest treats HTTP/1 headers.
+ */
+final class Hpack {
+
+  /** dynamic table size both sides start with, and the most we allow */
+  static final int TABLE_SIZE = 4096;
+
+  /** receives decoded fields */
+  interface Fields {
+    void field(String name, String value) throws IOException;
+  }
+
+  /** a header block that cannot be decoded, a connection error */
+  static final class CompressionError extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    CompressionError(String message) {
+      super(message);
+    }
+  }
+
+  private static final String[][] STATIC = {
+    {":authority", ""}, {":method", "GET"}, {":method", "POST"}, {":path", "/"},
+    {":path", "/index.html"}, {":scheme", "http"}, {":scheme", "https"}, {":status", "200"},
+    {":status", "204"}, {":status", "206"}, {":status", "304"}, {":status", "400"},
+    {":status", "404"}, {":status", "500"}, {"accept-charset", ""},
+    {"accept-encoding", "gzip, deflate"}, {"accept-language", ""}, {"accept-ranges", ""},
+    {"accept", ""}, {"access-control-allow-origin", ""}, {"age", ""}, {"allow", ""},
+    {"authorization", ""}, {"cache-control", ""}, {"content-disposition", ""},
+    {"content-encoding", ""}, {"content-language", ""}, {"content-length", ""},
+    {"content-location", ""}, {"content-range", ""}, {"content-type", ""}, {"cookie", ""},
+    {"date", ""}, {"etag", ""}, {"expect", ""}, {"expires", ""}, {"from", ""}, {"host", ""},
+    {"if-match", ""}, {"if-modified-since", ""}, {"if-none-match", ""}, {"if-range", ""},
+    {"if-unmodified-since", ""}, {"last-modified", ""}, {"link", ""}, {"location", ""},
+    {"max-forwards", ""}, {"proxy-authenticate", ""}, {"proxy-authorization", ""},
+    {"range", ""}, {"referer", ""}, {"refresh", ""}, {"retry-after", ""}, {"server", ""},
+    {"set-cookie", ""}, {"strict-transport-security", ""}, {"transfer-encoding", ""},
+    {"user-agent", ""}, {"vary", ""}, {"via", ""}, {"www-authenticate", ""},
+  };
+
+  /** Huffman code length of every byte value, and of EOS (256) */
+  private static final byte[] CODE_LENGTHS = {
+      13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28,
+      28, 28, 28, 28, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 28,
+      6, 10, 10, 12, 13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6,
+      5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 7, 8, 15, 6, 12, 10,
+      13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
+      7, 7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13, 19, 13, 14, 6,
+      15, 5, 6, 5, 6, 5, 6, 6, 6, 5, 7, 7, 6, 6, 6, 5,
+      6, 7, 6, 5, 5, 6, 7, 7, 7, 7, 7, 15, 11, 14, 13, 28,
+      20, 22, 20, 20, 22, 22, 22, 23, 22, 23, 23, 23, 23, 23, 24, 23,
+      24, 24, 22, 23, 24, 23, 23, 23, 23, 21, 22, 23, 22, 23, 23, 24,
+      22, 21, 20, 22, 22, 23, 23, 21, 23, 22, 22, 24, 21, 22, 23, 23,
+      21, 21, 22, 21, 23, 22, 23, 23, 20, 22, 22, 22, 23, 22, 22, 23,
+      26, 26, 20, 19, 22, 23, 22, 25, 26, 26, 26, 27, 27, 26, 24, 25,
+      19, 21, 26, 27, 27, 26, 27, 24, 21, 21, 26, 26, 28, 27, 27, 27,
+      20, 24, 20, 21, 22, 21, 21, 23, 22, 22, 25, 25, 24, 24, 26, 23,
+      26, 27, 26, 26, 27, 27, 27, 27, 27, 28, 27, 27, 27, 27, 27, 26,
+      30
+  };
+
+  /** the Huffman code of every symbol, from the lengths */
+  private static final int[] CODES = new int[257];
+
+  /** symbols ordered by code, and per length the first code and where its symbols start */
+  private static final int[] SYMBOLS = new int[257];
+  private static final int[] FIRST_CODE = new int[31];
+  private static final int[] FIRST_SYMBOL = new int[31];
+  private static final int[] COUNT = new int[31];
+
+  static {
+    int n = 0;
+    int code = 0;
+    for (int length = 1; length <= 30; length++) {
+      FIRST_CODE[length] = code;
+      FIRST_SYMBOL[length] = n;
+      for (int symbol = 0; symbol < 257; symbol++) {
+        if (CODE_LENGTHS[symbol] == length) {
+          CODES[symbol] = code++;
+          SYMBOLS[n++] = symbol;
+          COUNT[length]++;
+        }
+      }
+      code <<= 1;
+    }
+  }
+
+  private Hpack() {
+  }
+
+  /**
+   * The dynamic table: entries newest first, evicted from the oldest end
+   * once their size (name and value length plus 32) is over the limit
+   */
+  static final class Table {
+    private final ArrayList<String[]> entries = new ArrayList<>();
+    private int size;
+    private int maxSize = TABLE_SIZE;
+
+    /** field at a combined index, 1 to 61 static, then dynamic; null if there is none */
+    String[] get(int index) {
+      if (index >= 1 && index <= STATIC.length) {
+        return STATIC[index - 1];
+      }
+      int dynamic = index - STATIC.length - 1;
+      if (index < 1 || dynamic >= entries.size()) {
+        return null;
+      }
+      return entries.get(entries.size() - 1 - dynamic);
+    }
+
+    /**
+     * Looks a field up in both tables
+     * @return its index if the whole field is there, minus the index of an
+     *         entry with that name, or 0
+     */
+    int find(String name, String value) {
+      int nameIndex = 0;
+      for (int i = 0; i < STATIC.length; i++) {
+        if (STATIC[i][0].equals(name)) {
+          if (STATIC[i][1].equals(value)) {
+            return i + 1;
+          }
+          if (nameIndex == 0) {
+            nameIndex = -(i + 1);
+          }
+        }
+      }
+      for (int i = entries.size() - 1; i >= 0; i--) {
+        String[] entry = entries.get(i);
+        if (entry[0].equals(name)) {
+          int index = STATIC.length + entries.size() - i;
+          if (entry[1].equals(value)) {
+            return index;
+          }
+          if (nameIndex == 0) {
+            nameIndex = -index;
+          }
+        }
+      }
+      return nameIndex;
+    }
+
+    void add(String name, String value) {
+      int entrySize = name.length() + value.length() + 32;
+      evict(maxSize - entrySize);
+      if (entrySize <= maxSize) {
+        entries.add(new String[] {name, value});
+        size += entrySize;
+      }
+    }
+
+    void setMaxSize(int maxSize) {
+      this.maxSize = maxSize;
+      evict(maxSize);
+    }
+
+    int maxSize() {
+      return maxSize;
+    }
+
+    private void evict(int limit) {
+      while (size > Math.max(limit, 0) && !entries.isEmpty()) {
+        String[] oldest = entries.remove(0);
+        size -= oldest[0].length() + oldest[1].length() + 32;
+      }
+    }
+  }
+
+  /** Decodes the header blocks of one connection, in the order they arrive */
+  static final class Decoder {
+    private final Table table = new Table();
+    private byte[] in;
+    private int pos;
+    private int end;
+
+    /**
+     * Decodes one complete header block
+     * @param out gets each field, names as sent (HTTP/2 requires lower case)
+     * @throws CompressionError if the block is malformed
+     */
+    void decode(byte[] block, int offset, int length, Fields out) throws IOException {
+      in = block;
+      pos = offset;
+      end = offset + length;
+      boolean fieldSeen = false;
+      while (pos < end) {
+        int b = in[pos] & 0xff;
+        if ((b & 0x80) != 0) {
+          String[] field = table.get(integer(7));
+          if (field == null) {
+            throw new CompressionError("Bad index");
+          }
+          out.field(field[0], field[1]);
+          fieldSeen = true;
+        } else if ((b & 0x40) != 0) {
+          String name = name(6);
+          String value = string();
+          table.add(name, value);
+          out.field(name, value);
+          fieldSeen = true;
+        } else if ((b & 0x20) != 0) {
+          // only allowed at the start of a block
+          int size = integer(5);
+          if (fieldSeen || size > TABLE_SIZE) {
+            throw new CompressionError("Bad dynamic table size update");
+          }
+          table.setMaxSize(size);
+        } else {
+          // without indexing (0000) or never indexed (0001), same to us
+          String name = name(4);
+          out.field(name, string());
+          fieldSeen = true;
+        }
+      }
+      in = null;
+    }
+
+    private String name(int prefix) throws CompressionError {
+      int index = integer(prefix);
+      if (index == 0) {
+        return string();
+      }
+      String[] field = table.get(index);
+      if (field == null) {
+        throw new CompressionError("Bad name index");
+      }
+      return field[0];
+    }
+
+    private int integer(int prefix) throws CompressionError {
+      int max = (1 << prefix) - 1;
+      int value = in[pos++] & max;
+      if (value < max) {
+        return value;
+      }
+      for (int shift = 0; shift <= 21; shift += 7) {
+        if (pos == end) {
+          throw new CompressionError("Truncated integer");
+        }
+        int b = in[pos++] & 0xff;
+        value += (b & 0x7f) << shift;
+        if ((b & 0x80) == 0) {
+          return value;
+        }
+      }
+      throw new CompressionError("Integer too large");
+    }
+
+    private String string() throws CompressionError {
+      if (pos == end) {
+        throw new CompressionError("Truncated string");
+      }
+      boolean huffman = (in[pos] & 0x80) != 0;
+      int length = integer(7);
+      if (length > end - pos) {
+        throw new CompressionError("Truncated string");
+      }
+      String s = huffman ? huffmanDecode(in, pos, length)
+          : new String(in, pos, length, StandardCharsets.ISO_8859_1);
+      pos += length;
+      return s;
+    }
+  }
+
+  /**
+   * Encodes the response headers of one connection. Fields that repeat
+   * between responses (content-type, vary and so on) go into the dynamic
+   * table, so later responses send them as a single index.
+   */
+  static final class Encoder {
+    private final Table table = new Table();
+
+    /** a smaller table size the peer asked for, to announce in the next block */
+    private int sizeUpdate = -1;
+
+    /**
+     * The peer's SETTINGS_HEADER_TABLE_SIZE, the table may not grow past it
+     */
+    void maxTableSize(int peerSize) {
+      int size = Math.min(peerSize, TABLE_SIZE);
+      if (size != table.maxSize()) {
+        table.setMaxSize(size);
+        sizeUpdate = size;
+      }
+    }
+
+    /** starts a header block with the :status field */
+    void status(ByteArrayOutputStream out, String status) {
+      if (sizeUpdate >= 0) {
+        integer(out, 0x20, 5, sizeUpdate);
+        sizeUpdate = -1;
+      }
+      field(out, ":status", status.substring(0, 3), false);
+    }
+
+    /**
+     * Adds one field
+     * @param index whether the field should go into the dynamic table, for
+     *        values likely to be sent again
+     */
+    void field(ByteArrayOutputStream out, String name, String value, boolean index) {
+      int found = table.find(name, value);
+      if (found > 0) {
+        integer(out, 0x80, 7, found);
+        return;
+      }
+      if (index) {
+        integer(out, 0x40, 6, -found);
+        table.add(name, value);
+      } else {
+        integer(out, 0x00, 4, -found);
+      }
+      if (found == 0) {
+        string(out, name);
+      }
+      string(out, value);
+    }
+
+    private static void integer(ByteArrayOutputStream out, int pattern, int prefix, int value) {
+      int max = (1 << prefix) - 1;
+      if (value < max) {
+        out.write(pattern | value);
+        return;
+      }
+      out.write(pattern | max);
+      value -= max;
+      while (value >= 0x80) {
+        out.write((value & 0x7f) | 0x80);
+        value >>>= 7;
+      }
+      out.write(value);
+    }
+
+    /** a string literal, Huffman coded if that is shorter */
+    private static void string(ByteArrayOutputStream out, String s) {
+      long bits = 0;
+      for (int i = 0; i < s.length(); i++) {
+        bits += CODE_LENGTHS[s.charAt(i) & 0xff];
+      }
+      int huffmanLength = (int) ((bits + 7) / 8);
+      if (huffmanLength >= s.length()) {
+        integer(out, 0x00, 7, s.length());
+        for (int i = 0; i < s.length(); i++) {
+          out.write(s.charAt(i));
+        }
+        return;
+      }
+      integer(out, 0x80, 7, huffmanLength);
+      long buffer = 0;
+      int buffered = 0;
+      for (int i = 0; i < s.length(); i++) {
+        int symbol = s.charAt(i) & 0xff;
+        buffer = (buffer << CODE_LENGTHS[symbol]) | CODES[symbol];
+        buffered += CODE_LENGTHS[symbol];
+        while (buffered >= 8) {
+          buffered -= 8;
+          out.write((int) (buffer >>> buffered));
+        }
+      }
+      if (buffered > 0) {
+        // padded with the most significant bits of EOS, all ones
+        out.write((int) ((buffer << (8 - buffered)) | (0xff >>> buffered)));
+      }
+    }
+  }
+
+  /**
+   * Decodes a Huffman coded string
+   * @throws CompressionError for EOS in the string or bad padding
+   */
+  static String huffmanDecode(byte[] data, int offset, int length) throws CompressionError {
+    StringBuilder out = new StringBuilder(length * 8 / 5);
+    int code = 0;
+    int bits = 0;
+    for (int i = offset; i < offset + length; i++) {
+      int b = data[i] & 0xff;
+      for (int bit = 7; bit >= 0; bit--) {
+        code = (code << 1) | ((b >>> bit) & 1);
+        bits++;
+        int n = code - FIRST_CODE[bits];
+        if (n >= 0 && n < COUNT[bits]) {
+          int symbol = SYMBOLS[FIRST_SYMBOL[bits] + n];
+          if (symbol == 256) {
+            throw new CompressionError("EOS in Huffman string");
+          }
+          out.append((char) symbol);
+          code = 0;
+          bits = 0;
+        } else if (bits == 30) {
+          throw new CompressionError("Bad Huffman code");
+        }
+      }
+    }
+    // at most 7 bits of padding, and they must be a prefix of EOS (all ones)
+    if (bits > 7 || code != (1 << bits) - 1) {
+      throw new CompressionError("Bad Huffman padding");
+    }
+    return out.toString();
+  }
+}
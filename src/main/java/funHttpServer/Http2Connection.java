@@ -0,0 +1,1240 @@
+package funHttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * HTTP/2 over cleartext (h2c) on one connection, for clients that open with
+ * the HTTP/2 preface (prior knowledge) or ask to upgrade an HTTP/1.1 request
+ * with Upgrade: h2c.
+ *
+ * Requests arrive as streams, many at once on the connection, and each one
+ * goes through admission control and createResponse like an HTTP/1 request
+ * would. The thread serve runs on reads frames, decodes header blocks with
+ * HPACK and hands finished requests to the shard's workers, it never waits
+ * for a response. A writer thread sends the responses as they get ready, one
+ * frame from each stream in turn, so a large file does not hold up a small
+ * page behind it. DATA frames are cut to the flow control windows the client
+ * grants. What the client sends us is granted back right away, the body
+ * limit (fun.maxBodyBytes) bounds it instead.
+ *
+ * State both threads use is guarded by the connection's monitor, the writer
+ * waits on it for work.
+ */
+final class Http2Connection {
+
+  /** what an HTTP/2 client sends first; RequestParser takes up to the blank line */
+  private static final byte[] PREFACE = RequestParser.ascii("PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n");
+  private static final int PREFACE_REQUEST_BYTES = 18;
+
+  private static final byte[] SWITCHING_PROTOCOLS = RequestParser.ascii(
+      "HTTP/1.1 101 Switching Protocols\r\nConnection: Upgrade\r\nUpgrade: h2c\r\n\r\n");
+
+  // frame types
+  private static final int DATA = 0x0;
+  private static final int HEADERS = 0x1;
+  private static final int PRIORITY = 0x2;
+  private static final int RST_STREAM = 0x3;
+  private static final int SETTINGS = 0x4;
+  private static final int PUSH_PROMISE = 0x5;
+  private static final int PING = 0x6;
+  private static final int GOAWAY = 0x7;
+  private static final int WINDOW_UPDATE = 0x8;
+  private static final int CONTINUATION = 0x9;
+
+  // flags
+  private static final int END_STREAM = 0x1;
+  private static final int ACK = 0x1;
+  private static final int END_HEADERS = 0x4;
+  private static final int PADDED = 0x8;
+  private static final int PRIORITY_FLAG = 0x20;
+
+  // settings
+  private static final int HEADER_TABLE_SIZE = 0x1;
+  private static final int ENABLE_PUSH = 0x2;
+  private static final int MAX_CONCURRENT_STREAMS = 0x3;
+  private static final int INITIAL_WINDOW_SIZE = 0x4;
+  private static final int MAX_FRAME_SIZE = 0x5;
+  private static final int MAX_HEADER_LIST_SIZE = 0x6;
+
+  // error codes
+  private static final int NO_ERROR = 0x0;
+  private static final int PROTOCOL_ERROR = 0x1;
+  private static final int INTERNAL_ERROR = 0x2;
+  private static final int FLOW_CONTROL_ERROR = 0x3;
+  private static final int STREAM_CLOSED = 0x5;
+  private static final int FRAME_SIZE_ERROR = 0x6;
+  private static final int REFUSED_STREAM = 0x7;
+  private static final int COMPRESSION_ERROR = 0x9;
+  private static final int ENHANCE_YOUR_CALM = 0xb;
+
+  /** largest frame payload we take, the protocol default */
+  private static final int MAX_FRAME = 16_384;
+
+  /** largest DATA payload we send, if the client takes frames that large */
+  private static final int MAX_DATA_FRAME = 64 * 1024;
+
+  private static final int DEFAULT_WINDOW = 65_535;
+  private static final long MAX_WINDOW = Integer.MAX_VALUE;
+
+  /** how often the writer checks deadlines while it has nothing to send, in ms */
+  private static final long CHECK_INTERVAL = 1000;
+
+  /** a protocol violation that ends the connection with GOAWAY */
+  private static final class ConnectionError extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    final int code;
+
+    ConnectionError(int code, String message) {
+      super(message);
+      this.code = code;
+    }
+  }
+
+  /** One request and its response */
+  private static final class Stream {
+    final int id;
+
+    /** bytes we may still send on it, from the client's flow control */
+    long window;
+
+    /** reader only: the request and its body while DATA frames arrive */
+    HttpRequest request;
+    ByteArrayOutputStream body;
+    long contentLength = -1;
+    long startNanos;
+
+    /** the client has not ended its side yet */
+    boolean receiving;
+
+    /** a response has been handed over, maybe an early error */
+    boolean responded;
+    HttpResponse response;
+    boolean headersSent;
+
+    /** the writer is working on it outside the lock */
+    boolean writing;
+
+    /** the producer has nothing new, and whether it woke us since */
+    boolean parked;
+    boolean woken;
+
+    /** closed by RST_STREAM, either way */
+    boolean reset;
+
+    Stream(int id, long window) {
+      this.id = id;
+      this.window = window;
+    }
+  }
+
+  private final WebServer app;
+  private final ServerConfig config;
+  private final SocketChannel channel;
+  private final Shard shard;
+
+  // reader thread
+  private ByteBuffer in;
+  private final Hpack.Decoder decoder = new Hpack.Decoder();
+  private boolean settingsReceived;
+  private int served;
+
+  /** header block being received, CONTINUATION frames add to it */
+  private byte[] block = new byte[1024];
+  private int blockLength;
+  private int blockStream;
+  private boolean blockEndStream;
+  private long blockStartNanos;
+
+  /** highest stream the client opened, written by the reader */
+  private volatile int lastStreamId;
+  private volatile long lastActiveNanos = System.nanoTime();
+
+  // writer thread
+  private final Hpack.Encoder encoder = new Hpack.Encoder();
+  private int cursor;
+
+  // guarded by this
+  private final LinkedHashMap<Integer, Stream> streams = new LinkedHashMap<>();
+  private final ArrayDeque<ByteBuffer> control = new ArrayDeque<>();
+  private long window = DEFAULT_WINDOW;
+  private long initialWindow = DEFAULT_WINDOW;
+  private int maxFrame = MAX_FRAME;
+  private int peerTableSize = Hpack.TABLE_SIZE;
+
+  /** no new streams, the connection closes once the open ones are answered */
+  private boolean goingAway;
+
+  /** a connection error was found, only the GOAWAY is still sent */
+  private boolean failed;
+
+  /** the writer is gone, so is the connection */
+  private boolean closed;
+
+  /**
+   * @param channel the connection, in blocking mode
+   * @param shard the shard whose workers run the handlers
+   */
+  Http2Connection(WebServer app, ServerConfig config, SocketChannel channel, Shard shard) {
+    this.app = app;
+    this.config = config;
+    this.channel = channel;
+    this.shard = shard;
+  }
+
+  /**
+   * Serves the connection on the calling thread until it closes
+   * @param first the request that started HTTP/2: the preface ("PRI"), or
+   *        an HTTP/1.1 request with Upgrade: h2c, which becomes stream 1
+   * @param received bytes read after that request
+   */
+  void serve(HttpRequest first, byte[] received) throws IOException {
+    boolean upgrade = !"PRI".equals(first.method);
+    if (upgrade) {
+      writeFully(ByteBuffer.wrap(SWITCHING_PROTOCOLS));
+    }
+    in = ByteBuffer.allocate(Math.max(9 + MAX_FRAME, received.length));
+    in.put(received).flip();
+    queue(settingsFrame());
+    if (upgrade) {
+      upgraded(first);
+    }
+
+    Thread writer = new Thread(this::write, Thread.currentThread().getName() + "-writer");
+    writer.setDaemon(true);
+    writer.start();
+    try {
+      read(upgrade ? 0 : PREFACE_REQUEST_BYTES);
+    } finally {
+      synchronized (this) {
+        goingAway = true;
+        notifyAll();
+      }
+      while (writer.isAlive()) {
+        try {
+          writer.join();
+        } catch (InterruptedException e) {
+          channel.close();
+        }
+      }
+    }
+  }
+
+  /**
+   * Upgrade: the client's settings came in the HTTP2-Settings header, and
+   * the request is answered on stream 1
+   */
+  private void upgraded(HttpRequest request) throws IOException {
+    try {
+      byte[] settings = Base64.getUrlDecoder().decode(request.header("HTTP2-Settings").trim());
+      if (settings.length % 6 == 0) {
+        applySettings(settings, 0, settings.length);
+      }
+    } catch (IllegalArgumentException e) {
+      // ignored, the defaults apply
+    }
+    Stream stream = new Stream(1, initialWindow);
+    stream.startNanos = request.startNanos;
+    synchronized (this) {
+      streams.put(1, stream);
+    }
+    lastStreamId = 1;
+    served = 1;
+    dispatch(stream, request);
+  }
+
+  private ByteBuffer settingsFrame() {
+    ByteBuffer payload = ByteBuffer.allocate(18);
+    payload.putShort((short) MAX_CONCURRENT_STREAMS).putInt(config.http2Streams);
+    payload.putShort((short) MAX_HEADER_LIST_SIZE).putInt(config.maxHeaderBytes);
+    payload.putShort((short) ENABLE_PUSH).putInt(0);
+    return frame(SETTINGS, 0, 0, payload.array(), 0, payload.capacity());
+  }
+
+  // ---- reading, on the serve thread
+
+  /**
+   * Reads frames until the client closes, a connection error, or the writer
+   * closes the connection
+   * @param prefaceRead bytes of the preface the request parser already took
+   */
+  private void read(int prefaceRead) {
+    try {
+      if (!fill(PREFACE.length - prefaceRead)) {
+        return;
+      }
+      for (int i = prefaceRead; i < PREFACE.length; i++) {
+        if (in.get() != PREFACE[i]) {
+          throw new ConnectionError(PROTOCOL_ERROR, "Bad connection preface");
+        }
+      }
+      while (readFrame()) {
+        // next frame
+      }
+      // the client is done sending, requests it did not finish never will
+      synchronized (this) {
+        streams.values().removeIf(s -> s.receiving && !s.responded);
+        notifyAll();
+      }
+    } catch (ConnectionError e) {
+      fail(e.code, e.getMessage());
+    } catch (Hpack.CompressionError e) {
+      fail(COMPRESSION_ERROR, e.getMessage());
+    } catch (IOException e) {
+      synchronized (this) {
+        closed = true;
+        notifyAll();
+      }
+    }
+  }
+
+  /** reads until at least n bytes are buffered, false at the end of the stream */
+  private boolean fill(int n) throws IOException {
+    while (in.remaining() < n) {
+      in.compact();
+      int read = channel.read(in);
+      in.flip();
+      if (read < 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private boolean readFrame() throws IOException {
+    if (!fill(9)) {
+      return false;
+    }
+    byte[] b = in.array();
+    int p = in.position();
+    int length = (b[p] & 0xff) << 16 | (b[p + 1] & 0xff) << 8 | (b[p + 2] & 0xff);
+    if (length > MAX_FRAME) {
+      throw new ConnectionError(FRAME_SIZE_ERROR, "Frame of " + length + " bytes");
+    }
+    if (!fill(9 + length)) {
+      return false;
+    }
+    p = in.position();
+    int type = b[p + 3] & 0xff;
+    int flags = b[p + 4] & 0xff;
+    int id = int32(b, p + 5) & 0x7fffffff;
+    int start = p + 9;
+    in.position(start + length);
+    lastActiveNanos = System.nanoTime();
+
+    if (!settingsReceived && type != SETTINGS) {
+      throw new ConnectionError(PROTOCOL_ERROR, "Expected SETTINGS first");
+    }
+    if (blockStream != 0 && type != CONTINUATION) {
+      throw new ConnectionError(PROTOCOL_ERROR, "Expected CONTINUATION");
+    }
+    switch (type) {
+      case DATA:
+        data(id, flags, b, start, length);
+        break;
+      case HEADERS:
+        headers(id, flags, b, start, length);
+        break;
+      case CONTINUATION:
+        if (blockStream == 0 || id != blockStream) {
+          throw new ConnectionError(PROTOCOL_ERROR, "Unexpected CONTINUATION");
+        }
+        appendBlock(b, start, length);
+        if ((flags & END_HEADERS) != 0) {
+          headerBlock();
+        }
+        break;
+      case PRIORITY:
+        if (id == 0) {
+          throw new ConnectionError(PROTOCOL_ERROR, "PRIORITY on stream 0");
+        }
+        if (length != 5) {
+          throw new ConnectionError(FRAME_SIZE_ERROR, "PRIORITY of " + length + " bytes");
+        }
+        break; // streams are served in turn, priorities are not used
+      case RST_STREAM:
+        resetByClient(id, length);
+        break;
+      case SETTINGS:
+        settings(id, flags, b, start, length);
+        break;
+      case PUSH_PROMISE:
+        throw new ConnectionError(PROTOCOL_ERROR, "Clients cannot push");
+      case PING:
+        if (id != 0) {
+          throw new ConnectionError(PROTOCOL_ERROR, "PING on a stream");
+        }
+        if (length != 8) {
+          throw new ConnectionError(FRAME_SIZE_ERROR, "PING of " + length + " bytes");
+        }
+        if ((flags & ACK) == 0) {
+          queue(frame(PING, ACK, 0, b, start, 8));
+        }
+        break;
+      case GOAWAY:
+        if (id != 0) {
+          throw new ConnectionError(PROTOCOL_ERROR, "GOAWAY on a stream");
+        }
+        synchronized (this) {
+          goingAway = true;
+          notifyAll();
+        }
+        break;
+      case WINDOW_UPDATE:
+        windowUpdate(id, b, start, length);
+        break;
+      default:
+        break; // unknown frame types are ignored
+    }
+    return true;
+  }
+
+  private void data(int id, int flags, byte[] b, int start, int length) throws IOException {
+    if (id == 0 || id > lastStreamId) {
+      throw new ConnectionError(PROTOCOL_ERROR, "DATA on an idle stream");
+    }
+    int end = start + length;
+    if ((flags & PADDED) != 0) {
+      end = unpad(b, start, length);
+      start++;
+    }
+    if (length > 0) {
+      // the credit goes back right away, the body limit bounds what we hold
+      queue(windowUpdate(0, length));
+    }
+    Stream stream;
+    boolean receiving;
+    synchronized (this) {
+      stream = streams.get(id);
+      receiving = stream != null && stream.receiving;
+    }
+    if (stream == null) {
+      return; // closed on our side, e.g. answered early
+    }
+    if (!receiving) {
+      streamError(stream, STREAM_CLOSED);
+      return;
+    }
+    boolean endStream = (flags & END_STREAM) != 0;
+    if (stream.body != null) {
+      int n = end - start;
+      if (stream.body.size() + n > config.maxBodyBytes) {
+        stream.body = null;
+        respond(stream, WebServer.errorResponse("413 Payload Too Large",
+            "Request body is too large"));
+      } else {
+        stream.body.write(b, start, n);
+      }
+    }
+    if (endStream) {
+      endOfRequest(stream);
+    } else if (length > 0) {
+      queue(windowUpdate(id, length));
+    }
+  }
+
+  private void headers(int id, int flags, byte[] b, int start, int length) throws IOException {
+    if (id == 0 || id % 2 == 0) {
+      throw new ConnectionError(PROTOCOL_ERROR, "HEADERS on stream " + id);
+    }
+    int end = start + length;
+    if ((flags & PADDED) != 0) {
+      end = unpad(b, start, length);
+      start++;
+    }
+    if ((flags & PRIORITY_FLAG) != 0) {
+      start += 5;
+      if (start > end) {
+        throw new ConnectionError(FRAME_SIZE_ERROR, "HEADERS too short");
+      }
+    }
+    blockStream = id;
+    blockEndStream = (flags & END_STREAM) != 0;
+    blockStartNanos = System.nanoTime();
+    blockLength = 0;
+    appendBlock(b, start, end - start);
+    if ((flags & END_HEADERS) != 0) {
+      headerBlock();
+    }
+  }
+
+  /** end of the payload without the padding, the pad length is at start */
+  private static int unpad(byte[] b, int start, int length) throws ConnectionError {
+    int pad = length == 0 ? 0 : b[start] & 0xff;
+    if (length == 0 || pad >= length) {
+      throw new ConnectionError(PROTOCOL_ERROR, "Bad padding");
+    }
+    return start + length - pad;
+  }
+
+  private void appendBlock(byte[] b, int start, int length) throws ConnectionError {
+    if (blockLength + length > Math.max(4 * config.maxHeaderBytes, MAX_FRAME)) {
+      throw new ConnectionError(ENHANCE_YOUR_CALM, "Header block too large");
+    }
+    if (blockLength + length > block.length) {
+      block = Arrays.copyOf(block, Math.max(block.length * 2, blockLength + length));
+    }
+    System.arraycopy(b, start, block, blockLength, length);
+    blockLength += length;
+  }
+
+  /** a complete header block: a new request, or trailers */
+  private void headerBlock() throws IOException {
+    int id = blockStream;
+    blockStream = 0;
+    if (id <= lastStreamId) {
+      Stream stream;
+      synchronized (this) {
+        stream = streams.get(id);
+      }
+      decoder.decode(block, 0, blockLength, (name, value) -> { });
+      if (stream == null) {
+        throw new ConnectionError(STREAM_CLOSED, "HEADERS on closed stream " + id);
+      } else if (!stream.receiving || !blockEndStream) {
+        streamError(stream, stream.receiving ? PROTOCOL_ERROR : STREAM_CLOSED);
+      } else {
+        endOfRequest(stream); // trailers, they are not used
+      }
+      return;
+    }
+    lastStreamId = id;
+    RequestHeaders fields = new RequestHeaders();
+    decoder.decode(block, 0, blockLength, fields);
+
+    Stream stream = new Stream(id, 0);
+    stream.startNanos = blockStartNanos;
+    boolean refused;
+    synchronized (this) {
+      refused = goingAway || streams.size() >= config.http2Streams;
+      if (!refused) {
+        stream.window = initialWindow;
+        stream.receiving = !blockEndStream;
+        streams.put(id, stream);
+      }
+    }
+    if (refused) {
+      queue(rstStream(id, REFUSED_STREAM));
+      return;
+    }
+    if (++served >= config.maxRequestsPerConnection) {
+      // like Connection: close after the last one, the client opens another
+      synchronized (this) {
+        goingAway = true;
+      }
+      queue(goAway(id, NO_ERROR, ""));
+    }
+
+    if (fields.malformed != null || !fields.complete()) {
+      streamError(stream, PROTOCOL_ERROR);
+      return;
+    }
+    if (fields.tooLarge != null) {
+      respond(stream, WebServer.errorResponse("431 Request Header Fields Too Large",
+          fields.tooLarge));
+      return;
+    }
+    if (fields.contentLength > config.maxBodyBytes) {
+      respond(stream, WebServer.errorResponse("413 Payload Too Large",
+          "Request body is too large"));
+      return;
+    }
+    stream.request = fields.request(blockLength, blockStartNanos);
+    stream.contentLength = fields.contentLength;
+    stream.body = new ByteArrayOutputStream(
+        (int) Math.max(0, Math.min(fields.contentLength, MAX_FRAME)));
+    if (blockEndStream) {
+      endOfRequest(stream);
+    }
+  }
+
+  /** the client ended the stream, the request can be answered */
+  private void endOfRequest(Stream stream) throws IOException {
+    synchronized (this) {
+      stream.receiving = false;
+      if (stream.responded || stream.request == null) {
+        return; // answered early, or refused
+      }
+    }
+    HttpRequest request = stream.request;
+    if (stream.body == null) {
+      return;
+    }
+    if (stream.contentLength >= 0 && stream.contentLength != stream.body.size()) {
+      streamError(stream, PROTOCOL_ERROR);
+      return;
+    }
+    if (stream.body.size() > 0) {
+      request.body = stream.body.toByteArray();
+    }
+    stream.body = null;
+    dispatch(stream, request);
+  }
+
+  private void resetByClient(int id, int length) throws IOException {
+    if (id == 0 || id > lastStreamId) {
+      throw new ConnectionError(PROTOCOL_ERROR, "RST_STREAM on an idle stream");
+    }
+    if (length != 4) {
+      throw new ConnectionError(FRAME_SIZE_ERROR, "RST_STREAM of " + length + " bytes");
+    }
+    HttpResponse abandoned = null;
+    synchronized (this) {
+      Stream stream = streams.remove(id);
+      if (stream != null) {
+        stream.reset = true;
+        stream.receiving = false;
+        if (stream.response != null && !stream.writing) {
+          abandoned = stream.response;
+        }
+        notifyAll();
+      }
+    }
+    if (abandoned != null) {
+      abandoned.close();
+    }
+  }
+
+  private void settings(int id, int flags, byte[] b, int start, int length) throws IOException {
+    if (id != 0) {
+      throw new ConnectionError(PROTOCOL_ERROR, "SETTINGS on a stream");
+    }
+    if ((flags & ACK) != 0) {
+      if (length != 0) {
+        throw new ConnectionError(FRAME_SIZE_ERROR, "SETTINGS ack with a payload");
+      }
+      return;
+    }
+    if (length % 6 != 0) {
+      throw new ConnectionError(FRAME_SIZE_ERROR, "SETTINGS of " + length + " bytes");
+    }
+    applySettings(b, start, length);
+    settingsReceived = true;
+    queue(frame(SETTINGS, ACK, 0, b, 0, 0));
+  }
+
+  private synchronized void applySettings(byte[] b, int start, int length)
+      throws ConnectionError {
+    for (int i = start; i < start + length; i += 6) {
+      int id = (b[i] & 0xff) << 8 | (b[i + 1] & 0xff);
+      long value = int32(b, i + 2) & 0xffffffffL;
+      switch (id) {
+        case HEADER_TABLE_SIZE:
+          peerTableSize = (int) Math.min(value, Integer.MAX_VALUE);
+          break;
+        case ENABLE_PUSH:
+          if (value > 1) {
+            throw new ConnectionError(PROTOCOL_ERROR, "Bad ENABLE_PUSH");
+          }
+          break;
+        case INITIAL_WINDOW_SIZE:
+          if (value > MAX_WINDOW) {
+            throw new ConnectionError(FLOW_CONTROL_ERROR, "Bad INITIAL_WINDOW_SIZE");
+          }
+          // applies to the streams that are open too
+          for (Stream stream : streams.values()) {
+            stream.window += value - initialWindow;
+            if (stream.window > MAX_WINDOW) {
+              throw new ConnectionError(FLOW_CONTROL_ERROR, "Window too large");
+            }
+          }
+          initialWindow = value;
+          break;
+        case MAX_FRAME_SIZE:
+          if (value < MAX_FRAME || value > 0xffffff) {
+            throw new ConnectionError(PROTOCOL_ERROR, "Bad MAX_FRAME_SIZE");
+          }
+          maxFrame = (int) value;
+          break;
+        default:
+          break; // nothing to do for the others
+      }
+    }
+    notifyAll();
+  }
+
+  private void windowUpdate(int id, byte[] b, int start, int length) throws IOException {
+    if (length != 4) {
+      throw new ConnectionError(FRAME_SIZE_ERROR, "WINDOW_UPDATE of " + length + " bytes");
+    }
+    int increment = int32(b, start) & 0x7fffffff;
+    Stream stream = null;
+    synchronized (this) {
+      if (id == 0) {
+        if (increment == 0 || window + increment > MAX_WINDOW) {
+          throw new ConnectionError(increment == 0 ? PROTOCOL_ERROR : FLOW_CONTROL_ERROR,
+              "Bad WINDOW_UPDATE");
+        }
+        window += increment;
+      } else if (id > lastStreamId) {
+        throw new ConnectionError(PROTOCOL_ERROR, "WINDOW_UPDATE on an idle stream");
+      } else {
+        stream = streams.get(id);
+        if (stream != null && increment > 0 && stream.window + increment <= MAX_WINDOW) {
+          stream.window += increment;
+          stream = null;
+        }
+      }
+      notifyAll();
+    }
+    if (stream != null) {
+      streamError(stream, increment == 0 ? PROTOCOL_ERROR : FLOW_CONTROL_ERROR);
+    }
+  }
+
+  /** resets a stream the client got wrong, the connection carries on */
+  private void streamError(Stream stream, int code) {
+    HttpResponse abandoned = null;
+    synchronized (this) {
+      stream.reset = true;
+      stream.receiving = false;
+      streams.remove(stream.id);
+      if (stream.response != null && !stream.writing) {
+        abandoned = stream.response;
+      }
+      control.add(rstStream(stream.id, code));
+      notifyAll();
+    }
+    if (abandoned != null) {
+      abandoned.close();
+    }
+  }
+
+  /** ends the connection: GOAWAY goes out, then it is closed */
+  private synchronized void fail(int code, String message) {
+    control.add(goAway(lastStreamId, code, message));
+    failed = true;
+    notifyAll();
+  }
+
+  /**
+   * Collects the fields of a request header block and checks them: lower
+   * case names, the pseudo-headers first and each once, no connection
+   * specific headers
+   */
+  private final class RequestHeaders implements Hpack.Fields {
+    String method;
+    String scheme;
+    String path;
+    String authority;
+    boolean regularSeen;
+    boolean hostSeen;
+    long contentLength = -1;
+    long listSize;
+
+    /** why the request is malformed (a stream error), or null */
+    String malformed;
+
+    /** why the request gets 431, or null */
+    String tooLarge;
+
+    final ByteArrayOutputStream head = new ByteArrayOutputStream(256);
+    int[] offsets = new int[16 * 4];
+    int count;
+
+    @Override
+    public void field(String name, String value) {
+      listSize += name.length() + value.length() + 32;
+      if (listSize > config.maxHeaderBytes) {
+        tooLarge = "Request headers are larger than " + config.maxHeaderBytes + " bytes";
+      }
+      if (name.startsWith(":")) {
+        if (regularSeen) {
+          malformed = "Pseudo-header after the headers";
+        } else if (name.equals(":method") && method == null) {
+          method = value;
+        } else if (name.equals(":scheme") && scheme == null) {
+          scheme = value;
+        } else if (name.equals(":path") && path == null) {
+          path = value;
+        } else if (name.equals(":authority") && authority == null) {
+          authority = value;
+        } else {
+          malformed = "Unknown or repeated pseudo-header " + name;
+        }
+        return;
+      }
+      regularSeen = true;
+      for (int i = 0; i < name.length(); i++) {
+        if (name.charAt(i) >= 'A' && name.charAt(i) <= 'Z') {
+          malformed = "Upper case header name";
+        }
+      }
+      switch (name) {
+        case "connection":
+        case "keep-alive":
+        case "proxy-connection":
+        case "transfer-encoding":
+        case "upgrade":
+          malformed = "Connection specific header " + name;
+          return;
+        case "te":
+          if (!value.equals("trailers")) {
+            malformed = "TE other than trailers";
+          }
+          break;
+        case "content-length":
+          try {
+            contentLength = Long.parseLong(value);
+          } catch (NumberFormatException e) {
+            malformed = "Malformed content-length";
+          }
+          break;
+        case "host":
+          hostSeen = true;
+          break;
+        default:
+          break;
+      }
+      add(name, value);
+    }
+
+    private void add(String name, String value) {
+      if (count == RequestParser.MAX_HEADERS) {
+        tooLarge = "Too many headers";
+        return;
+      }
+      if (count * 4 == offsets.length) {
+        offsets = Arrays.copyOf(offsets, offsets.length * 2);
+      }
+      int o = count * 4;
+      offsets[o] = head.size();
+      head.writeBytes(name.getBytes(StandardCharsets.ISO_8859_1));
+      offsets[o + 1] = head.size();
+      offsets[o + 2] = head.size();
+      head.writeBytes(value.getBytes(StandardCharsets.ISO_8859_1));
+      offsets[o + 3] = head.size();
+      count++;
+    }
+
+    /** checks that the pseudo-headers a request needs are there */
+    private boolean complete() {
+      if (method == null || scheme == null || path == null || path.isEmpty()) {
+        malformed = "Missing pseudo-headers";
+        return false;
+      }
+      return true;
+    }
+
+    HttpRequest request(int headLength, long startNanos) {
+      if (authority != null && !hostSeen) {
+        add("host", authority);
+      }
+      HttpRequest request = new HttpRequest();
+      request.setHead(head.toByteArray(), offsets, count);
+      request.method = method;
+      // the target without the leading "/", like the HTTP/1 parser hands it out
+      request.target = path.startsWith("/") ? path.substring(1) : path;
+      request.version = "HTTP/2.0";
+      request.keepAlive = true;
+      request.headLength = headLength;
+      request.startNanos = startNanos;
+      return request;
+    }
+  }
+
+  // ---- handling, on the workers
+
+  private void dispatch(Stream stream, HttpRequest request) {
+    CompletableFuture<Boolean> turn = app.admission.enter();
+    if (turn.isDone()) {
+      admit(stream, request, turn.join());
+    } else {
+      turn.thenAccept(admitted -> admit(stream, request, admitted));
+    }
+  }
+
+  private void admit(Stream stream, HttpRequest request, boolean admitted) {
+    if (!admitted) {
+      respond(stream, app.overloaded(request));
+      return;
+    }
+    try {
+      shard.workers.execute(() ->
+          app.admitted(request).thenAccept(response -> respond(stream, response)));
+    } catch (RejectedExecutionException e) {
+      app.admission.exit();
+      respond(stream, app.overloaded(request));
+    }
+  }
+
+  /** hands a stream its response, the writer sends it */
+  private void respond(Stream stream, HttpResponse response) {
+    synchronized (this) {
+      if (!closed && !stream.reset && !stream.responded) {
+        stream.responded = true;
+        stream.response = response;
+        notifyAll();
+        return;
+      }
+    }
+    response.close();
+  }
+
+  /** a streaming handler wrote more after the writer ran out */
+  private synchronized void wake(Stream stream) {
+    stream.parked = false;
+    stream.woken = true;
+    notifyAll();
+  }
+
+  private synchronized void queue(ByteBuffer frame) {
+    control.add(frame);
+    notifyAll();
+  }
+
+  // ---- writing, on the writer thread
+
+  /**
+   * Sends control frames as the reader queues them, and response frames
+   * from the streams in turn, until the connection ends. Closes it then.
+   */
+  private void write() {
+    // a DATA frame: its header and its payload, from the BufferPool
+    ByteBuffer[] data = {BufferPool.acquire(9), BufferPool.acquire(MAX_DATA_FRAME)};
+    try {
+      while (true) {
+        List<ByteBuffer> frames = null;
+        Stream next;
+        int budget = 0;
+        synchronized (this) {
+          while (true) {
+            if (closed) {
+              return;
+            }
+            if (!control.isEmpty()) {
+              frames = new ArrayList<>(control);
+              control.clear();
+              next = null;
+              break;
+            }
+            if (failed || (goingAway && streams.isEmpty())) {
+              return;
+            }
+            next = next();
+            if (next != null) {
+              next.writing = true;
+              if (next.headersSent) {
+                // taken from the windows now, what is not used goes back
+                budget = (int) Math.min(Math.min(window, next.window),
+                    Math.min(maxFrame, MAX_DATA_FRAME));
+                window -= budget;
+                next.window -= budget;
+              }
+              break;
+            }
+            if (!checkDeadlines()) {
+              wait(CHECK_INTERVAL);
+            }
+          }
+        }
+        if (frames != null) {
+          for (ByteBuffer frame : frames) {
+            writeFully(frame);
+          }
+        } else if (!next.headersSent) {
+          sendHeaders(next);
+        } else {
+          sendData(next, budget, data);
+        }
+      }
+    } catch (IOException | InterruptedException e) {
+      // the connection is gone
+    } finally {
+      List<HttpResponse> open = new ArrayList<>();
+      synchronized (this) {
+        closed = true;
+        for (Stream stream : streams.values()) {
+          if (stream.response != null) {
+            open.add(stream.response);
+          }
+        }
+        streams.clear();
+        notifyAll();
+      }
+      for (HttpResponse response : open) {
+        response.close();
+      }
+      BufferPool.release(data[0]);
+      BufferPool.release(data[1]);
+      try {
+        channel.close(); // the reader stops too
+      } catch (IOException e) {
+        // already gone
+      }
+    }
+  }
+
+  /** the next stream with something to send, in turn after the last one */
+  private Stream next() {
+    Stream first = null;
+    for (Stream stream : streams.values()) {
+      if (stream.response == null || stream.writing) {
+        continue;
+      }
+      if (stream.headersSent && (stream.parked || window <= 0 || stream.window <= 0)) {
+        continue;
+      }
+      if (stream.id > cursor) {
+        cursor = stream.id;
+        return stream;
+      }
+      if (first == null) {
+        first = stream;
+      }
+    }
+    if (first != null) {
+      cursor = first.id;
+    }
+    return first;
+  }
+
+  /**
+   * Goes away from a connection that stayed idle too long, and answers 408
+   * to requests whose body is not in by the body timeout
+   * @return whether there is something new to send
+   */
+  private boolean checkDeadlines() {
+    long now = System.nanoTime();
+    if (streams.isEmpty()) {
+      if (now - lastActiveNanos > config.idleTimeoutMillis * 1_000_000L) {
+        goingAway = true;
+        control.add(goAway(lastStreamId, NO_ERROR, ""));
+        return true;
+      }
+      return false;
+    }
+    boolean answered = false;
+    for (Stream stream : streams.values()) {
+      if (config.bodyTimeoutMillis > 0 && stream.receiving && !stream.responded
+          && now - stream.startNanos > config.bodyTimeoutMillis * 1_000_000L) {
+        RequestParser.BadRequest timedOut = RequestParser.timedOut();
+        respond(stream, WebServer.errorResponse(timedOut.status, timedOut.getMessage()));
+        answered = true;
+      }
+    }
+    return answered;
+  }
+
+  private void sendHeaders(Stream stream) throws IOException {
+    HttpResponse response = stream.response;
+    int frameSize;
+    synchronized (this) {
+      encoder.maxTableSize(peerTableSize);
+      frameSize = maxFrame;
+    }
+    ByteArrayOutputStream block = new ByteArrayOutputStream(256);
+    encoder.status(block, response.status);
+    response.fields((name, value) -> encoder.field(block, name, value,
+        !name.equals("content-length") && !name.equals("content-range")));
+    response.prepareHttp2(block.size());
+    boolean body = response.hasBody();
+
+    byte[] bytes = block.toByteArray();
+    int type = HEADERS;
+    int offset = 0;
+    do {
+      int length = Math.min(frameSize, bytes.length - offset);
+      boolean last = offset + length == bytes.length;
+      int flags = (last ? END_HEADERS : 0) | (type == HEADERS && !body ? END_STREAM : 0);
+      writeFully(frame(type, flags, stream.id, bytes, offset, length));
+      offset += length;
+      type = CONTINUATION;
+    } while (offset < bytes.length);
+
+    if (!body) {
+      finish(stream);
+      return;
+    }
+    if (response.isStreaming()) {
+      try {
+        response.startProducer(shard.workers, () -> wake(stream));
+      } catch (RejectedExecutionException e) {
+        abandon(stream);
+        return;
+      }
+    }
+    HttpResponse abandoned = null;
+    synchronized (this) {
+      stream.headersSent = true;
+      stream.writing = false;
+      if (stream.reset) {
+        abandoned = response;
+      }
+    }
+    if (abandoned != null) {
+      abandoned.close();
+    }
+  }
+
+  /**
+   * Sends the next DATA frame of a stream, as much of the body as the
+   * budget and the response have
+   */
+  private void sendData(Stream stream, int budget, ByteBuffer[] frame) throws IOException {
+    HttpResponse response = stream.response;
+    ByteBuffer data = frame[1];
+    data.clear().limit(budget);
+    boolean done;
+    boolean stalled;
+    try {
+      done = response.writeTo(new Payload(data));
+      stalled = !done && response.stalled();
+    } catch (IOException | RuntimeException e) {
+      synchronized (this) {
+        window += budget;
+      }
+      abandon(stream);
+      return;
+    }
+    int length = data.position();
+    if (length > 0 || done) {
+      data.flip();
+      ByteBuffer header = frame[0].clear();
+      putFrameHeader(header, length, DATA, done ? END_STREAM : 0, stream.id);
+      header.flip();
+      while (data.hasRemaining() || header.hasRemaining()) {
+        channel.write(frame);
+      }
+    }
+    HttpResponse abandoned = null;
+    synchronized (this) {
+      window += budget - length;
+      stream.window += budget - length;
+      if (stalled && !stream.woken) {
+        stream.parked = true; // until wake
+      }
+      stream.woken = false;
+      if (!done) {
+        stream.writing = false;
+        if (stream.reset) {
+          abandoned = response;
+        }
+      }
+    }
+    if (abandoned != null) {
+      abandoned.close();
+    } else if (done) {
+      finish(stream);
+    }
+  }
+
+  /** the whole response is out */
+  private void finish(Stream stream) throws IOException {
+    boolean stillReceiving;
+    synchronized (this) {
+      streams.remove(stream.id);
+      stillReceiving = stream.receiving;
+      stream.receiving = false;
+      notifyAll();
+    }
+    if (stillReceiving) {
+      // answered before the client was done sending, it can stop now
+      writeFully(rstStream(stream.id, NO_ERROR));
+    }
+    app.responded(stream.response);
+    shard.requests.increment();
+    stream.response.close();
+  }
+
+  /** the response failed halfway (e.g. its handler threw), the stream is reset */
+  private void abandon(Stream stream) throws IOException {
+    synchronized (this) {
+      streams.remove(stream.id);
+      stream.reset = true;
+      notifyAll();
+    }
+    stream.response.close();
+    writeFully(rstStream(stream.id, INTERNAL_ERROR));
+  }
+
+  private void writeFully(ByteBuffer buffer) throws IOException {
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+  }
+
+  /**
+   * What writeTo writes a body into: the payload of one DATA frame, it
+   * takes as much as there is room for
+   */
+  private static final class Payload implements WritableByteChannel {
+    private final ByteBuffer frame;
+
+    Payload(ByteBuffer frame) {
+      this.frame = frame;
+    }
+
+    @Override
+    public int write(ByteBuffer src) {
+      int n = Math.min(src.remaining(), frame.remaining());
+      int limit = src.limit();
+      src.limit(src.position() + n);
+      frame.put(src);
+      src.limit(limit);
+      return n;
+    }
+
+    @Override
+    public boolean isOpen() {
+      return true;
+    }
+
+    @Override
+    public void close() {
+      // the frame is sent by the writer
+    }
+  }
+
+  // ---- frames
+
+  private static ByteBuffer frame(int type, int flags, int stream, byte[] payload, int offset,
+      int length) {
+    ByteBuffer frame = ByteBuffer.allocate(9 + length);
+    putFrameHeader(frame, length, type, flags, stream);
+    frame.put(payload, offset, length);
+    return frame.flip();
+  }
+
+  private static void putFrameHeader(ByteBuffer out, int length, int type, int flags,
+      int stream) {
+    out.put((byte) (length >>> 16)).put((byte) (length >>> 8)).put((byte) length);
+    out.put((byte) type).put((byte) flags).putInt(stream);
+  }
+
+  private static ByteBuffer rstStream(int stream, int code) {
+    ByteBuffer frame = ByteBuffer.allocate(13);
+    putFrameHeader(frame, 4, RST_STREAM, 0, stream);
+    return frame.putInt(code).flip();
+  }
+
+  private static ByteBuffer windowUpdate(int stream, int increment) {
+    ByteBuffer frame = ByteBuffer.allocate(13);
+    putFrameHeader(frame, 4, WINDOW_UPDATE, 0, stream);
+    return frame.putInt(increment).flip();
+  }
+
+  private static ByteBuffer goAway(int lastStream, int code, String message) {
+    byte[] debug = message == null ? new byte[0] : message.getBytes(StandardCharsets.UTF_8);
+    ByteBuffer frame = ByteBuffer.allocate(17 + debug.length);
+    putFrameHeader(frame, 8 + debug.length, GOAWAY, 0, 0);
+    return frame.putInt(lastStream).putInt(code).put(debug).flip();
+  }
+
+  private static int int32(byte[] b, int p) {
+    return (b[p] & 0xff) << 24 | (b[p + 1] & 0xff) << 16 | (b[p + 2] & 0xff) << 8
+        | (b[p + 3] & 0xff);
+  }
+}
@@ -0,0 +1,140 @@
+package funHttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * One parsed HTTP request: the request line, the headers and the body (if the
+ * client sent a Content-Length).
+ *
+ * Requests are filled in by a RequestParser and share its buffer: header
+ * values stay as bytes until header() is called for them. A request is only
+ * valid until the parser moves on to the next one.
+ */
+class HttpRequest {
+
+  private static final byte[] NO_BODY = new byte[0];
+
+  /** request method, e.g. GET */
+  String method;
+
+  /** request target without the leading "/", e.g. "multiply?num1=3&num2=4" */
+  String target;
+
+  /** target up to the "?", set by the Router, e.g. "multiply" */
+  String path;
+
+  /** target after the "?", set by the Router, null if there is none */
+  String query;
+
+  /** for prefix routes, the part of the path after the prefix, e.g. "README.md" */
+  String subPath;
+
+  /** the client takes gzip and it is enabled, set by the WebServer */
+  boolean acceptsGzip;
+
+  /** name of the matched route for /metrics, set by the Router, e.g. "/file/" */
+  String route;
+
+  /** System.nanoTime() when the first byte of this request was parsed */
+  long startNanos;
+
+  /** bytes of the request line and headers, including the blank line */
+  int headLength;
+
+  /** protocol version from the request line, e.g. HTTP/1.1 */
+  String version;
+
+  /** request body, empty if there is none */
+  byte[] body = NO_BODY;
+
+  /**
+   * Whether the client wants the connection kept open after this request.
+   * HTTP/1.1 defaults to keep-alive, HTTP/1.0 only keeps alive on request.
+   * A chunked body is decoded by the parser and keeps the connection open,
+   * except from an HTTP/1.0 client, which has no chunked encoding.
+   */
+  boolean keepAlive;
+
+  /** buffer holding the request head: the parser's, or a copy for a chunked body */
+  private byte[] head;
+
+  /** per header: name start, name end, value start, value end in head */
+  private int[] headerOffsets;
+  private int headerCount;
+
+  /**
+   * Reads the next request from a stream, e.g. createResponse(InputStream)
+   * @param in input stream, positioned at the start of a request
+   * @return the request or null if the stream ended before a request started
+   * @throws IOException if reading fails or the request is malformed
+   */
+  static HttpRequest read(InputStream in) throws IOException {
+    return new RequestParser(RequestParser.DEFAULT_MAX_HEAD_BYTES,
+        RequestParser.DEFAULT_MAX_BODY_BYTES).read(in);
+  }
+
+  void setHead(byte[] head, int[] headerOffsets, int headerCount) {
+    this.head = head;
+    this.headerOffsets = headerOffsets;
+    this.headerCount = headerCount;
+  }
+
+  void reset() {
+    method = null;
+    target = null;
+    path = null;
+    query = null;
+    subPath = null;
+    acceptsGzip = false;
+    route = null;
+    startNanos = 0;
+    headLength = 0;
+    version = null;
+    body = NO_BODY;
+    keepAlive = false;
+    head = null;
+    headerCount = 0;
+  }
+
+  /**
+   * Gets a header value. Only the value asked for is turned into a String.
+   * @param name header name, any case
+   * @return the value of the first header with that name, or null
+   */
+  String header(String name) {
+    for (int i = 0; i < headerCount; i++) {
+      int o = i * 4;
+      if (nameMatches(headerOffsets[o], headerOffsets[o + 1], name)) {
+        return new String(head, headerOffsets[o + 2], headerOffsets[o + 3] - headerOffsets[o + 2],
+            StandardCharsets.ISO_8859_1);
+      }
+    }
+    return null;
+  }
+
+  /** number of headers */
+  int headerCount() {
+    return headerCount;
+  }
+
+  private boolean nameMatches(int start, int end, String name) {
+    if (end - start != name.length()) {
+      return false;
+    }
+    for (int i = 0; i < name.length(); i++) {
+      if (Character.toLowerCase((char) head[start + i]) != Character.toLowerCase(name.charAt(i))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Whether the client wants the connection kept open after this request
+   */
+  boolean keepAlive() {
+    return keepAlive;
+  }
+}
@@ -0,0 +1,750 @@
+package funHttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.Executor;
+
+/**
+ * A response ready to be written: status line, content type and a body that
+ * is either a buffer in memory (a cached or mapped file, or generated text),
+ * regions of a file on disk, or a Source that produces it while it is being
+ * sent. File bodies are sent with
+ * FileChannel.transferTo, which lets the kernel copy straight from the page
+ * cache to the socket, so they never pass through the Java heap.
+ *
+ * Bodies whose length is not known up front come from a Producer, a handler
+ * that writes into a ResponseWriter after the headers have gone out. They are
+ * sent with Transfer-Encoding: chunked, everything else gets a Content-Length.
+ *
+ * writeTo keeps track of how much has been written, so the same object works
+ * for a blocking socket (call until done) and for a non-blocking one (call
+ * again whenever the socket is writable). The head is assembled from
+ * pre-encoded lines by ResponseHead and goes out in the same gathering write
+ * as the start of an in-memory or generated body.
+ */
+class HttpResponse {
+
+  /**
+   * Body produced while it is written, e.g. rendered shapes. The length must
+   * be known up front for the Content-Length header.
+   */
+  interface Source {
+    /** number of bytes fill will produce in total */
+    long length();
+
+    /**
+     * Produces the next bytes
+     * @param out buffer to put them in
+     * @return false once all bytes have been produced
+     * @throws IOException to abandon the body, the connection is closed
+     */
+    boolean fill(ByteBuffer out) throws IOException;
+  }
+
+  /**
+   * Handler that writes the body while it is sent. It runs after the headers
+   * have been written: on the connection thread in the blocking engine, on a
+   * worker thread in the NIO engine.
+   */
+  interface Producer {
+    void produce(ResponseWriter out) throws IOException;
+  }
+
+  /** size of the buffer a Source is written through, taken from the BufferPool */
+  private static final int SOURCE_CHUNK = 16 * 1024;
+
+  final String status;
+  final String contentType;
+
+  /** in-memory body, possibly in several parts, null if the body comes from a file */
+  private ByteBuffer[] body;
+
+  /** file body, null if the body is in memory */
+  private final Path file;
+
+  /** start and end (exclusive) of each region of the file that is sent, in order */
+  private final long[] fileRanges;
+
+  /** multipart/byteranges part headers before each region and after the last, or null */
+  private ByteBuffer[] separators;
+
+  /** generated body, null unless the response was made with stream */
+  private Source source;
+  private ByteBuffer chunk;
+  private boolean sourceDone;
+
+  /** body written by a handler, null unless the response was made with streaming */
+  private Producer producer;
+
+  /** NIO engine: chunks on their way from the producer's thread */
+  private ChunkPipe pipe;
+
+  /** false for HTTP/1.0 clients, whose streamed bodies end when the connection closes */
+  private boolean chunkedAllowed = true;
+  private boolean chunked;
+
+  /** HEAD request: send the headers, including Content-Length, but no body */
+  private boolean omitBody;
+
+  /** Content-Encoding of the body, null if it is sent as is */
+  private String contentEncoding;
+
+  /** false if compress should leave the body alone, e.g. it is precompressed */
+  private boolean compressible = true;
+
+  /** the body depends on Accept-Encoding, caches have to know */
+  private boolean vary;
+
+  /** ETag and Last-Modified of the body, null if it has none */
+  private Validators validators;
+
+  /** 304 answer: the validators but no body and no body headers */
+  private boolean notModified;
+
+  private ByteBuffer head;
+  private FileChannel channel;
+  private long filePosition;
+  private int range;
+
+  /** route the response was made by and when its request started, for Metrics */
+  String route;
+  long startNanos;
+
+  /**
+   * method and target of the request, for the access log. Copied because the
+   * request is reused by the next one on the connection before this is sent.
+   */
+  String method;
+  String target;
+
+  /** when prepare ran, and the bytes known to be sent then (head and sized body) */
+  private long preparedNanos;
+  private long sizedBytes;
+
+  /** writes a Producer's body, once it runs */
+  private volatile ResponseWriter writer;
+
+  /** extra headers, name and value after each other */
+  private String[] headers = NO_HEADERS;
+
+  private static final String[] NO_HEADERS = {};
+
+  private HttpResponse(String status, String contentType, ByteBuffer[] body, Path file,
+      long[] fileRanges, Source source) {
+    this.status = status;
+    this.contentType = contentType;
+    this.body = body;
+    this.file = file;
+    this.fileRanges = fileRanges;
+    this.source = source;
+  }
+
+  /**
+   * Response with an in-memory body
+   */
+  static HttpResponse of(String status, String contentType, byte[] body) {
+    return of(status, contentType, ByteBuffer.wrap(body));
+  }
+
+  /**
+   * Response with an in-memory body, e.g. cached or mapped file contents.
+   * The buffer is duplicated so several responses can share it.
+   */
+  static HttpResponse of(String status, String contentType, ByteBuffer body) {
+    return new HttpResponse(status, contentType, new ByteBuffer[] {body.duplicate()}, null, null,
+        null);
+  }
+
+  /**
+   * Response whose body is made of several buffers, e.g. a rendered
+   * template. They are sent in order with a gathering write.
+   */
+  static HttpResponse of(String status, String contentType, ByteBuffer[] parts) {
+    return new HttpResponse(status, contentType, parts, null, null, null);
+  }
+
+  /**
+   * Response whose body is streamed from a file with transferTo
+   * @param file file to send
+   * @param length number of bytes to send, taken from the file size
+   */
+  static HttpResponse file(String status, String contentType, Path file, long length) {
+    return new HttpResponse(status, contentType, null, file, new long[] {0, length}, null);
+  }
+
+  /**
+   * Response whose body is some regions of a file, each streamed with a
+   * positioned transferTo
+   * @param ranges start and end (exclusive) of each region, ascending and
+   *        not overlapping
+   * @param separators for a multipart body, the part header before each
+   *        region and the closing boundary after the last one, else null
+   */
+  static HttpResponse fileRanges(String status, String contentType, Path file, long[] ranges,
+      ByteBuffer[] separators) {
+    HttpResponse response = new HttpResponse(status, contentType, null, file, ranges, null);
+    response.separators = separators;
+    return response;
+  }
+
+  /**
+   * Adds a header line, e.g. Content-Range
+   * @return this response
+   */
+  HttpResponse header(String name, String value) {
+    headers = Arrays.copyOf(headers, headers.length + 2);
+    headers[headers.length - 2] = name;
+    headers[headers.length - 1] = value;
+    return this;
+  }
+
+  /**
+   * Response whose body is generated as the socket accepts it, through one
+   * small buffer, so the whole body is never in memory
+   */
+  static HttpResponse stream(String status, String contentType, Source source) {
+    return new HttpResponse(status, contentType, null, null, null, source);
+  }
+
+  /**
+   * Response whose body is written by a handler after the headers have been
+   * sent. The length is not known up front, so it is sent in chunks.
+   */
+  static HttpResponse streaming(String status, String contentType, Producer producer) {
+    HttpResponse response = new HttpResponse(status, contentType, null, null, null, null);
+    response.producer = producer;
+    return response;
+  }
+
+  /**
+   * Marks the body as already encoded, e.g. a precompressed file
+   * @param encoding Content-Encoding value, e.g. gzip
+   * @return this response
+   */
+  HttpResponse encoded(String encoding) {
+    contentEncoding = encoding;
+    compressible = false;
+    vary = true;
+    return this;
+  }
+
+  /**
+   * Sends ETag and Last-Modified with the body, so the client can ask
+   * whether it changed next time
+   * @return this response
+   */
+  HttpResponse validators(Validators validators) {
+    this.validators = validators;
+    return this;
+  }
+
+  /** the validators given to validators(), or null */
+  Validators validators() {
+    return validators;
+  }
+
+  /**
+   * Turns this response into a 304 Not Modified: the same ETag,
+   * Last-Modified and Vary headers, but no body. Call after compress, so
+   * the ETag is the one of the encoding the 200 would have been sent in,
+   * and before prepare.
+   * @return the 304 response
+   */
+  HttpResponse notModified() {
+    close();
+    HttpResponse response = new HttpResponse("304 Not Modified", contentType,
+        new ByteBuffer[] {ByteBuffer.allocate(0)}, null, null, null);
+    response.validators = validators;
+    response.contentEncoding = contentEncoding;
+    response.vary = vary;
+    response.compressible = false;
+    response.notModified = true;
+    return response;
+  }
+
+  /**
+   * Keeps compress from touching the body, e.g. a file that does not get
+   * smaller. The response still varies on Accept-Encoding.
+   * @return this response
+   */
+  HttpResponse uncompressible() {
+    compressible = false;
+    vary = true;
+    return this;
+  }
+
+  /**
+   * Switches the body to gzip, for a client that accepts it. In-memory
+   * bodies are compressed right away and only kept compressed if that made
+   * them smaller. Generated bodies are compressed while they are written and
+   * sent chunked. Files on disk are sent as they are. Call before prepare.
+   * @param minBytes bodies known to be smaller than this are left alone
+   */
+  void compress(int minBytes) throws IOException {
+    if (!compressible) {
+      return;
+    }
+    vary = true;
+    if (body != null) {
+      long length = contentLength();
+      if (length < minBytes) {
+        return;
+      }
+      byte[] gz = Gzip.compress(body, Gzip.DYNAMIC_LEVEL);
+      if (gz.length >= length) {
+        return;
+      }
+      body = new ByteBuffer[] {ByteBuffer.wrap(gz)};
+    } else if (source != null) {
+      if (source.length() < minBytes) {
+        return;
+      }
+      producer = gzip(source);
+      source = null;
+    } else if (producer != null) {
+      producer = gzip(producer);
+    } else {
+      return;
+    }
+    contentEncoding = "gzip";
+  }
+
+  private static Producer gzip(Source source) {
+    return out -> {
+      try (OutputStream gz = Gzip.open(out.stream(), Gzip.DYNAMIC_LEVEL)) {
+        // a heap buffer, the compressor takes arrays
+        ByteBuffer buf = ByteBuffer.allocate(SOURCE_CHUNK);
+        boolean more = true;
+        while (more) {
+          buf.clear();
+          more = source.fill(buf);
+          buf.flip();
+          Gzip.write(gz, buf);
+        }
+      }
+    };
+  }
+
+  private static Producer gzip(Producer producer) {
+    return out -> {
+      try (OutputStream gz = Gzip.open(out.stream(), Gzip.DYNAMIC_LEVEL)) {
+        ResponseWriter plain = new ResponseWriter(ResponseWriter.to(gz), false);
+        try {
+          producer.produce(plain);
+          plain.finish();
+        } finally {
+          plain.release();
+        }
+      }
+    };
+  }
+
+  /** number of body bytes, -1 if the body is streamed by a Producer */
+  long contentLength() {
+    if (producer != null) {
+      return -1;
+    }
+    if (source != null) {
+      return source.length();
+    }
+    if (body == null) {
+      long length = 0;
+      for (int i = 0; i < fileRanges.length; i += 2) {
+        length += fileRanges[i + 1] - fileRanges[i];
+      }
+      if (separators != null) {
+        for (ByteBuffer separator : separators) {
+          length += separator.remaining();
+        }
+      }
+      return length;
+    }
+    long length = 0;
+    for (ByteBuffer part : body) {
+      length += part.remaining();
+    }
+    return length;
+  }
+
+  /**
+   * Answers a HEAD request: the headers describe the body but it is not sent
+   */
+  void omitBody() {
+    omitBody = true;
+  }
+
+  /**
+   * The client only speaks HTTP/1.0, so a streamed body cannot be chunked
+   */
+  void disallowChunked() {
+    chunkedAllowed = false;
+  }
+
+  /** true if the body is written by a Producer */
+  boolean isStreaming() {
+    return producer != null && !omitBody;
+  }
+
+  /**
+   * Sets the Connection header. Must be called once before the first writeTo.
+   * @param keepAlive whether the connection should stay open after this response
+   * @return whether it can: a streamed body for an HTTP/1.0 client is ended
+   *         by closing the connection
+   */
+  boolean prepare(boolean keepAlive) {
+    return prepare(keepAlive, ByteBuffer.allocate(ResponseHead.BUFFER_BYTES));
+  }
+
+  /**
+   * prepare, writing the head into a buffer the connection reuses. It must
+   * not be touched again until this response has been written.
+   * @param buffer where the head goes, a larger one is made if it does not fit
+   */
+  boolean prepare(boolean keepAlive, ByteBuffer buffer) {
+    if (producer != null && !notModified) {
+      chunked = chunkedAllowed;
+      keepAlive &= chunkedAllowed;
+    }
+    while (true) {
+      buffer.clear();
+      try {
+        writeHead(buffer, keepAlive);
+        break;
+      } catch (BufferOverflowException e) {
+        buffer = ByteBuffer.allocate(buffer.capacity() * 2);
+      }
+    }
+    buffer.flip();
+    head = buffer;
+    preparedNanos = System.nanoTime();
+    sizedBytes = head.remaining()
+        + (omitBody || notModified || producer != null ? 0 : contentLength());
+    return keepAlive;
+  }
+
+  private void writeHead(ByteBuffer out, boolean keepAlive) {
+    ResponseHead.statusLine(out, status);
+    if (!notModified) {
+      ResponseHead.contentType(out, contentType);
+      if ("gzip".equals(contentEncoding)) {
+        out.put(ResponseHead.GZIP);
+      } else if (contentEncoding != null) {
+        ResponseHead.header(out, "Content-Encoding", contentEncoding);
+      }
+    }
+    if (vary) {
+      out.put(ResponseHead.VARY);
+    }
+    if (validators != null) {
+      out.put("gzip".equals(contentEncoding)
+          ? validators.gzipHeaderLines : validators.headerLines);
+    }
+    for (int i = 0; i < headers.length; i += 2) {
+      ResponseHead.header(out, headers[i], headers[i + 1]);
+    }
+    if (notModified) {
+      // no body headers
+    } else if (producer == null) {
+      ResponseHead.contentLength(out, contentLength());
+    } else if (chunked) {
+      out.put(ResponseHead.CHUNKED);
+    }
+    out.put(keepAlive ? ResponseHead.KEEP_ALIVE_END : ResponseHead.CLOSE_END);
+  }
+
+  /**
+   * HTTP/2: hands out the header fields instead of writing a head, lower
+   * case and without the hop-by-hop ones (Connection, Transfer-Encoding).
+   * HPACK encodes them, so they are only prepared for the metrics. A
+   * streamed body ends with the stream, it is never chunked.
+   * @param headerBytes size of the encoded header block, for bytesSent
+   */
+  void prepareHttp2(int headerBytes) {
+    chunked = false;
+    head = ByteBuffer.allocate(0);
+    preparedNanos = System.nanoTime();
+    sizedBytes = headerBytes + (omitBody || notModified || producer != null ? 0 : contentLength());
+  }
+
+  /**
+   * The header fields of an HTTP/2 response, after :status
+   * @param out gets each name (lower case) and value
+   */
+  void fields(Hpack.Fields out) throws IOException {
+    if (!notModified) {
+      out.field("content-type", contentType);
+      if (contentEncoding != null) {
+        out.field("content-encoding", contentEncoding);
+      }
+    }
+    if (vary) {
+      out.field("vary", "Accept-Encoding");
+    }
+    if (validators != null) {
+      out.field("etag",
+          "gzip".equals(contentEncoding) ? validators.gzipEtag : validators.etag);
+      if (validators.lastModifiedText != null) {
+        out.field("last-modified", validators.lastModifiedText);
+      }
+    }
+    for (int i = 0; i < headers.length; i += 2) {
+      out.field(headers[i].toLowerCase(Locale.ROOT), headers[i + 1]);
+    }
+    if (!notModified && producer == null) {
+      out.field("content-length", Long.toString(contentLength()));
+    }
+  }
+
+  /** whether DATA frames follow the headers */
+  boolean hasBody() {
+    return !omitBody && !notModified && (producer != null || contentLength() > 0);
+  }
+
+  /** System.nanoTime() when prepare ran */
+  long preparedNanos() {
+    return preparedNanos;
+  }
+
+  /**
+   * Bytes of the whole response: head and body, with chunk framing. Only
+   * exact once writeTo has returned true.
+   */
+  long bytesSent() {
+    ResponseWriter w = writer;
+    return sizedBytes + (w == null ? 0 : w.bytes());
+  }
+
+  /**
+   * NIO engine: runs the producer on another thread, writeTo then sends its
+   * chunks as they come. Call after prepare.
+   * @param executor where the producer runs, it may block there while the
+   *        client is slow to read
+   * @param ready called when new chunks are there after writeTo stalled
+   */
+  void startProducer(Executor executor, Runnable ready) {
+    pipe = new ChunkPipe(ready);
+    ChunkPipe target = pipe;
+    executor.execute(() -> {
+      ResponseWriter out = new ResponseWriter(target, chunked);
+      writer = out;
+      try {
+        producer.produce(out);
+        out.finish();
+      } catch (IOException | RuntimeException e) {
+        target.fail(e);
+      } finally {
+        out.release();
+      }
+    });
+  }
+
+  /**
+   * True if writeTo returned false because the producer has nothing new yet,
+   * not because the socket is full
+   */
+  boolean stalled() {
+    return pipe != null && pipe.stalled();
+  }
+
+  /**
+   * Writes as much of the response as the channel accepts
+   * @param out socket channel, blocking or non-blocking
+   * @return true once the whole response has been written
+   * @throws IOException if writing or reading the file fails
+   */
+  boolean writeTo(WritableByteChannel out) throws IOException {
+    if (head.hasRemaining()) {
+      ByteBuffer[] first = omitBody ? null : headAndBody();
+      if (first != null && out instanceof GatheringByteChannel) {
+        // one write, and for a small response one packet
+        ((GatheringByteChannel) out).write(first);
+      } else {
+        out.write(head);
+      }
+      if (head.hasRemaining()) {
+        return false;
+      }
+    }
+    if (omitBody) {
+      return true;
+    }
+    if (body != null) {
+      if (drained(body)) {
+        return true;
+      }
+      if (out instanceof GatheringByteChannel) {
+        ((GatheringByteChannel) out).write(body);
+      } else {
+        for (ByteBuffer part : body) {
+          out.write(part);
+          if (part.hasRemaining()) {
+            break;
+          }
+        }
+      }
+      return drained(body);
+    }
+    if (source != null) {
+      return writeSource(out);
+    }
+    if (producer != null) {
+      if (pipe != null) {
+        return pipe.drain(out);
+      }
+      // blocking channel: run the handler right here, writing straight out
+      ResponseWriter direct = new ResponseWriter(ResponseWriter.to(out), chunked);
+      writer = direct;
+      try {
+        producer.produce(direct);
+        direct.finish();
+      } finally {
+        direct.release();
+      }
+      return true;
+    }
+
+    if (channel == null) {
+      channel = FileChannel.open(file, StandardOpenOption.READ);
+    }
+    while (range < fileRanges.length) {
+      if (separators != null && !write(out, separators[range / 2])) {
+        return false;
+      }
+      long end = fileRanges[range + 1];
+      // regions ascend, so this only moves forward when a new one starts
+      filePosition = Math.max(filePosition, fileRanges[range]);
+      while (filePosition < end) {
+        long sent = channel.transferTo(filePosition, end - filePosition, out);
+        if (sent <= 0) {
+          if (end > channel.size()) {
+            throw new IOException(file + " shrank while it was being sent");
+          }
+          return false; // socket buffer is full
+        }
+        filePosition += sent;
+      }
+      range += 2;
+    }
+    if (separators != null && !write(out, separators[separators.length - 1])) {
+      return false;
+    }
+    close();
+    return true;
+  }
+
+  /**
+   * The head followed by the start of the body, for the first write: the
+   * in-memory body, or the first chunk of a Source. Null for bodies that
+   * come from a file or a Producer.
+   */
+  private ByteBuffer[] headAndBody() throws IOException {
+    if (body != null) {
+      ByteBuffer[] first = new ByteBuffer[body.length + 1];
+      first[0] = head;
+      System.arraycopy(body, 0, first, 1, body.length);
+      return first;
+    }
+    if (source != null) {
+      if (chunk == null) {
+        chunk = BufferPool.acquire(SOURCE_CHUNK);
+        sourceDone = !source.fill(chunk);
+        chunk.flip();
+      }
+      return new ByteBuffer[] {head, chunk};
+    }
+    return null;
+  }
+
+  /**
+   * True if every part has been written. The last part being empty says
+   * nothing about the others, e.g. a multipart body or an empty body after
+   * a large one.
+   */
+  static boolean drained(ByteBuffer[] parts) {
+    for (ByteBuffer part : parts) {
+      if (part.hasRemaining()) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** writes what the channel takes, true if nothing is left */
+  private static boolean write(WritableByteChannel out, ByteBuffer buf) throws IOException {
+    out.write(buf);
+    return !buf.hasRemaining();
+  }
+
+  private boolean writeSource(WritableByteChannel out) throws IOException {
+    if (chunk == null) {
+      chunk = BufferPool.acquire(SOURCE_CHUNK);
+      chunk.flip();
+    }
+    while (true) {
+      if (!chunk.hasRemaining()) {
+        if (sourceDone) {
+          return true;
+        }
+        chunk.clear();
+        sourceDone = !source.fill(chunk);
+        chunk.flip();
+        continue;
+      }
+      out.write(chunk);
+      if (chunk.hasRemaining()) {
+        return false; // socket buffer is full
+      }
+    }
+  }
+
+  /**
+   * Releases the file, if one is open, and the pooled buffers. Safe to call
+   * more than once. Must not run while another thread is in writeTo.
+   */
+  void close() {
+    if (pipe != null) {
+      pipe.abort();
+    }
+    if (chunk != null) {
+      BufferPool.release(chunk);
+      chunk = null;
+    }
+    if (channel != null) {
+      try {
+        channel.close();
+      } catch (IOException e) {
+        // nothing left to do
+      }
+      channel = null;
+    }
+  }
+
+  /**
+   * The complete response as one array. Only meant for callers that want
+   * bytes, like createResponse(InputStream); the servers use writeTo.
+   */
+  byte[] toBytes(boolean keepAlive) throws IOException {
+    prepare(keepAlive);
+    ByteArrayOutputStream data = new ByteArrayOutputStream();
+    WritableByteChannel out = Channels.newChannel(data);
+    try {
+      while (!writeTo(out)) {
+        // a blocking channel always makes progress
+      }
+    } finally {
+      close();
+    }
+    return data.toByteArray();
+  }
+}
@@ -0,0 +1,396 @@
+package funHttpServer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Pulls a few fields out of a JSON document in one pass while its bytes
+ * arrive, without building the document or keeping it in memory.
+ *
+ * Fields are named by the object keys leading to them, e.g. "owner.login",
+ * and are read from the first record: the document itself, or its first
+ * element if the document is an array (like a list of repositories).
+ * Arrays do not add to the path, and the first value found for a field is
+ * kept. Strings are unescaped, numbers, booleans and null are kept as they
+ * are written, so large ids do not overflow. Objects and arrays are never
+ * captured.
+ *
+ * Feed the bytes as they come in; feed returns true as soon as every field
+ * has been found or the first record has ended, so the rest of the document
+ * does not have to be read.
+ */
+class JsonFields {
+
+  /** longest value kept, longer ones are cut off */
+  private static final int MAX_VALUE_BYTES = 8192;
+  private static final int MAX_DEPTH = 512;
+
+  // what the parser expects next
+  private static final int VALUE = 0;
+  private static final int VALUE_OR_END = 1; // right after [
+  private static final int KEY = 2;
+  private static final int KEY_OR_END = 3; // right after {
+  private static final int COLON = 4;
+  private static final int COMMA_OR_END = 5;
+  private static final int DONE = 6;
+
+  // what the lexer is in the middle of
+  private static final int NONE = 0;
+  private static final int STRING = 1;
+  private static final int ESCAPE = 2;
+  private static final int UNICODE = 3;
+  private static final int LITERAL = 4;
+
+  /** field names as given, e.g. "owner.login" */
+  private final String[] names;
+
+  /** path segments per field, interned so keys can be compared by identity */
+  private final String[][] paths;
+  private final byte[][][] pathBytes;
+
+  private final String[] values;
+  private int found;
+
+  /** open containers: object or array, and for objects the current key if it is wanted */
+  private boolean[] isObject = new boolean[16];
+  private String[] keys = new String[16];
+  private int depth;
+
+  private int expect = VALUE;
+  private int lex = NONE;
+
+  /** text of the current key or wanted value */
+  private byte[] text = new byte[64];
+  private int textLength;
+  private boolean stringIsKey;
+
+  /** field the current value belongs to, -1 if it is not wanted */
+  private int capture = -1;
+
+  private int unicode;
+  private int unicodeDigits;
+  private char highSurrogate;
+  private long position;
+
+  /**
+   * @param fields dotted paths of the fields to extract, e.g. "id", "owner.login"
+   */
+  JsonFields(String... fields) {
+    names = fields.clone();
+    paths = new String[fields.length][];
+    pathBytes = new byte[fields.length][][];
+    values = new String[fields.length];
+    for (int i = 0; i < fields.length; i++) {
+      String[] segments = fields[i].split("\\.");
+      pathBytes[i] = new byte[segments.length][];
+      for (int s = 0; s < segments.length; s++) {
+        segments[s] = segments[s].intern();
+        pathBytes[i][s] = segments[s].getBytes(StandardCharsets.UTF_8);
+      }
+      paths[i] = segments;
+    }
+  }
+
+  /**
+   * Parses the next bytes of the document
+   * @param buf bytes, consumed up to where parsing stopped
+   * @return true once all fields are found or the first record is complete
+   * @throws IOException if the bytes are not valid JSON
+   */
+  boolean feed(ByteBuffer buf) throws IOException {
+    while (!done() && buf.hasRemaining()) {
+      step(buf.get());
+      position++;
+    }
+    return done();
+  }
+
+  /**
+   * Call when the document has ended
+   * @throws IOException if it ended in the middle while fields are still missing
+   */
+  void finish() throws IOException {
+    if (lex == LITERAL) {
+      lex = NONE;
+      endValue();
+    }
+    if (!done()) {
+      throw malformed("document ended early");
+    }
+  }
+
+  /** true once all fields are found or the first record is complete */
+  boolean done() {
+    return found == paths.length || expect == DONE;
+  }
+
+  /**
+   * The fields found so far, in the order they were asked for. Missing
+   * fields map to null.
+   */
+  Map<String, String> values() {
+    Map<String, String> result = new LinkedHashMap<>();
+    for (int i = 0; i < names.length; i++) {
+      result.put(names[i], values[i]);
+    }
+    return result;
+  }
+
+  private void step(byte b) throws IOException {
+    switch (lex) {
+      case STRING:
+        if (b == '"') {
+          lex = NONE;
+          endString();
+        } else if (b == '\\') {
+          lex = ESCAPE;
+        } else if ((b & 0xff) < 0x20) {
+          throw malformed("control character in string");
+        } else {
+          append(b);
+        }
+        return;
+      case ESCAPE:
+        lex = STRING;
+        switch (b) {
+          case '"': case '\\': case '/': append(b); break;
+          case 'b': append((byte) '\b'); break;
+          case 'f': append((byte) '\f'); break;
+          case 'n': append((byte) '\n'); break;
+          case 'r': append((byte) '\r'); break;
+          case 't': append((byte) '\t'); break;
+          case 'u':
+            lex = UNICODE;
+            unicode = 0;
+            unicodeDigits = 0;
+            break;
+          default:
+            throw malformed("bad escape");
+        }
+        return;
+      case UNICODE:
+        int digit = Character.digit(b, 16);
+        if (digit < 0) {
+          throw malformed("bad \\u escape");
+        }
+        unicode = unicode * 16 + digit;
+        if (++unicodeDigits == 4) {
+          lex = STRING;
+          appendChar((char) unicode);
+        }
+        return;
+      case LITERAL:
+        if (isLiteral(b)) {
+          append(b);
+          return;
+        }
+        lex = NONE;
+        endValue();
+        break; // b still needs handling below
+      default:
+        break;
+    }
+
+    switch (b) {
+      case ' ': case '\t': case '\n': case '\r':
+        return;
+      case '{':
+      case '[':
+        if (expect != VALUE && expect != VALUE_OR_END) {
+          throw malformed("unexpected " + (char) b);
+        }
+        push(b == '{');
+        expect = b == '{' ? KEY_OR_END : VALUE_OR_END;
+        return;
+      case '}':
+      case ']':
+        boolean object = b == '}';
+        if (depth == 0 || isObject[depth - 1] != object
+            || (expect != COMMA_OR_END && expect != (object ? KEY_OR_END : VALUE_OR_END))) {
+          throw malformed("unexpected " + (char) b);
+        }
+        depth--;
+        endValue();
+        if (depth == 1 && !isObject[0]) {
+          expect = DONE; // end of the first record in a list
+        }
+        return;
+      case ':':
+        if (expect != COLON) {
+          throw malformed("unexpected :");
+        }
+        expect = VALUE;
+        return;
+      case ',':
+        if (expect != COMMA_OR_END) {
+          throw malformed("unexpected ,");
+        }
+        expect = isObject[depth - 1] ? KEY : VALUE;
+        return;
+      case '"':
+        stringIsKey = expect == KEY || expect == KEY_OR_END;
+        if (!stringIsKey) {
+          startValue();
+        }
+        textLength = 0;
+        highSurrogate = 0;
+        lex = STRING;
+        return;
+      default:
+        if (!isLiteral(b)) {
+          throw malformed("unexpected character " + (char) b);
+        }
+        startValue();
+        stringIsKey = false;
+        textLength = 0;
+        append(b);
+        lex = LITERAL;
+    }
+  }
+
+  private static boolean isLiteral(byte b) {
+    return (b >= 'a' && b <= 'z') || (b >= '0' && b <= '9') || b == '-' || b == '+' || b == '.'
+        || b == 'E';
+  }
+
+  private void push(boolean object) throws IOException {
+    if (depth == MAX_DEPTH) {
+      throw malformed("nested too deeply");
+    }
+    if (depth == isObject.length) {
+      isObject = Arrays.copyOf(isObject, depth * 2);
+      keys = Arrays.copyOf(keys, depth * 2);
+    }
+    isObject[depth] = object;
+    keys[depth] = null;
+    depth++;
+  }
+
+  /**
+   * A string or literal value starts: works out whether it is wanted
+   */
+  private void startValue() throws IOException {
+    if (expect != VALUE && expect != VALUE_OR_END) {
+      throw malformed("unexpected value");
+    }
+    capture = -1;
+    for (int i = 0; i < paths.length && capture < 0; i++) {
+      if (values[i] == null && atPath(paths[i])) {
+        capture = i;
+      }
+    }
+  }
+
+  private boolean atPath(String[] path) {
+    int level = 0;
+    for (int d = 0; d < depth; d++) {
+      if (isObject[d]) {
+        if (level == path.length || keys[d] != path[level]) {
+          return false;
+        }
+        level++;
+      }
+    }
+    return level == path.length;
+  }
+
+  private void endString() {
+    if (stringIsKey) {
+      keys[depth - 1] = wantedKey();
+      expect = COLON;
+    } else {
+      endValue();
+    }
+  }
+
+  private void endValue() {
+    if (capture >= 0) {
+      values[capture] = new String(text, 0, textLength, StandardCharsets.UTF_8);
+      found++;
+      capture = -1;
+    }
+    expect = depth == 0 ? DONE : COMMA_OR_END;
+  }
+
+  /**
+   * The key just read, as the interned path segment it matches, or null if
+   * no field has that key at this level
+   */
+  private String wantedKey() {
+    int level = -1;
+    for (int d = 0; d < depth; d++) {
+      if (isObject[d]) {
+        level++;
+      }
+    }
+    for (int i = 0; i < paths.length; i++) {
+      if (level < paths[i].length && textEquals(pathBytes[i][level])) {
+        return paths[i][level];
+      }
+    }
+    return null;
+  }
+
+  private boolean textEquals(byte[] segment) {
+    if (segment.length != textLength) {
+      return false;
+    }
+    for (int i = 0; i < textLength; i++) {
+      if (segment[i] != text[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private void append(byte b) {
+    if (!stringIsKey && capture < 0) {
+      return; // not wanted, no need to keep it
+    }
+    if (textLength == text.length) {
+      if (textLength >= MAX_VALUE_BYTES) {
+        return;
+      }
+      text = Arrays.copyOf(text, textLength * 2);
+    }
+    text[textLength++] = b;
+  }
+
+  /** appends an escaped character as UTF-8, joining surrogate pairs */
+  private void appendChar(char c) {
+    int cp = c;
+    if (Character.isHighSurrogate(c)) {
+      highSurrogate = c;
+      return;
+    }
+    if (Character.isLowSurrogate(c) && highSurrogate != 0) {
+      cp = Character.toCodePoint(highSurrogate, c);
+    } else if (Character.isSurrogate(c)) {
+      cp = '?';
+    }
+    highSurrogate = 0;
+    if (cp < 0x80) {
+      append((byte) cp);
+    } else if (cp < 0x800) {
+      append((byte) (0xc0 | cp >> 6));
+      append((byte) (0x80 | cp & 0x3f));
+    } else if (cp < 0x10000) {
+      append((byte) (0xe0 | cp >> 12));
+      append((byte) (0x80 | cp >> 6 & 0x3f));
+      append((byte) (0x80 | cp & 0x3f));
+    } else {
+      append((byte) (0xf0 | cp >> 18));
+      append((byte) (0x80 | cp >> 12 & 0x3f));
+      append((byte) (0x80 | cp >> 6 & 0x3f));
+      append((byte) (0x80 | cp & 0x3f));
+    }
+  }
+
+  private IOException malformed(String what) {
+    return new IOException("Malformed JSON at byte " + position + ": " + what);
+  }
+}
@@ -0,0 +1,337 @@
+package funHttpServer;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Starts the fun server in this JVM on a free port, sends it requests at a
+ * fixed rate from a number of client connections and reports throughput and
+ * latency percentiles. Run with: gradle LoadTest -Dload.rate=5000
+ *
+ * Requests follow a fixed timetable (an open model): request i is due at
+ * start + i / rate no matter how long the ones before it took, and its
+ * latency is measured from when it was due, not from when a connection got
+ * around to sending it. A server that stalls for a second shows up as a
+ * second of queueing in the percentiles instead of as one slow request
+ * (coordinated omission).
+ *
+ * Settings are system properties: load.connections, load.rate (requests per
+ * second), load.duration and load.warmup (seconds), load.keepAlive (false
+ * opens a connection per request), load.routes (comma separated) and
+ * load.out (results file). The server takes the usual fun.* properties.
+ */
+class LoadTest {
+
+  private static final String DEFAULT_ROUTES =
+      "/,/json,/file/README.md,/multiply?num1=3&num2=4,/circle?howMany=5&radius=10";
+
+  /** latencies and outcomes seen by one client connection */
+  private static final class Recorder {
+    long[] latencies = new long[1024];
+    int count;
+    long non2xx;
+    long errors;
+    long lastDone;
+
+    void record(long nanos) {
+      if (count == latencies.length) {
+        latencies = Arrays.copyOf(latencies, count * 2);
+      }
+      latencies[count++] = nanos;
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    Properties props = System.getProperties();
+    int connections = Math.max(1, ServerConfig.intValue(props, "load.connections", 16));
+    int rate = Math.max(1, ServerConfig.intValue(props, "load.rate", 2000));
+    int duration = Math.max(1, ServerConfig.intValue(props, "load.duration", 10));
+    int warmup = Math.max(0, ServerConfig.intValue(props, "load.warmup", 2));
+    boolean keepAlive = Boolean.parseBoolean(props.getProperty("load.keepAlive", "true"));
+    String[] routes = props.getProperty("load.routes", DEFAULT_ROUTES).split(",");
+    String out = props.getProperty("load.out", "build/loadtest/loadtest-"
+        + LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss")) + ".json");
+
+    // a line per request would drown the report, unless asked for
+    props.putIfAbsent("fun.accessLog", "off");
+    ServerConfig config = new ServerConfig(props, 0);
+    WebServer server = WebServer.responder(config);
+    int port = server.listen();
+    Thread serving = new Thread(() -> {
+      try {
+        server.serve();
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    }, "fun-load-server");
+    serving.setDaemon(true);
+    serving.start();
+
+    System.out.println("Load test: " + connections + " connections, " + rate + " req/s, "
+        + warmup + "s warmup + " + duration + "s, keepAlive=" + keepAlive
+        + ", server on port " + port + ": " + config);
+
+    long start = System.nanoTime() + 100_000_000L;
+    long measureFrom = start + warmup * 1_000_000_000L;
+    long end = measureFrom + duration * 1_000_000_000L;
+    AtomicLong next = new AtomicLong();
+    List<Recorder> recorders = new ArrayList<>();
+    List<Thread> clients = new ArrayList<>();
+    for (int c = 0; c < connections; c++) {
+      Recorder recorder = new Recorder();
+      recorders.add(recorder);
+      Thread client = new Thread(() -> drive(port, keepAlive, routes, rate, start, measureFrom,
+          end, next, recorder), "fun-load-client-" + c);
+      clients.add(client);
+      client.start();
+    }
+    for (Thread client : clients) {
+      client.join();
+    }
+    server.stop();
+
+    long[] all = new long[recorders.stream().mapToInt(r -> r.count).sum()];
+    int n = 0;
+    long non2xx = 0;
+    long errors = 0;
+    long lastDone = measureFrom;
+    for (Recorder r : recorders) {
+      System.arraycopy(r.latencies, 0, all, n, r.count);
+      n += r.count;
+      non2xx += r.non2xx;
+      errors += r.errors;
+      lastDone = Math.max(lastDone, r.lastDone);
+    }
+    Arrays.sort(all);
+    // over the time it actually took, an overloaded server finishes late
+    double seconds = Math.max(duration, (lastDone - measureFrom) / 1e9);
+    double throughput = all.length / seconds;
+
+    String[] names = {"p50", "p90", "p99", "p99.9", "max"};
+    double[] quantiles = {0.5, 0.9, 0.99, 0.999, 1.0};
+    StringBuilder text = new StringBuilder();
+    StringBuilder json = new StringBuilder();
+    json.append("{\n  \"timestamp\": \"").append(LocalDateTime.now()).append("\",\n")
+        .append("  \"engine\": \"").append(config.engine).append("\",\n")
+        .append("  \"executor\": \"").append(config.executor).append("\",\n")
+        .append("  \"connections\": ").append(connections).append(",\n")
+        .append("  \"targetRate\": ").append(rate).append(",\n")
+        .append("  \"durationSeconds\": ").append(duration).append(",\n")
+        .append("  \"keepAlive\": ").append(keepAlive).append(",\n")
+        .append("  \"routes\": [");
+    for (int i = 0; i < routes.length; i++) {
+      json.append(i == 0 ? "\"" : ", \"").append(routes[i].replace("\"", "\\\"")).append('"');
+    }
+    json.append("],\n")
+        .append("  \"requests\": ").append(all.length).append(",\n")
+        .append("  \"non2xx\": ").append(non2xx).append(",\n")
+        .append("  \"errors\": ").append(errors).append(",\n")
+        .append("  \"elapsedSeconds\": ").append(String.format("%.3f", seconds)).append(",\n")
+        .append("  \"throughput\": ").append(String.format("%.1f", throughput)).append(",\n")
+        .append("  \"shards\": [");
+    for (Shard shard : server.shards()) {
+      json.append(shard.index == 0 ? "" : ", ").append("{\"connections\": ")
+          .append(shard.connections.sum()).append(", \"requests\": ")
+          .append(shard.requests.sum()).append('}');
+    }
+    json.append("],\n")
+        .append("  \"latencyMillis\": {");
+    text.append(String.format("%d requests in %.1fs, %.1f req/s, %d non-2xx, %d errors%n",
+        all.length, seconds, throughput, non2xx, errors));
+    text.append("latency ms:");
+    for (int i = 0; i < names.length; i++) {
+      double millis = percentile(all, quantiles[i]) / 1e6;
+      text.append(String.format(" %s=%.3f", names[i], millis));
+      json.append(i == 0 ? "" : ", ").append('"').append(names[i]).append("\": ")
+          .append(String.format("%.3f", millis));
+    }
+    json.append("}\n}\n");
+    if (server.shards().length > 1) {
+      // how evenly the kernel spread the connections
+      for (Shard shard : server.shards()) {
+        text.append(String.format("%nshard %d: %d connections, %d requests", shard.index,
+            shard.connections.sum(), shard.requests.sum()));
+      }
+    }
+    System.out.println(text);
+
+    Path file = Paths.get(out);
+    if (file.getParent() != null) {
+      Files.createDirectories(file.getParent());
+    }
+    Files.write(file, json.toString().getBytes(StandardCharsets.UTF_8));
+    System.out.println("Results written to " + file);
+  }
+
+  /**
+   * One client connection: takes the next request off the timetable, waits
+   * until it is due, sends it and records how long after its due time the
+   * response was complete. Runs until the timetable reaches end.
+   */
+  private static void drive(int port, boolean keepAlive, String[] routes, int rate, long start,
+      long measureFrom, long end, AtomicLong next, Recorder recorder) {
+    Client client = new Client(port, keepAlive);
+    while (true) {
+      long i = next.getAndIncrement();
+      long due = start + i * 1_000_000_000L / rate;
+      if (due >= end) {
+        break;
+      }
+      long wait;
+      while ((wait = due - System.nanoTime()) > 0) {
+        LockSupport.parkNanos(wait);
+      }
+      int status;
+      try {
+        status = client.get(routes[(int) (i % routes.length)]);
+      } catch (IOException e) {
+        status = -1;
+        client.close();
+      }
+      if (due < measureFrom) {
+        continue;
+      }
+      long done = System.nanoTime();
+      recorder.record(done - due);
+      recorder.lastDone = done;
+      if (status < 0) {
+        recorder.errors++;
+      } else if (status / 100 != 2) {
+        recorder.non2xx++;
+      }
+    }
+    client.close();
+  }
+
+  private static long percentile(long[] sorted, double q) {
+    if (sorted.length == 0) {
+      return 0;
+    }
+    int index = (int) Math.ceil(q * sorted.length) - 1;
+    return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+  }
+
+  /**
+   * Minimal HTTP/1.1 client: GET requests, responses with a Content-Length,
+   * chunked or ended by closing the connection. Bodies are read and dropped.
+   */
+  private static final class Client {
+    private final int port;
+    private final boolean keepAlive;
+    private final byte[] skip = new byte[16 * 1024];
+    private Socket socket;
+    private InputStream in;
+    private OutputStream out;
+
+    Client(int port, boolean keepAlive) {
+      this.port = port;
+      this.keepAlive = keepAlive;
+    }
+
+    /** sends one GET and reads the whole response, returns its status code */
+    int get(String target) throws IOException {
+      if (socket == null) {
+        socket = new Socket();
+        socket.setTcpNoDelay(true);
+        socket.setSoTimeout(10_000);
+        socket.connect(new InetSocketAddress("localhost", port));
+        in = new BufferedInputStream(socket.getInputStream());
+        out = socket.getOutputStream();
+      }
+      out.write(("GET " + target + " HTTP/1.1\r\nHost: localhost\r\n"
+          + (keepAlive ? "" : "Connection: close\r\n") + "\r\n")
+          .getBytes(StandardCharsets.US_ASCII));
+      out.flush();
+
+      String statusLine = line();
+      int status = Integer.parseInt(statusLine.substring(9, 12));
+      long length = -1;
+      boolean chunked = false;
+      boolean close = !keepAlive;
+      String header;
+      while (!(header = line()).isEmpty()) {
+        int colon = header.indexOf(':');
+        String name = header.substring(0, colon).trim();
+        String value = header.substring(colon + 1).trim();
+        if (name.equalsIgnoreCase("Content-Length")) {
+          length = Long.parseLong(value);
+        } else if (name.equalsIgnoreCase("Transfer-Encoding")) {
+          chunked = value.equalsIgnoreCase("chunked");
+        } else if (name.equalsIgnoreCase("Connection")) {
+          close |= value.equalsIgnoreCase("close");
+        }
+      }
+      if (chunked) {
+        long size;
+        while ((size = Long.parseLong(line().trim(), 16)) > 0) {
+          skip(size);
+          line();
+        }
+        line();
+      } else if (length >= 0) {
+        skip(length);
+      } else {
+        while (in.read(skip) >= 0) {
+          // body ends with the connection
+        }
+        close = true;
+      }
+      if (close) {
+        close();
+      }
+      return status;
+    }
+
+    private String line() throws IOException {
+      StringBuilder line = new StringBuilder();
+      int b;
+      while ((b = in.read()) != '\n') {
+        if (b < 0) {
+          throw new EOFException("connection closed mid response");
+        }
+        if (b != '\r') {
+          line.append((char) b);
+        }
+      }
+      return line.toString();
+    }
+
+    private void skip(long n) throws IOException {
+      while (n > 0) {
+        int read = in.read(skip, 0, (int) Math.min(n, skip.length));
+        if (read < 0) {
+          throw new EOFException("connection closed mid body");
+        }
+        n -= read;
+      }
+    }
+
+    void close() {
+      if (socket != null) {
+        try {
+          socket.close();
+        } catch (IOException e) {
+          // nothing to do
+        }
+        socket = null;
+      }
+    }
+  }
+}
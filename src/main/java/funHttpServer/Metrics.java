@@ -0,0 +1,276 @@
+package funHttpServer;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntToLongFunction;
+
+/**
+ * Request counters and latency histograms, shown at /metrics in the
+ * Prometheus text format.
+ *
+ * Everything is counted in LongAdders, which keep a cell per contending
+ * thread instead of one shared word, so workers updating the same counter
+ * do not slow each other down. Per route objects are created on the first
+ * request and only read afterwards.
+ *
+ * Histograms have log-linear buckets: 1, 2, ... 9 times each power of ten
+ * from 10 microseconds up to 90 seconds. That keeps the relative error
+ * of a quantile estimate under about 10% at every scale with 63 buckets.
+ */
+class Metrics {
+
+  /** upper bounds of the histogram buckets in nanoseconds, ascending */
+  private static final long[] BOUNDS = bounds();
+
+  /** the same bounds in seconds, as written in the le label */
+  private static final String[] BOUND_LABELS = labels(BOUNDS);
+
+  private static final String[] PHASES = {"parse", "handler", "write"};
+
+  /** a latency histogram */
+  static final class Histogram {
+    /** one count per bucket (not cumulative), the last one is +Inf */
+    private final LongAdder[] buckets = new LongAdder[BOUNDS.length + 1];
+    private final LongAdder sumNanos = new LongAdder();
+
+    Histogram() {
+      for (int i = 0; i < buckets.length; i++) {
+        buckets[i] = new LongAdder();
+      }
+    }
+
+    void record(long nanos) {
+      int i = Arrays.binarySearch(BOUNDS, nanos);
+      buckets[i < 0 ? -i - 1 : i].increment();
+      sumNanos.add(nanos);
+    }
+
+    private void write(StringBuilder out, String name, String labels) {
+      String prefix = labels.isEmpty() ? "" : labels + ",";
+      long cumulative = 0;
+      for (int i = 0; i < BOUNDS.length; i++) {
+        cumulative += buckets[i].sum();
+        out.append(name).append("_bucket{").append(prefix).append("le=\"")
+            .append(BOUND_LABELS[i]).append("\"} ").append(cumulative).append('\n');
+      }
+      cumulative += buckets[BOUNDS.length].sum();
+      out.append(name).append("_bucket{").append(prefix).append("le=\"+Inf\"} ")
+          .append(cumulative).append('\n');
+      String braces = labels.isEmpty() ? "" : "{" + labels + "}";
+      out.append(name).append("_sum").append(braces).append(' ')
+          .append(sumNanos.sum() / 1e9).append('\n');
+      out.append(name).append("_count").append(braces).append(' ')
+          .append(cumulative).append('\n');
+    }
+  }
+
+  /** what is counted per route */
+  private static final class RouteMetrics {
+    final Histogram latency = new Histogram();
+    final ConcurrentHashMap<String, LongAdder> byStatus = new ConcurrentHashMap<>();
+  }
+
+  private final ConcurrentHashMap<String, RouteMetrics> routes = new ConcurrentHashMap<>();
+  private final Histogram[] phases = new Histogram[PHASES.length];
+  private final LongAdder bytesIn = new LongAdder();
+  private final LongAdder bytesOut = new LongAdder();
+  private final LongAdder connections = new LongAdder();
+  private final LongAdder activeConnections = new LongAdder();
+  private final LongAdder refusedConnections = new LongAdder();
+
+  Metrics() {
+    for (int i = 0; i < phases.length; i++) {
+      phases[i] = new Histogram();
+    }
+  }
+
+  void connectionOpened() {
+    connections.increment();
+    activeConnections.increment();
+  }
+
+  void connectionClosed() {
+    activeConnections.decrement();
+  }
+
+  /** a connection was turned away because fun.maxConnections were open */
+  void connectionRefused() {
+    refusedConnections.increment();
+  }
+
+  /**
+   * A request has been parsed and is about to be routed
+   * @param request the request, its startNanos and headLength are set by the parser
+   * @param now System.nanoTime()
+   */
+  void parsed(HttpRequest request, long now) {
+    phases[0].record(now - request.startNanos);
+    bytesIn.add(request.headLength + request.body.length);
+  }
+
+  /**
+   * The handler's response is ready
+   * @param nanos time from routing to the response
+   */
+  void handled(long nanos) {
+    phases[1].record(nanos);
+  }
+
+  /**
+   * The last byte of a response has been written. Counts the request under
+   * its route and status.
+   * @return time from the first request byte to now, in nanoseconds
+   */
+  long responded(HttpResponse response) {
+    long now = System.nanoTime();
+    long prepared = response.preparedNanos();
+    phases[2].record(now - prepared);
+    bytesOut.add(response.bytesSent());
+
+    String name = response.route != null ? response.route : Router.UNMATCHED;
+    RouteMetrics route = routes.get(name);
+    if (route == null) {
+      route = routes.computeIfAbsent(name, n -> new RouteMetrics());
+    }
+    long start = response.startNanos != 0 ? response.startNanos : prepared;
+    long nanos = now - start;
+    route.latency.record(nanos);
+    String status = response.status.substring(0, 3);
+    LongAdder count = route.byStatus.get(status);
+    if (count == null) {
+      count = route.byStatus.computeIfAbsent(status, s -> new LongAdder());
+    }
+    count.increment();
+    return nanos;
+  }
+
+  /**
+   * All metrics in the Prometheus text exposition format
+   * @param admission for the requests in flight and waiting
+   * @param shards for the connections and requests per shard
+   */
+  String prometheus(Admission admission, Shard[] shards) {
+    StringBuilder out = new StringBuilder(16 * 1024);
+    // sorted so the output is stable between scrapes
+    Map<String, RouteMetrics> sorted = new TreeMap<>(routes);
+
+    out.append("# HELP fun_requests_total Requests answered, by route and status.\n");
+    out.append("# TYPE fun_requests_total counter\n");
+    for (Map.Entry<String, RouteMetrics> route : sorted.entrySet()) {
+      for (Map.Entry<String, LongAdder> status
+          : new TreeMap<>(route.getValue().byStatus).entrySet()) {
+        out.append("fun_requests_total{route=\"").append(escape(route.getKey()))
+            .append("\",status=\"").append(status.getKey()).append("\"} ")
+            .append(status.getValue().sum()).append('\n');
+      }
+    }
+
+    out.append("# HELP fun_request_duration_seconds Time from the first request byte to "
+        + "the last response byte, by route.\n");
+    out.append("# TYPE fun_request_duration_seconds histogram\n");
+    for (Map.Entry<String, RouteMetrics> route : sorted.entrySet()) {
+      route.getValue().latency.write(out, "fun_request_duration_seconds",
+          "route=\"" + escape(route.getKey()) + "\"");
+    }
+
+    out.append("# HELP fun_phase_duration_seconds Time spent parsing requests, in handlers "
+        + "and writing responses.\n");
+    out.append("# TYPE fun_phase_duration_seconds histogram\n");
+    for (int i = 0; i < PHASES.length; i++) {
+      phases[i].write(out, "fun_phase_duration_seconds", "phase=\"" + PHASES[i] + "\"");
+    }
+
+    counter(out, "fun_received_bytes_total", "Request bytes received.", bytesIn.sum());
+    counter(out, "fun_sent_bytes_total", "Response bytes sent.", bytesOut.sum());
+    counter(out, "fun_connections_total", "Connections accepted.", connections.sum());
+    counter(out, "fun_connections_refused_total",
+        "Connections turned away because too many were open.", refusedConnections.sum());
+    gauge(out, "fun_connections_active", "Connections currently open.",
+        activeConnections.sum());
+    gauge(out, "fun_requests_in_flight", "Requests being handled.", admission.inFlight());
+    gauge(out, "fun_requests_queued", "Requests waiting for a turn.", admission.queued());
+
+    out.append("# HELP fun_shard_connections_total Connections accepted, by shard.\n");
+    out.append("# TYPE fun_shard_connections_total counter\n");
+    for (Shard shard : shards) {
+      out.append("fun_shard_connections_total{shard=\"").append(shard.index).append("\"} ")
+          .append(shard.connections.sum()).append('\n');
+    }
+    out.append("# HELP fun_shard_requests_total Responses written, by shard.\n");
+    out.append("# TYPE fun_shard_requests_total counter\n");
+    for (Shard shard : shards) {
+      out.append("fun_shard_requests_total{shard=\"").append(shard.index).append("\"} ")
+          .append(shard.requests.sum()).append('\n');
+    }
+
+    bySize(out, "fun_buffers_acquired_total", "counter",
+        "Direct buffers taken from the BufferPool, by size.", BufferPool::acquired);
+    bySize(out, "fun_buffers_allocated_total", "counter",
+        "Direct buffers allocated because none of the size was free.", BufferPool::allocated);
+    bySize(out, "fun_buffers_in_use", "gauge",
+        "Direct buffers taken and not yet released.", BufferPool::inUse);
+    bySize(out, "fun_buffers_free", "gauge",
+        "Direct buffers in the shared free list, thread caches not included.",
+        BufferPool::free);
+    bySize(out, "fun_buffers_dropped_total", "counter",
+        "Released buffers left to the garbage collector because the pool was full.",
+        BufferPool::dropped);
+    counter(out, "fun_buffers_unpooled_total",
+        "Buffers larger than the largest pooled size, allocated on their own.",
+        BufferPool.unpooled());
+    counter(out, "fun_buffers_leaked_total",
+        "Buffers garbage collected without being released, with fun.bufferLeaks on.",
+        BufferPool.leaks());
+    return out.toString();
+  }
+
+  private static void bySize(StringBuilder out, String name, String type, String help,
+      IntToLongFunction value) {
+    out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+    out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    for (int i = 0; i < BufferPool.SIZES.length; i++) {
+      out.append(name).append("{size=\"").append(BufferPool.SIZES[i]).append("\"} ")
+          .append(value.applyAsLong(i)).append('\n');
+    }
+  }
+
+  private static void counter(StringBuilder out, String name, String help, long value) {
+    out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+    out.append("# TYPE ").append(name).append(" counter\n");
+    out.append(name).append(' ').append(value).append('\n');
+  }
+
+  private static void gauge(StringBuilder out, String name, String help, long value) {
+    out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+    out.append("# TYPE ").append(name).append(" gauge\n");
+    out.append(name).append(' ').append(value).append('\n');
+  }
+
+  private static String escape(String label) {
+    return label.replace("\\", "\\\\").replace("\"", "\\\"");
+  }
+
+  private static long[] bounds() {
+    long[] bounds = new long[63];
+    long decade = 10_000; // 10 microseconds
+    for (int i = 0; i < bounds.length; i++) {
+      bounds[i] = (i % 9 + 1) * decade;
+      if (i % 9 == 8) {
+        decade *= 10;
+      }
+    }
+    return bounds;
+  }
+
+  private static String[] labels(long[] bounds) {
+    String[] labels = new String[bounds.length];
+    for (int i = 0; i < bounds.length; i++) {
+      labels[i] = BigDecimal.valueOf(bounds[i], 9).stripTrailingZeros().toPlainString();
+    }
+    return labels;
+  }
+}
@@ -0,0 +1,414 @@
+package funHttpServer;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * POST /multiply: many products in one request, so the cost of a request
+ * is shared by thousands of multiplications.
+ *
+ * The body holds operand pairs, either one pair per line ("3 4", "3,4" or
+ * tab separated, blank lines are skipped) or, with Content-Type
+ * application/json or a body starting with "[", as a JSON array of two
+ * element arrays ([[3,4],[5,6]]). The bytes are scanned once, straight into
+ * two long arrays, without a String or a boxed number per operand.
+ *
+ * If any pair is malformed nothing is computed: the answer is 400 with one
+ * message per bad line (or array item). Otherwise the products are streamed
+ * back in the order and format of the request, one per line or as a JSON
+ * array, and computed while they are written. A product that does not fit
+ * in a long is reported in its place as "overflow" instead of wrapping
+ * around.
+ */
+final class MultiplyBatch {
+
+  /** bad lines listed in a 400 response, the rest are only counted */
+  private static final int MAX_ERRORS = 100;
+
+  /** longest product with its separators */
+  private static final int MAX_RESULT_BYTES = 24;
+
+  private static final byte[] OVERFLOW = "overflow".getBytes(StandardCharsets.US_ASCII);
+  private static final byte[] JSON_OVERFLOW =
+      "\"overflow\"".getBytes(StandardCharsets.US_ASCII);
+
+  // what number() found
+  private static final int NUMBER = 0;
+  private static final int NOT_A_NUMBER = 1;
+  private static final int OUT_OF_RANGE = 2;
+
+  private final byte[] body;
+  private final boolean json;
+
+  private long[] left;
+  private long[] right;
+  private int count;
+
+  /** what the last number() call found, and the value if it was a NUMBER */
+  private int found;
+  private long value;
+
+  private final StringBuilder errors = new StringBuilder();
+  private int errorCount;
+
+  /** set when the JSON is broken beyond finding the next item */
+  private String malformed;
+
+  private MultiplyBatch(byte[] body, boolean json) {
+    this.body = body;
+    this.json = json;
+    int guess = Math.max(16, Math.min(body.length / 8, 1 << 20));
+    left = new long[guess];
+    right = new long[guess];
+  }
+
+  /**
+   * Parses the pairs in the request body and answers with their products,
+   * or with 400 and what is wrong with the body
+   */
+  static HttpResponse respond(HttpRequest request) {
+    byte[] body = request.body;
+    String type = request.header("Content-Type");
+    int first = 0;
+    while (first < body.length && isSpace(body[first])) {
+      first++;
+    }
+    boolean json = (type != null && type.regionMatches(true, 0, "application/json", 0, 16))
+        || (first < body.length && body[first] == '[');
+
+    MultiplyBatch batch = new MultiplyBatch(body, json);
+    if (json) {
+      batch.parseJson(first);
+    } else {
+      batch.parseLines();
+    }
+
+    if (batch.malformed != null) {
+      return badRequest(batch.malformed + "\n");
+    }
+    if (batch.errorCount > 0) {
+      if (batch.errorCount > MAX_ERRORS) {
+        batch.errors.append("... and ").append(batch.errorCount - MAX_ERRORS).append(" more\n");
+      }
+      return badRequest(batch.errors.toString());
+    }
+    if (batch.count == 0) {
+      return badRequest(json
+          ? "No operand pairs, expected e.g. [[3,4],[5,6]]\n"
+          : "No operand pairs, expected one pair per line, e.g. 3 4\n");
+    }
+    return HttpResponse.streaming("200 OK",
+        json ? "application/json" : "text/plain; charset=utf-8", batch::write);
+  }
+
+  private static HttpResponse badRequest(String message) {
+    return HttpResponse.of("400 Bad Request", "text/plain; charset=utf-8",
+        message.getBytes(StandardCharsets.UTF_8));
+  }
+
+  /**
+   * One pair per line, the two numbers separated by spaces, tabs or a comma
+   */
+  private void parseLines() {
+    int line = 1;
+    int start = 0;
+    while (start < body.length) {
+      int end = start;
+      while (end < body.length && body[end] != '\n') {
+        end++;
+      }
+      int stop = end > start && body[end - 1] == '\r' ? end - 1 : end;
+      parseLine(line, start, stop);
+      start = end + 1;
+      line++;
+    }
+  }
+
+  private void parseLine(int line, int from, int to) {
+    int i = skipBlanks(from, to);
+    if (i == to) {
+      return;
+    }
+    i = number(i, to);
+    if (found != NUMBER) {
+      lineError("line", line);
+      return;
+    }
+    long a = value;
+
+    int j = skipBlanks(i, to);
+    if (j < to && body[j] == ',') {
+      j = skipBlanks(j + 1, to);
+    } else if (j == i) {
+      // "3x 4" or a single number
+      found = NOT_A_NUMBER;
+      lineError("line", line);
+      return;
+    }
+    i = number(j, to);
+    if (found != NUMBER || skipBlanks(i, to) != to) {
+      found = found == NUMBER ? NOT_A_NUMBER : found;
+      lineError("line", line);
+      return;
+    }
+    add(a, value);
+  }
+
+  /**
+   * A JSON array of [integer, integer] items. A bad item is reported and
+   * skipped; JSON that is broken as a whole stops the parse.
+   * @param i position of the first byte that is not whitespace
+   */
+  private void parseJson(int i) {
+    int end = body.length;
+    if (i == end || body[i] != '[') {
+      malformed = "Malformed JSON at byte " + i + ", expected [[integer, integer], ...]";
+      return;
+    }
+    i = skipSpace(i + 1);
+    if (i < end && body[i] == ']') {
+      i = skipSpace(i + 1);
+    } else {
+      int item = 1;
+      while (true) {
+        i = item(item, i);
+        if (i < 0) {
+          return;
+        }
+        i = skipSpace(i);
+        if (i < end && body[i] == ',') {
+          i = skipSpace(i + 1);
+          item++;
+        } else if (i < end && body[i] == ']') {
+          i = skipSpace(i + 1);
+          break;
+        } else {
+          malformed = "Malformed JSON at byte " + i + ", expected , or ]";
+          return;
+        }
+      }
+    }
+    if (i != end) {
+      malformed = "Malformed JSON at byte " + i + ", expected the end of the body";
+    }
+  }
+
+  /**
+   * Parses one [integer, integer] item
+   * @return position after the item, -1 if the JSON is malformed
+   */
+  private int item(int item, int start) {
+    int end = body.length;
+    int i = start;
+    if (i < end && body[i] == '[') {
+      i = number(skipSpace(i + 1), end);
+      long a = value;
+      int ok = found;
+      i = skipSpace(i);
+      if (ok != NOT_A_NUMBER && i < end && body[i] == ',') {
+        i = number(skipSpace(i + 1), end);
+        ok = found == NUMBER ? ok : found;
+        i = skipSpace(i);
+        if (found != NOT_A_NUMBER && i < end && body[i] == ']') {
+          if (ok == NUMBER) {
+            add(a, value);
+          } else {
+            found = ok;
+            lineError("item", item);
+          }
+          return i + 1;
+        }
+      }
+    }
+    // not [integer, integer]: report it and go on after it, if it is valid JSON
+    found = NOT_A_NUMBER;
+    lineError("item", item);
+    i = skipValue(start);
+    if (i < 0) {
+      malformed = "Malformed JSON at byte " + start + ", item " + item + " does not end";
+    }
+    return i;
+  }
+
+  /**
+   * Reads an optionally signed integer starting at i. Sets found, and value
+   * when found is NUMBER.
+   * @return position after the digits
+   */
+  private int number(int i, int to) {
+    boolean negative = false;
+    if (i < to && (body[i] == '-' || body[i] == '+')) {
+      negative = body[i] == '-';
+      i++;
+    }
+    int digits = i;
+    boolean overflow = false;
+    // summed up as a negative number, which reaches one further than a positive one
+    long v = 0;
+    while (i < to && body[i] >= '0' && body[i] <= '9') {
+      int d = body[i] - '0';
+      if (v < Long.MIN_VALUE / 10 || v * 10 < Long.MIN_VALUE + d) {
+        overflow = true;
+      } else {
+        v = v * 10 - d;
+      }
+      i++;
+    }
+    if (i == digits || (json && i < to && (body[i] == '.' || body[i] == 'e' || body[i] == 'E'))) {
+      found = NOT_A_NUMBER;
+    } else if (overflow || (!negative && v == Long.MIN_VALUE)) {
+      found = OUT_OF_RANGE;
+    } else {
+      found = NUMBER;
+      value = negative ? v : -v;
+    }
+    return i;
+  }
+
+  /**
+   * Skips one JSON value: a string, an array or object with everything in
+   * it, or a number or literal
+   * @return position after the value, -1 if it does not end
+   */
+  private int skipValue(int i) {
+    int end = body.length;
+    int depth = 0;
+    while (i < end) {
+      byte b = body[i];
+      if (b == '"') {
+        i++;
+        while (i < end && body[i] != '"') {
+          i += body[i] == '\\' ? 2 : 1;
+        }
+        if (i >= end) {
+          return -1;
+        }
+        i++;
+      } else if (b == '[' || b == '{') {
+        depth++;
+        i++;
+      } else if (b == ']' || b == '}') {
+        if (depth == 0) {
+          return i;
+        }
+        depth--;
+        i++;
+      } else if (b == ',' && depth == 0) {
+        return i;
+      } else {
+        i++;
+      }
+      if (depth == 0 && i < end && (body[i] == ',' || body[i] == ']' || isSpace(body[i]))) {
+        return i;
+      }
+    }
+    return depth == 0 ? i : -1;
+  }
+
+  private void lineError(String what, int number) {
+    errorCount++;
+    if (errorCount > MAX_ERRORS) {
+      return;
+    }
+    errors.append(what).append(' ').append(number).append(": ");
+    if (found == OUT_OF_RANGE) {
+      errors.append("number does not fit in a long\n");
+    } else if (json) {
+      errors.append("expected [integer, integer]\n");
+    } else {
+      errors.append("expected two integers separated by a space, tab or comma\n");
+    }
+  }
+
+  private void add(long a, long b) {
+    if (count == left.length) {
+      int size = count + (count >> 1);
+      left = Arrays.copyOf(left, size);
+      right = Arrays.copyOf(right, size);
+    }
+    left[count] = a;
+    right[count] = b;
+    count++;
+  }
+
+  /**
+   * Streams the products, filling a buffer of digits and handing it over
+   * whole instead of one small write per product
+   */
+  private void write(ResponseWriter out) throws IOException {
+    byte[] buf = new byte[ResponseWriter.CHUNK_SIZE];
+    int n = 0;
+    if (json) {
+      buf[n++] = '[';
+    }
+    for (int i = 0; i < count; i++) {
+      if (n > buf.length - MAX_RESULT_BYTES) {
+        out.write(buf, 0, n);
+        n = 0;
+      }
+      if (json && i > 0) {
+        buf[n++] = ',';
+      }
+      long a = left[i];
+      long b = right[i];
+      long low = a * b;
+      // the full product has 128 bits, it fits in a long when the high half
+      // is only the sign extension of the low half
+      if (Math.multiplyHigh(a, b) != (low >> 63)) {
+        byte[] overflow = json ? JSON_OVERFLOW : OVERFLOW;
+        System.arraycopy(overflow, 0, buf, n, overflow.length);
+        n += overflow.length;
+      } else {
+        n = putLong(buf, n, low);
+      }
+      if (!json) {
+        buf[n++] = '\n';
+      }
+    }
+    if (json) {
+      buf[n++] = ']';
+      buf[n++] = '\n';
+    }
+    out.write(buf, 0, n);
+  }
+
+  /** writes v in decimal at buf[n], returns the position after it */
+  private static int putLong(byte[] buf, int n, long v) {
+    if (v < 0) {
+      buf[n++] = '-';
+    } else {
+      v = -v;
+    }
+    // digits of the negative value, lowest first, then turned around
+    int start = n;
+    do {
+      buf[n++] = (byte) ('0' - v % 10);
+      v /= 10;
+    } while (v != 0);
+    for (int i = start, j = n - 1; i < j; i++, j--) {
+      byte t = buf[i];
+      buf[i] = buf[j];
+      buf[j] = t;
+    }
+    return n;
+  }
+
+  private int skipBlanks(int i, int to) {
+    while (i < to && (body[i] == ' ' || body[i] == '\t')) {
+      i++;
+    }
+    return i;
+  }
+
+  private int skipSpace(int i) {
+    while (i < body.length && isSpace(body[i])) {
+      i++;
+    }
+    return i;
+  }
+
+  private static boolean isSpace(byte b) {
+    return b == ' ' || b == '\t' || b == '\n' || b == '\r';
+  }
+}
@@ -0,0 +1,413 @@
+package funHttpServer;
+
+import java.io.IOException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Non-blocking server engine. One selector thread accepts connections, reads
+ * requests incrementally and writes responses as the sockets become writable,
+ * so idle keep-alive connections cost a buffer instead of a thread. Complete
+ * requests are handed to the worker executor, which runs the normal
+ * createResponse route logic and passes the response back to the selector.
+ * There is one per shard, each with its own socket, selector and workers.
+ */
+class NioServer {
+
+  /** how often idle connections are checked, in ms */
+  private static final long SWEEP_INTERVAL = 1000;
+
+  private final WebServer app;
+  private final ServerConfig config;
+  private final Shard shard;
+  private final ExecutorService workers;
+  private final Selector selector;
+
+  /** scratch space for reading what clients send after an error response */
+  private final ByteBuffer discard = ByteBuffer.allocate(4096);
+
+  /** work the worker threads hand back to the selector thread */
+  private final Queue<Runnable> pending = new ConcurrentLinkedQueue<>();
+
+  /**
+   * @param app the server whose createResponse answers the requests
+   * @param config port, keep-alive and timeout settings
+   * @param shard the listening socket, the workers that run createResponse
+   *        and the counters
+   */
+  NioServer(WebServer app, ServerConfig config, Shard shard) throws IOException {
+    this.app = app;
+    this.config = config;
+    this.shard = shard;
+    this.workers = shard.workers;
+    this.selector = Selector.open();
+  }
+
+  /**
+   * Runs the selector loop on the calling thread until the server socket is
+   * closed (see wakeup) or the loop fails. Open connections are closed on
+   * the way out.
+   */
+  void serve() throws IOException {
+    ServerSocketChannel server = shard.server;
+    try {
+      server.configureBlocking(false);
+      server.register(selector, SelectionKey.OP_ACCEPT);
+
+      long nextSweep = System.currentTimeMillis() + SWEEP_INTERVAL;
+      while (server.isOpen()) {
+        selector.select(SWEEP_INTERVAL);
+
+        Runnable task;
+        while ((task = pending.poll()) != null) {
+          task.run();
+        }
+
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+          SelectionKey key = keys.next();
+          keys.remove();
+          if (!key.isValid()) {
+            continue;
+          }
+          if (key.isAcceptable()) {
+            accept(server);
+            continue;
+          }
+          Connection conn = (Connection) key.attachment();
+          try {
+            if (key.isReadable()) {
+              conn.read();
+            }
+            if (key.isValid() && key.isWritable()) {
+              conn.write();
+            }
+          } catch (IOException e) {
+            conn.close();
+          }
+        }
+
+        long now = System.currentTimeMillis();
+        if (now >= nextSweep) {
+          sweep(now);
+          nextSweep = now + SWEEP_INTERVAL;
+        }
+      }
+    } finally {
+      for (SelectionKey key : selector.keys()) {
+        if (key.attachment() instanceof Connection) {
+          ((Connection) key.attachment()).close();
+        }
+      }
+      selector.close();
+    }
+  }
+
+  /**
+   * Wakes the selector, e.g. so serve notices the server socket was closed
+   */
+  void wakeup() {
+    selector.wakeup();
+  }
+
+  private void accept(ServerSocketChannel server) throws IOException {
+    SocketChannel channel;
+    while ((channel = server.accept()) != null) {
+      channel.configureBlocking(false);
+      channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+      if (!app.connectionOpened(channel)) {
+        continue;
+      }
+      shard.connections.increment();
+      Connection conn = new Connection(channel);
+      conn.key = channel.register(selector, SelectionKey.OP_READ, conn);
+    }
+  }
+
+  /**
+   * Closes keep-alive connections that have not sent anything for longer than
+   * the idle timeout, and answers 408 to clients that are sending a request
+   * but have missed its header or body deadline (or gone idle halfway).
+   * Connections whose request is being handled are left alone.
+   */
+  private void sweep(long now) {
+    long nanos = System.nanoTime();
+    for (SelectionKey key : selector.keys()) {
+      if (key.attachment() instanceof Connection) {
+        Connection conn = (Connection) key.attachment();
+        if (conn.busy) {
+          continue;
+        }
+        boolean idle = now - conn.lastActive > config.idleTimeoutMillis;
+        if (conn.lingering || !conn.parser.inProgress()) {
+          if (idle) {
+            conn.close();
+          }
+        } else if (idle || conn.parser.expired(nanos)) {
+          conn.reject(RequestParser.timedOut());
+        }
+      }
+    }
+  }
+
+  /**
+   * State of one client connection. All fields are only touched on the
+   * selector thread, workers go through the pending queue.
+   */
+  private class Connection {
+    final SocketChannel channel;
+    SelectionKey key;
+
+    /** parses requests as bytes arrive, may hold several pipelined requests */
+    final RequestParser parser = new RequestParser(config.maxHeaderBytes, config.maxBodyBytes,
+        config.headerTimeoutMillis, config.bodyTimeoutMillis);
+
+    /** response being written, null when there is none */
+    HttpResponse out;
+
+    /** holds the head of out, reused for every response, pooled until the connection ends */
+    ByteBuffer head = ResponseHead.buffer();
+
+    /** a request is being handled or its response written */
+    boolean busy;
+    boolean closeAfterWrite;
+
+    /** an error response was sent, only waiting for the client to close */
+    boolean lingering;
+    int served;
+    long lastActive = System.currentTimeMillis();
+
+    Connection(SocketChannel channel) {
+      this.channel = channel;
+    }
+
+    void read() throws IOException {
+      if (lingering) {
+        discard.clear();
+        if (channel.read(discard) == -1) {
+          close();
+        }
+        return;
+      }
+      int n;
+      try {
+        n = parser.fill(channel);
+      } catch (RequestParser.BadRequest e) {
+        reject(e);
+        return;
+      }
+      if (n == -1) {
+        close();
+        return;
+      }
+      lastActive = System.currentTimeMillis();
+      dispatch();
+    }
+
+    /**
+     * Hands the next complete request to a worker. Only one request per
+     * connection is in flight so pipelined responses go out in order, and the
+     * parser buffer the request points into stays untouched until the
+     * response has been written.
+     */
+    void dispatch() {
+      if (busy) {
+        return;
+      }
+      HttpRequest req;
+      try {
+        req = parser.parse();
+      } catch (RequestParser.BadRequest e) {
+        reject(e);
+        return;
+      }
+      if (req == null) {
+        return;
+      }
+      busy = true;
+      key.interestOps(0);
+      if (app.http2Requested(req)) {
+        http2(req);
+        return;
+      }
+
+      served++;
+      boolean keepAlive = req.keepAlive() && served < config.maxRequestsPerConnection;
+      CompletableFuture<Boolean> turn = app.admission.enter();
+      if (turn.isDone()) {
+        admit(req, keepAlive, turn.join());
+      } else {
+        // waits without a thread, the connection stays busy meanwhile
+        turn.thenAccept(admitted -> {
+          pending.add(() -> admit(req, keepAlive, admitted));
+          selector.wakeup();
+        });
+      }
+    }
+
+    /**
+     * Hands an admitted request to a worker, or answers 503 if admission
+     * control turned it away
+     */
+    void admit(HttpRequest req, boolean keepAlive, boolean admitted) {
+      if (!admitted) {
+        respond(app.overloaded(req), keepAlive);
+        return;
+      }
+      if (!key.isValid()) {
+        app.admission.exit(); // the client left while it waited
+        return;
+      }
+      try {
+        workers.execute(() -> handle(req, keepAlive));
+      } catch (RejectedExecutionException e) {
+        app.admission.exit();
+        close();
+      }
+    }
+
+    /**
+     * The client switches to HTTP/2. The connection leaves the selector and
+     * goes on in blocking mode with threads of its own, once the selector
+     * has dropped its key.
+     */
+    void http2(HttpRequest req) {
+      byte[] received = parser.remaining();
+      key.cancel();
+      releaseHead();
+      pending.add(() -> {
+        try {
+          channel.configureBlocking(true);
+        } catch (IOException e) {
+          app.connectionClosed();
+          try {
+            channel.close();
+          } catch (IOException closeFailed) {
+            // already gone
+          }
+          return;
+        }
+        app.serveHttp2(channel, req, received, shard);
+      });
+      selector.wakeup();
+    }
+
+    /**
+     * Answers a request that cannot be served with its error status, then
+     * waits for the client to close
+     */
+    void reject(RequestParser.BadRequest e) {
+      busy = true;
+      lingering = true;
+      respond(WebServer.errorResponse(e.status, e.getMessage()), false);
+    }
+
+    /**
+     * Runs on a worker thread. Asynchronous routes finish on whatever thread
+     * completes them, the worker is free as soon as the route has started.
+     */
+    void handle(HttpRequest req, boolean keepAlive) {
+      app.admitted(req).thenAccept(response -> {
+        pending.add(() -> respond(response, keepAlive));
+        selector.wakeup();
+      });
+    }
+
+    void respond(HttpResponse response, boolean keepAlive) {
+      if (!key.isValid()) {
+        response.close();
+        return;
+      }
+      closeAfterWrite = !response.prepare(keepAlive, head);
+      out = response;
+      if (response.isStreaming()) {
+        // the handler writes on a worker while the headers go out
+        try {
+          response.startProducer(workers, () -> {
+            pending.add(() -> resume(response));
+            selector.wakeup();
+          });
+        } catch (RejectedExecutionException e) {
+          close();
+          return;
+        }
+      }
+      key.interestOps(SelectionKey.OP_WRITE);
+    }
+
+    /**
+     * A streaming handler produced more, start writing again
+     */
+    void resume(HttpResponse response) {
+      if (out == response && key.isValid()) {
+        key.interestOps(SelectionKey.OP_WRITE);
+      }
+    }
+
+    void write() throws IOException {
+      if (out == null) {
+        return;
+      }
+      if (!out.writeTo(channel)) {
+        if (out.stalled()) {
+          key.interestOps(0); // nothing to send until the handler writes more
+        }
+        return; // otherwise the socket buffer is full, wait for the next OP_WRITE
+      }
+      app.responded(out);
+      shard.requests.increment();
+      out.close();
+      out = null;
+      lastActive = System.currentTimeMillis();
+      if (lingering) {
+        // after an error, closing with unread request bytes would reset the
+        // connection and could destroy the response, so wait for the client
+        // to close (or the idle sweep) while discarding what it sends
+        channel.shutdownOutput();
+        busy = false;
+        key.interestOps(SelectionKey.OP_READ);
+        return;
+      }
+      if (closeAfterWrite) {
+        close();
+        return;
+      }
+      busy = false;
+      parser.next();
+      key.interestOps(SelectionKey.OP_READ);
+      dispatch();
+    }
+
+    void close() {
+      if (!channel.isOpen()) {
+        return;
+      }
+      app.connectionClosed();
+      if (out != null) {
+        out.close();
+      }
+      key.cancel();
+      releaseHead();
+      try {
+        channel.close();
+      } catch (IOException e) {
+        // already gone
+      }
+    }
+
+    private void releaseHead() {
+      BufferPool.release(head);
+      head = null;
+    }
+  }
+}
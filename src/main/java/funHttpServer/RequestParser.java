@@ -0,0 +1,687 @@
+package funHttpServer;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Incremental HTTP/1.x request parser working directly on bytes.
+ *
+ * One parser belongs to one connection and is reused for every request on
+ * it. Bytes are read into a fixed buffer (fill), and parse picks up where it
+ * stopped last time, so a request split over many reads is only scanned
+ * once. The request line and headers are not turned into Strings: the
+ * parser records where each header name and value starts and ends, and
+ * HttpRequest only decodes a value when someone asks for it. The headers
+ * the server itself needs (Content-Length, Connection, Transfer-Encoding)
+ * are interpreted straight from the bytes.
+ *
+ * The whole request head must fit in the buffer, otherwise parse fails with
+ * 431. Pipelined requests stay in the buffer until next() moves on to them.
+ *
+ * A body comes with a Content-Length, or with Transfer-Encoding: chunked.
+ * Chunked bodies are decoded as they arrive: the head is copied out of the
+ * buffer, which then holds the chunk framing while the data goes into a
+ * body array that grows up to the body limit. Other transfer codings are
+ * answered with 501.
+ */
+class RequestParser {
+
+  /** thrown for requests we cannot or will not parse */
+  static class BadRequest extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    /** status line to answer with, e.g. "400 Bad Request" */
+    final String status;
+
+    BadRequest(String status, String message) {
+      super(message);
+      this.status = status;
+    }
+  }
+
+  /** methods we hand out as constants instead of allocating a String */
+  private static final String[] METHODS = {
+    "GET", "HEAD", "POST", "PUT", "DELETE", "OPTIONS", "PATCH", "TRACE", "CONNECT"
+  };
+  private static final byte[][] METHOD_BYTES = ascii(METHODS);
+
+  private static final byte[] HTTP_1_1 = ascii("HTTP/1.1");
+  private static final byte[] HTTP_1_0 = ascii("HTTP/1.0");
+
+  /** the HTTP/2 connection preface starts like a request, see Http2Connection */
+  private static final byte[] PREFACE_LINE = ascii("PRI * HTTP/2.0");
+  private static final byte[] CONTENT_LENGTH = ascii("content-length");
+  private static final byte[] TRANSFER_ENCODING = ascii("transfer-encoding");
+  private static final byte[] CONNECTION = ascii("connection");
+  private static final byte[] CLOSE = ascii("close");
+  private static final byte[] KEEP_ALIVE = ascii("keep-alive");
+  private static final byte[] CHUNKED = ascii("chunked");
+
+  /** default limit for the request line plus headers */
+  static final int DEFAULT_MAX_HEAD_BYTES = 8 * 1024;
+
+  /** default limit for a request body */
+  static final int DEFAULT_MAX_BODY_BYTES = 16 * 1024 * 1024;
+
+  /** most headers we accept in one request */
+  static final int MAX_HEADERS = 100;
+
+  private static final int REQUEST_LINE = 0;
+  private static final int HEADERS = 1;
+  private static final int BODY = 2;
+  private static final int COMPLETE = 3;
+  private static final int CHUNKS = 4;
+
+  // what comes next in a chunked body, besides chunk data (chunkLeft > 0)
+  private static final long SIZE_LINE = -1;
+  private static final long DATA_END = -2;
+  private static final long TRAILER = -3;
+
+  /** first size of the body array of a chunked request */
+  private static final int FIRST_CHUNKED_BODY = 8192;
+
+  private final byte[] buf;
+  private final ByteBuffer bufView;
+  private final int maxBodyBytes;
+
+  /** time allowed for the request line and headers, and for the body; 0 for no limit */
+  private final long headTimeoutNanos;
+  private final long bodyTimeoutNanos;
+
+  /** bytes in buf: [0, end). The current request starts at 0 */
+  private int end;
+
+  /** everything before pos has been parsed */
+  private int pos;
+
+  private int state = REQUEST_LINE;
+
+  /** the request being parsed, reused for every request on the connection */
+  private final HttpRequest request = new HttpRequest();
+  private final int[] headerOffsets = new int[MAX_HEADERS * 4];
+  private int headerCount;
+
+  private long contentLength;
+  private boolean contentLengthSeen;
+  private boolean transferEncoding;
+  private boolean chunked;
+  private boolean connectionClose;
+  private boolean connectionKeepAlive;
+  private int bodyFilled;
+  private ByteBuffer bodyView;
+
+  /** in a chunked body: data bytes left in the current chunk, or what comes next */
+  private long chunkLeft;
+
+  /** System.nanoTime() when the head was complete and the body started */
+  private long bodyStartNanos;
+
+  /**
+   * Parser without read deadlines
+   * @param maxHeadBytes largest request line plus headers we accept
+   * @param maxBodyBytes largest request body we accept
+   */
+  RequestParser(int maxHeadBytes, int maxBodyBytes) {
+    this(maxHeadBytes, maxBodyBytes, 0, 0);
+  }
+
+  /**
+   * @param maxHeadBytes largest request line plus headers we accept
+   * @param maxBodyBytes largest request body we accept
+   * @param headTimeoutMillis time from the first byte of a request to the end
+   *        of its headers, 0 for no limit
+   * @param bodyTimeoutMillis time from the end of the headers to the end of
+   *        the body, 0 for no limit
+   */
+  RequestParser(int maxHeadBytes, int maxBodyBytes, int headTimeoutMillis,
+      int bodyTimeoutMillis) {
+    this.buf = new byte[maxHeadBytes];
+    this.bufView = ByteBuffer.wrap(buf);
+    this.maxBodyBytes = maxBodyBytes;
+    this.headTimeoutNanos = headTimeoutMillis * 1_000_000L;
+    this.bodyTimeoutNanos = bodyTimeoutMillis * 1_000_000L;
+  }
+
+  /**
+   * Reads one complete request from a blocking stream
+   * @param in connection input stream
+   * @return the request, or null if the stream ended before a new request
+   * @throws BadRequest if the request is malformed or too large
+   * @throws IOException if reading fails or the stream ends mid request
+   */
+  HttpRequest read(InputStream in) throws IOException {
+    return read(in, null, 0);
+  }
+
+  /**
+   * Reads one complete request from a blocking socket and holds the client
+   * to the read deadlines: before every read the socket timeout is set to
+   * what is left of the deadline, or to the idle timeout between requests.
+   * A client that sends a request too slowly (or stops halfway) gets 408.
+   * @param in the socket's input stream
+   * @param socket the socket, its timeout is changed; null to leave it alone
+   * @param idleMillis timeout while waiting for the first byte of a request
+   * @return the request, or null if the stream ended before a new request
+   * @throws BadRequest if the request is malformed, too large or too slow
+   * @throws SocketTimeoutException if no request started within idleMillis
+   * @throws IOException if reading fails or the stream ends mid request
+   */
+  HttpRequest read(InputStream in, Socket socket, int idleMillis) throws IOException {
+    HttpRequest req = parse();
+    while (req == null) {
+      if (socket != null) {
+        int timeout = idleMillis;
+        long deadline = deadline();
+        if (deadline != Long.MAX_VALUE) {
+          long left = (deadline - System.nanoTime()) / 1_000_000;
+          if (left <= 0) {
+            throw timedOut();
+          }
+          timeout = (int) Math.min(timeout, left);
+        }
+        if (socket.getSoTimeout() != timeout) {
+          socket.setSoTimeout(timeout);
+        }
+      }
+      int n;
+      try {
+        n = fill(in);
+      } catch (SocketTimeoutException e) {
+        if (inProgress()) {
+          throw timedOut();
+        }
+        throw e;
+      }
+      if (n < 0) {
+        if (state == REQUEST_LINE && pos == end) {
+          return null;
+        }
+        throw new EOFException("connection closed in the middle of a request");
+      }
+      req = parse();
+    }
+    return req;
+  }
+
+  /**
+   * Reads whatever is available from the stream into the parser
+   * @return number of bytes read, -1 at end of stream
+   */
+  int fill(InputStream in) throws IOException {
+    if (state == BODY) {
+      int n = in.read(request.body, bodyFilled, request.body.length - bodyFilled);
+      if (n > 0) {
+        bodyFilled += n;
+      }
+      return n;
+    }
+    if (state == CHUNKS) {
+      compact();
+    } else if (end == buf.length) {
+      throw tooLarge();
+    }
+    int n = in.read(buf, end, buf.length - end);
+    if (n > 0) {
+      end += n;
+    }
+    return n;
+  }
+
+  /**
+   * Reads whatever the channel has into the parser without blocking
+   * @return number of bytes read, -1 at end of stream
+   */
+  int fill(ReadableByteChannel in) throws IOException {
+    if (state == BODY) {
+      bodyView.limit(request.body.length).position(bodyFilled);
+      int n = in.read(bodyView);
+      if (n > 0) {
+        bodyFilled += n;
+      }
+      return n;
+    }
+    if (state == CHUNKS) {
+      compact();
+    } else if (end == buf.length) {
+      throw tooLarge();
+    }
+    bufView.limit(buf.length).position(end);
+    int n = in.read(bufView);
+    if (n > 0) {
+      end += n;
+    }
+    return n;
+  }
+
+  /**
+   * Parses as far as the bytes read so far allow
+   * @return the request once it is complete (head and body), otherwise null
+   * @throws BadRequest if the request is malformed or too large
+   */
+  HttpRequest parse() throws BadRequest {
+    if (request.startNanos == 0 && end > 0) {
+      request.startNanos = System.nanoTime();
+    }
+    while (state == REQUEST_LINE || state == HEADERS) {
+      int newline = indexOf(buf, (byte) '\n', pos, end);
+      if (newline < 0) {
+        if (end == buf.length) {
+          throw tooLarge();
+        }
+        return null;
+      }
+      int lineStart = pos;
+      int lineEnd = newline;
+      if (lineEnd > lineStart && buf[lineEnd - 1] == '\r') {
+        lineEnd--;
+      }
+      pos = newline + 1;
+
+      if (state == REQUEST_LINE) {
+        if (lineEnd > lineStart) {
+          requestLine(lineStart, lineEnd);
+          state = HEADERS;
+        }
+        // empty lines before a request are tolerated
+      } else if (lineEnd == lineStart) {
+        headEnd();
+      } else {
+        header(lineStart, lineEnd);
+      }
+    }
+
+    if (state == BODY) {
+      int copy = Math.min(end - pos, request.body.length - bodyFilled);
+      System.arraycopy(buf, pos, request.body, bodyFilled, copy);
+      pos += copy;
+      bodyFilled += copy;
+      if (bodyFilled == request.body.length) {
+        state = COMPLETE;
+      }
+    } else if (state == CHUNKS) {
+      chunks();
+    }
+    return state == COMPLETE ? request : null;
+  }
+
+  /**
+   * Moves on to the next request. Call once the previous request (which
+   * shares this parser's buffer) has been answered. Pipelined bytes that were
+   * already read are moved to the front of the buffer.
+   */
+  void next() {
+    int leftover = end - pos;
+    if (leftover > 0) {
+      System.arraycopy(buf, pos, buf, 0, leftover);
+    }
+    end = leftover;
+    pos = 0;
+    state = REQUEST_LINE;
+    headerCount = 0;
+    contentLength = 0;
+    contentLengthSeen = false;
+    transferEncoding = false;
+    chunked = false;
+    connectionClose = false;
+    connectionKeepAlive = false;
+    bodyFilled = 0;
+    bodyView = null;
+    request.reset();
+  }
+
+  /**
+   * Bytes read past the end of the current request, e.g. the first HTTP/2
+   * frames after a connection preface or an upgrade request
+   */
+  byte[] remaining() {
+    return Arrays.copyOfRange(buf, pos, end);
+  }
+
+  /** true if part of a request has been read but not yet parsed to the end */
+  boolean inProgress() {
+    return state != REQUEST_LINE || end > 0;
+  }
+
+  /**
+   * When the request being read has to be complete: the head timeout after
+   * its first byte, then the body timeout after the end of its head
+   * @return a System.nanoTime() value, Long.MAX_VALUE if no request is being
+   *         read or there is no limit
+   */
+  long deadline() {
+    if (state == BODY || state == CHUNKS) {
+      return bodyTimeoutNanos > 0 ? bodyStartNanos + bodyTimeoutNanos : Long.MAX_VALUE;
+    }
+    if (state == COMPLETE || request.startNanos == 0 || headTimeoutNanos == 0) {
+      return Long.MAX_VALUE;
+    }
+    return request.startNanos + headTimeoutNanos;
+  }
+
+  /** whether the request being read has missed its deadline */
+  boolean expired(long now) {
+    long deadline = deadline();
+    return deadline != Long.MAX_VALUE && now - deadline >= 0;
+  }
+
+  /** the error for a request that was not received in time */
+  static BadRequest timedOut() {
+    return new BadRequest("408 Request Timeout", "The request was not received in time");
+  }
+
+  // "GET /index.html HTTP/1.1"
+  private void requestLine(int start, int end) throws BadRequest {
+    if (regionEquals(buf, start, end, PREFACE_LINE)) {
+      // an HTTP/2 client with prior knowledge, the server takes it from here
+      request.method = "PRI";
+      request.target = "*";
+      request.version = "HTTP/2.0";
+      return;
+    }
+    int firstSpace = indexOf(buf, (byte) ' ', start, end);
+    int secondSpace = firstSpace < 0 ? -1 : indexOf(buf, (byte) ' ', firstSpace + 1, end);
+    if (firstSpace <= start || secondSpace < 0 || secondSpace == firstSpace + 1) {
+      throw new BadRequest("400 Bad Request", "Malformed request line");
+    }
+
+    request.method = method(start, firstSpace);
+
+    int targetStart = firstSpace + 1;
+    if (buf[targetStart] != '/') {
+      throw new BadRequest("400 Bad Request", "Request target must start with /");
+    }
+    // skip the leading / like the original parsing did
+    request.target = new String(buf, targetStart + 1, secondSpace - targetStart - 1,
+        StandardCharsets.UTF_8);
+
+    int versionStart = secondSpace + 1;
+    if (regionEquals(buf, versionStart, end, HTTP_1_1)) {
+      request.version = "HTTP/1.1";
+    } else if (regionEquals(buf, versionStart, end, HTTP_1_0)) {
+      request.version = "HTTP/1.0";
+    } else {
+      throw new BadRequest("505 HTTP Version Not Supported", "Unsupported protocol version");
+    }
+  }
+
+  private String method(int start, int end) throws BadRequest {
+    for (int i = 0; i < METHOD_BYTES.length; i++) {
+      if (regionEquals(buf, start, end, METHOD_BYTES[i])) {
+        return METHODS[i];
+      }
+    }
+    for (int i = start; i < end; i++) {
+      if (buf[i] < 'A' || buf[i] > 'Z') {
+        throw new BadRequest("400 Bad Request", "Malformed method");
+      }
+    }
+    return new String(buf, start, end - start, StandardCharsets.US_ASCII);
+  }
+
+  private void header(int start, int end) throws BadRequest {
+    if (buf[start] == ' ' || buf[start] == '\t') {
+      throw new BadRequest("400 Bad Request", "Folded header lines are not supported");
+    }
+    int colon = indexOf(buf, (byte) ':', start, end);
+    if (colon <= start || buf[colon - 1] == ' ' || buf[colon - 1] == '\t') {
+      throw new BadRequest("400 Bad Request", "Malformed header line");
+    }
+    if (headerCount == MAX_HEADERS) {
+      throw new BadRequest("431 Request Header Fields Too Large", "Too many headers");
+    }
+
+    int valueStart = colon + 1;
+    while (valueStart < end && (buf[valueStart] == ' ' || buf[valueStart] == '\t')) {
+      valueStart++;
+    }
+    int valueEnd = end;
+    while (valueEnd > valueStart && (buf[valueEnd - 1] == ' ' || buf[valueEnd - 1] == '\t')) {
+      valueEnd--;
+    }
+
+    int o = headerCount * 4;
+    headerOffsets[o] = start;
+    headerOffsets[o + 1] = colon;
+    headerOffsets[o + 2] = valueStart;
+    headerOffsets[o + 3] = valueEnd;
+    headerCount++;
+
+    if (equalsIgnoreCase(buf, start, colon, CONTENT_LENGTH)) {
+      long length = digits(valueStart, valueEnd);
+      if (contentLengthSeen && length != contentLength) {
+        throw new BadRequest("400 Bad Request", "Conflicting Content-Length headers");
+      }
+      contentLength = length;
+      contentLengthSeen = true;
+    } else if (equalsIgnoreCase(buf, start, colon, TRANSFER_ENCODING)) {
+      // only chunked on its own is supported, not a list of codings
+      chunked = !transferEncoding && equalsIgnoreCase(buf, valueStart, valueEnd, CHUNKED);
+      transferEncoding = true;
+    } else if (equalsIgnoreCase(buf, start, colon, CONNECTION)) {
+      connectionClose |= containsIgnoreCase(buf, valueStart, valueEnd, CLOSE);
+      connectionKeepAlive |= containsIgnoreCase(buf, valueStart, valueEnd, KEEP_ALIVE);
+    }
+  }
+
+  private void headEnd() throws BadRequest {
+    if (transferEncoding && !chunked) {
+      throw new BadRequest("501 Not Implemented",
+          "Only Transfer-Encoding: chunked is supported");
+    }
+    if (chunked && contentLengthSeen) {
+      // which one a proxy in front of us went by is anyone's guess
+      throw new BadRequest("400 Bad Request",
+          "Content-Length and Transfer-Encoding must not be sent together");
+    }
+    if (contentLength > maxBodyBytes) {
+      throw new BadRequest("413 Payload Too Large", "Request body is too large");
+    }
+    request.headLength = pos;
+
+    // HTTP/1.0 has no chunked encoding, a client sending it anyway is not
+    // trusted with another request on the connection
+    boolean http11 = "HTTP/1.1".equals(request.version);
+    request.keepAlive = (http11 || !chunked)
+        && (http11 ? !connectionClose : connectionKeepAlive && !connectionClose);
+
+    if (chunked) {
+      // the head gets a copy of its own, buf is reused for the chunk framing
+      request.setHead(Arrays.copyOf(buf, pos), headerOffsets, headerCount);
+      request.body = new byte[Math.min(FIRST_CHUNKED_BODY, maxBodyBytes)];
+      chunkLeft = SIZE_LINE;
+      bodyStartNanos = System.nanoTime();
+      state = CHUNKS;
+      return;
+    }
+    request.setHead(buf, headerOffsets, headerCount);
+    if (contentLength > 0) {
+      request.body = new byte[(int) contentLength];
+      bodyView = ByteBuffer.wrap(request.body);
+      bodyStartNanos = System.nanoTime();
+      state = BODY;
+    } else {
+      state = COMPLETE;
+    }
+  }
+
+  /**
+   * Decodes as much of a chunked body as has been read: chunk data goes to
+   * the body, size lines, chunk extensions and trailers are dropped
+   */
+  private void chunks() throws BadRequest {
+    while (state == CHUNKS) {
+      if (chunkLeft > 0) {
+        int n = (int) Math.min(chunkLeft, end - pos);
+        if (n == 0) {
+          return;
+        }
+        System.arraycopy(buf, pos, request.body, bodyFilled, n);
+        pos += n;
+        bodyFilled += n;
+        chunkLeft -= n;
+        if (chunkLeft == 0) {
+          chunkLeft = DATA_END;
+        }
+        continue;
+      }
+
+      int newline = indexOf(buf, (byte) '\n', pos, end);
+      if (newline < 0) {
+        if (pos == 0 && end == buf.length) {
+          throw new BadRequest("400 Bad Request", "Chunk size or trailer line is too long");
+        }
+        return;
+      }
+      int lineStart = pos;
+      int lineEnd = newline;
+      if (lineEnd > lineStart && buf[lineEnd - 1] == '\r') {
+        lineEnd--;
+      }
+      pos = newline + 1;
+
+      if (chunkLeft == DATA_END) {
+        if (lineEnd != lineStart) {
+          throw new BadRequest("400 Bad Request", "Malformed chunked body");
+        }
+        chunkLeft = SIZE_LINE;
+      } else if (chunkLeft == TRAILER) {
+        // trailer fields are not used, an empty line ends the body
+        if (lineEnd == lineStart) {
+          request.body = bodyFilled == request.body.length
+              ? request.body : Arrays.copyOf(request.body, bodyFilled);
+          state = COMPLETE;
+        }
+      } else {
+        long size = chunkSize(lineStart, lineEnd);
+        if (size == 0) {
+          chunkLeft = TRAILER;
+        } else {
+          if (bodyFilled + size > maxBodyBytes) {
+            throw new BadRequest("413 Payload Too Large", "Request body is too large");
+          }
+          if (bodyFilled + size > request.body.length) {
+            long grown = Math.max(bodyFilled + size, 2L * request.body.length);
+            request.body = Arrays.copyOf(request.body, (int) Math.min(grown, maxBodyBytes));
+          }
+          chunkLeft = size;
+        }
+      }
+    }
+  }
+
+  /** the hex size at the start of a chunk size line, up to any extensions */
+  private long chunkSize(int start, int end) throws BadRequest {
+    long size = 0;
+    int i = start;
+    for (; i < end; i++) {
+      int digit = Character.digit(buf[i], 16);
+      if (digit < 0) {
+        break;
+      }
+      if (i - start == 15) {
+        throw new BadRequest("413 Payload Too Large", "Request body is too large");
+      }
+      size = size * 16 + digit;
+    }
+    if (i == start || (i < end && buf[i] != ';' && buf[i] != ' ' && buf[i] != '\t')) {
+      throw new BadRequest("400 Bad Request", "Malformed chunk size");
+    }
+    return size;
+  }
+
+  /** moves the unparsed bytes of a chunked body to the front of the buffer */
+  private void compact() {
+    if (pos > 0) {
+      System.arraycopy(buf, pos, buf, 0, end - pos);
+      end -= pos;
+      pos = 0;
+    }
+  }
+
+  private long digits(int start, int end) throws BadRequest {
+    if (start == end || end - start > 18) {
+      throw new BadRequest("400 Bad Request", "Malformed Content-Length");
+    }
+    long value = 0;
+    for (int i = start; i < end; i++) {
+      if (buf[i] < '0' || buf[i] > '9') {
+        throw new BadRequest("400 Bad Request", "Malformed Content-Length");
+      }
+      value = value * 10 + (buf[i] - '0');
+    }
+    return value;
+  }
+
+  private BadRequest tooLarge() {
+    return new BadRequest("431 Request Header Fields Too Large",
+        "Request head is larger than " + buf.length + " bytes");
+  }
+
+  static int indexOf(byte[] data, byte b, int from, int to) {
+    for (int i = from; i < to; i++) {
+      if (data[i] == b) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  static boolean regionEquals(byte[] data, int start, int end, byte[] expected) {
+    if (end - start != expected.length) {
+      return false;
+    }
+    for (int i = 0; i < expected.length; i++) {
+      if (data[start + i] != expected[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Compares with a lower case ASCII constant, ignoring the case of data
+   */
+  static boolean equalsIgnoreCase(byte[] data, int start, int end, byte[] lower) {
+    if (end - start != lower.length) {
+      return false;
+    }
+    for (int i = 0; i < lower.length; i++) {
+      byte c = data[start + i];
+      if (c >= 'A' && c <= 'Z') {
+        c += 'a' - 'A';
+      }
+      if (c != lower[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static boolean containsIgnoreCase(byte[] data, int start, int end, byte[] lower) {
+    for (int i = start; i + lower.length <= end; i++) {
+      if (equalsIgnoreCase(data, i, i + lower.length, lower)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  static byte[] ascii(String s) {
+    return s.getBytes(StandardCharsets.US_ASCII);
+  }
+
+  private static byte[][] ascii(String[] strings) {
+    byte[][] bytes = new byte[strings.length][];
+    for (int i = 0; i < strings.length; i++) {
+      bytes[i] = ascii(strings[i]);
+    }
+    return bytes;
+  }
+}
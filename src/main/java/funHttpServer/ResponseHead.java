@@ -0,0 +1,125 @@
+package funHttpServer;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Builds the status line and headers of a response as bytes.
+ *
+ * Everything that repeats from one response to the next is encoded once and
+ * copied: status lines and Content-Type lines on first use, the fixed header
+ * lines up front. Numbers such as the Content-Length are written as digits
+ * straight into the buffer, and the few values that change every time (a
+ * Content-Range) are copied char by char, as header values are ASCII. So
+ * assembling a head makes no Strings and runs no charset encoder.
+ */
+final class ResponseHead {
+
+  /** room for a typical head, a connection keeps one buffer this size */
+  static final int BUFFER_BYTES = 1024;
+
+  static final byte[] CRLF = ascii("\r\n");
+  static final byte[] CONTENT_LENGTH = ascii("Content-Length: ");
+  static final byte[] CHUNKED = ascii("Transfer-Encoding: chunked\r\n");
+  static final byte[] GZIP = ascii("Content-Encoding: gzip\r\n");
+  static final byte[] VARY = ascii("Vary: Accept-Encoding\r\n");
+  static final byte[] KEEP_ALIVE_END = ascii("Connection: keep-alive\r\n\r\n");
+  static final byte[] CLOSE_END = ascii("Connection: close\r\n\r\n");
+
+  /**
+   * encoded lines, cached up to this many. Status lines and file types are
+   * a small set, multipart types carry a boundary and are not worth keeping
+   */
+  private static final int MAX_CACHED = 256;
+
+  private static final ConcurrentHashMap<String, byte[]> STATUS_LINES = new ConcurrentHashMap<>();
+  private static final ConcurrentHashMap<String, byte[]> CONTENT_TYPES =
+      new ConcurrentHashMap<>();
+
+  private ResponseHead() {
+  }
+
+  /**
+   * a head buffer from the BufferPool, a connection reuses it for one
+   * response after the other and releases it when it closes
+   */
+  static ByteBuffer buffer() {
+    return BufferPool.acquire(BUFFER_BYTES);
+  }
+
+  /** writes "HTTP/1.1 " + status + CRLF */
+  static void statusLine(ByteBuffer out, String status) {
+    line(out, STATUS_LINES, "HTTP/1.1 ", status);
+  }
+
+  /** writes "Content-Type: " + type + CRLF */
+  static void contentType(ByteBuffer out, String type) {
+    line(out, CONTENT_TYPES, "Content-Type: ", type);
+  }
+
+  /** writes "Content-Length: " + length + CRLF */
+  static void contentLength(ByteBuffer out, long length) {
+    out.put(CONTENT_LENGTH);
+    putDecimal(out, length);
+    out.put(CRLF);
+  }
+
+  /** writes name + ": " + value + CRLF */
+  static void header(ByteBuffer out, String name, String value) {
+    putAscii(out, name);
+    out.put((byte) ':').put((byte) ' ');
+    putAscii(out, value);
+    out.put(CRLF);
+  }
+
+  private static void line(ByteBuffer out, ConcurrentHashMap<String, byte[]> cache,
+      String prefix, String value) {
+    byte[] line = cache.get(value);
+    if (line == null) {
+      if (cache.size() >= MAX_CACHED) {
+        putAscii(out, prefix);
+        putAscii(out, value);
+        out.put(CRLF);
+        return;
+      }
+      line = ascii(prefix + value + "\r\n");
+      cache.putIfAbsent(value, line);
+    }
+    out.put(line);
+  }
+
+  /** writes a non-negative number in decimal */
+  static void putDecimal(ByteBuffer out, long value) {
+    if (value < 10) {
+      out.put((byte) ('0' + value));
+      return;
+    }
+    int digits = 1;
+    for (long rest = value / 10; rest > 0; rest /= 10) {
+      digits++;
+    }
+    int end = out.position() + digits;
+    if (end > out.limit()) {
+      throw new BufferOverflowException();
+    }
+    for (int i = end - 1; i >= end - digits; i--) {
+      out.put(i, (byte) ('0' + value % 10));
+      value /= 10;
+    }
+    out.position(end);
+  }
+
+  /** writes a string whose chars are all ASCII, one byte per char */
+  static void putAscii(ByteBuffer out, String s) {
+    int n = s.length();
+    for (int i = 0; i < n; i++) {
+      out.put((byte) s.charAt(i));
+    }
+  }
+
+  static byte[] ascii(String s) {
+    return s.getBytes(StandardCharsets.US_ASCII);
+  }
+}
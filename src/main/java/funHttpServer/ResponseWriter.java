@@ -0,0 +1,211 @@
+package funHttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * What a streaming handler writes its body into (see HttpResponse.streaming).
+ *
+ * The response headers are already on their way when the handler starts,
+ * so the client gets the first bytes without waiting for the whole body.
+ * Writes are collected in one small buffer; every time it fills up, or on
+ * flush, its contents go out as one chunk of a Transfer-Encoding: chunked
+ * body (or as plain bytes for HTTP/1.0 clients, where the end of the body is
+ * marked by closing the connection). Memory use is the buffer, whatever the
+ * size of the body. For a socket or a ChunkPipe it is a direct buffer from
+ * the BufferPool, which whoever runs the handler gives back with release.
+ */
+class ResponseWriter {
+
+  /** largest chunk, writes are buffered up to this size */
+  static final int CHUNK_SIZE = 8192;
+
+  private static final byte[] CRLF = {'\r', '\n'};
+  private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+  /** where finished chunks go: straight to a socket, or to a ChunkPipe */
+  interface Sink {
+    /** sends the remaining bytes of parts in order, before returning */
+    void send(ByteBuffer... parts) throws IOException;
+
+    /** the body is complete */
+    void close() throws IOException;
+
+    /** whether the chunks are best in direct buffers, false for streams that take arrays */
+    default boolean direct() {
+      return true;
+    }
+  }
+
+  /** sink that writes to a blocking channel */
+  static Sink to(WritableByteChannel channel) {
+    return new Sink() {
+      @Override
+      public void send(ByteBuffer... parts) throws IOException {
+        ByteBuffer last = parts[parts.length - 1];
+        while (last.hasRemaining()) {
+          if (channel instanceof GatheringByteChannel) {
+            ((GatheringByteChannel) channel).write(parts);
+          } else {
+            for (ByteBuffer part : parts) {
+              while (part.hasRemaining()) {
+                channel.write(part);
+              }
+            }
+          }
+        }
+      }
+
+      @Override
+      public void close() {
+        // the connection is handled by the server
+      }
+    };
+  }
+
+  /** sink that writes to a stream, e.g. a compressor */
+  static Sink to(OutputStream stream) {
+    return new Sink() {
+      @Override
+      public void send(ByteBuffer... parts) throws IOException {
+        for (ByteBuffer part : parts) {
+          Gzip.write(stream, part);
+        }
+      }
+
+      @Override
+      public void close() {
+        // the stream is closed by whoever opened it
+      }
+
+      @Override
+      public boolean direct() {
+        return false;
+      }
+    };
+  }
+
+  private final Sink sink;
+  private final boolean chunked;
+  private ByteBuffer buf;
+  private final ByteBuffer sizeLine = ByteBuffer.allocate(16);
+  private final ByteBuffer crlf = ByteBuffer.wrap(CRLF);
+  private boolean finished;
+
+  /** bytes handed to the sink so far, including the chunk framing */
+  private volatile long bytes;
+
+  /**
+   * @param sink where the body bytes go
+   * @param chunked true to frame the body as chunks, false to send it as is
+   */
+  ResponseWriter(Sink sink, boolean chunked) {
+    this.sink = sink;
+    this.chunked = chunked;
+    this.buf = sink.direct() ? BufferPool.acquire(CHUNK_SIZE) : ByteBuffer.allocate(CHUNK_SIZE);
+  }
+
+  /**
+   * Writes bytes, sending a chunk whenever the buffer fills up
+   */
+  void write(byte[] bytes, int offset, int length) throws IOException {
+    while (length > 0) {
+      int n = Math.min(length, buf.remaining());
+      buf.put(bytes, offset, n);
+      offset += n;
+      length -= n;
+      if (!buf.hasRemaining()) {
+        flush();
+      }
+    }
+  }
+
+  void write(byte[] bytes) throws IOException {
+    write(bytes, 0, bytes.length);
+  }
+
+  /**
+   * Writes text as UTF-8
+   */
+  void print(String text) throws IOException {
+    write(text.getBytes(StandardCharsets.UTF_8));
+  }
+
+  /**
+   * This writer as an OutputStream, e.g. to put a compressor in front of it.
+   * Closing the stream does not finish the body.
+   */
+  OutputStream stream() {
+    return new OutputStream() {
+      @Override
+      public void write(int b) throws IOException {
+        ResponseWriter.this.write(new byte[] {(byte) b}, 0, 1);
+      }
+
+      @Override
+      public void write(byte[] bytes, int offset, int length) throws IOException {
+        ResponseWriter.this.write(bytes, offset, length);
+      }
+    };
+  }
+
+  /**
+   * Sends what has been written so far as one chunk
+   */
+  void flush() throws IOException {
+    if (buf.position() == 0) {
+      return;
+    }
+    buf.flip();
+    if (chunked) {
+      sizeLine.clear();
+      sizeLine.put(Integer.toHexString(buf.remaining()).getBytes(StandardCharsets.US_ASCII));
+      sizeLine.put(CRLF);
+      sizeLine.flip();
+      crlf.rewind();
+      bytes += sizeLine.remaining() + buf.remaining() + crlf.remaining();
+      sink.send(sizeLine, buf, crlf);
+    } else {
+      bytes += buf.remaining();
+      sink.send(buf);
+    }
+    buf.clear();
+  }
+
+  /** number of bytes sent so far, including the chunk framing */
+  long bytes() {
+    return bytes;
+  }
+
+  /**
+   * Sends the rest of the body and the end marker. Called by HttpResponse
+   * once the handler returns.
+   */
+  void finish() throws IOException {
+    if (finished) {
+      return;
+    }
+    finished = true;
+    flush();
+    if (chunked) {
+      bytes += LAST_CHUNK.length;
+      sink.send(ByteBuffer.wrap(LAST_CHUNK));
+    }
+    sink.close();
+  }
+
+  /**
+   * Gives the buffer back to the BufferPool once the handler is done, also
+   * when it failed. The writer cannot be used after that.
+   */
+  void release() {
+    if (buf != null && buf.isDirect()) {
+      BufferPool.release(buf);
+    }
+    buf = null;
+  }
+}
@@ -0,0 +1,138 @@
+package funHttpServer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32C;
+
+/**
+ * The "/" page: www/root.html with ${links} replaced by the list of files in
+ * the docroot. The template is compiled once per version of root.html and the
+ * file list is rebuilt only when something in the docroot changes, so a
+ * request just collects ready-made byte chunks. The ETag follows the same
+ * versions: root.html's tag plus a checksum of the file list.
+ */
+class RootPage {
+
+  private final FileCache fileCache;
+  private final File templateFile;
+  private final File docroot;
+
+  /** compiled template and the cache entry it was compiled from */
+  private volatile Compiled compiled;
+
+  /** file list html and the docroot version it was built for */
+  private volatile Links links;
+
+  /** ETag of the page for the current template and file list */
+  private volatile Tagged tagged;
+
+  private static final class Compiled {
+    final Template template;
+    final FileCache.Entry source;
+
+    Compiled(Template template, FileCache.Entry source) {
+      this.template = template;
+      this.source = source;
+    }
+  }
+
+  private static final class Links {
+    final byte[] html;
+    final long version;
+    final String tag;
+
+    Links(byte[] html, long version) {
+      this.html = html;
+      this.version = version;
+      CRC32C crc = new CRC32C();
+      crc.update(html);
+      this.tag = Long.toHexString(crc.getValue());
+    }
+  }
+
+  private static final class Tagged {
+    final Compiled compiled;
+    final Links links;
+    final Validators validators;
+
+    Tagged(Compiled compiled, Links links) {
+      this.compiled = compiled;
+      this.links = links;
+      // the page is generated, so it has no modification time of its own
+      this.validators = new Validators(
+          compiled.source.validators.tag + "." + links.tag, -1);
+    }
+  }
+
+  /**
+   * @param fileCache cache holding root.html, it also tracks docroot changes
+   * @param templateFile the page template, e.g. www/root.html
+   * @param docroot directory whose files are listed
+   */
+  RootPage(FileCache fileCache, File templateFile, File docroot) {
+    this.fileCache = fileCache;
+    this.templateFile = templateFile;
+    this.docroot = docroot;
+  }
+
+  /**
+   * Renders the page
+   * @return 200 response whose body is the page, with an ETag made of the
+   *         template's and the file list's, or null if the template file is
+   *         missing
+   * @throws IOException if the template cannot be read
+   */
+  HttpResponse render() throws IOException {
+    Compiled page = template();
+    if (page == null) {
+      return null;
+    }
+    Links fileList = fileList();
+    Tagged tag = tagged;
+    if (tag == null || tag.compiled != page || tag.links != fileList) {
+      tag = new Tagged(page, fileList);
+      tagged = tag;
+    }
+    ByteBuffer[] body = page.template.render(
+        name -> name.equals("links") ? fileList.html : null);
+    return HttpResponse.of("200 OK", "text/html; charset=utf-8", body)
+        .validators(tag.validators);
+  }
+
+  private Compiled template() throws IOException {
+    FileCache.Entry entry = fileCache.get(templateFile);
+    if (entry == null) {
+      return null;
+    }
+    // a new entry means root.html changed (or was evicted and reloaded)
+    Compiled current = compiled;
+    if (current == null || entry != current.source) {
+      byte[] source = fileCache.read(templateFile);
+      if (source == null) {
+        return null;
+      }
+      current = new Compiled(Template.compile(source), entry);
+      compiled = current;
+    }
+    return current;
+  }
+
+  private Links fileList() {
+    long version = fileCache.docrootVersion();
+    if (version == FileCache.UNKNOWN_VERSION) {
+      // no watcher, use the directory's modification time instead
+      version = docroot.lastModified();
+    }
+    Links current = links;
+    if (current == null || version != current.version) {
+      // the list and its version are published together, so readers never
+      // pair a new version with an old list
+      byte[] html = WebServer.buildFileList().getBytes(StandardCharsets.UTF_8);
+      current = new Links(html, version);
+      links = current;
+    }
+    return current;
+  }
+}
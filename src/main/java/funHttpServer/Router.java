@@ -0,0 +1,206 @@
+package funHttpServer;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Maps request paths to handlers.
+ *
+ * Exact routes ("multiply") live in a hash table, so finding one costs a
+ * single lookup no matter how many routes are registered. Routes registered
+ * with exactIgnoreCase ("json") also match in any case; a path that misses
+ * the table is lower-cased and looked up once more. Prefix routes
+ * ("file/...") live in a trie of path segments that is only walked when no
+ * exact route matches; the walk follows the segments of the request path,
+ * so its cost depends on how deep the path is, not on the number of routes.
+ * The longest matching prefix wins.
+ *
+ * GET and HEAD requests use the routes above. POST requests only go to
+ * routes registered with post(), again by exact path; a POST to any other
+ * path gets the notAllowed handler.
+ *
+ * Routes that wait on something else, like an upstream API, register an
+ * AsyncHandler. It returns a future right away, so no thread is held while
+ * the answer is on its way.
+ *
+ * Routes are registered once at startup; after that the router is only read
+ * and can be shared by all worker threads.
+ */
+class Router {
+
+  /** builds the response for one request */
+  interface Handler {
+    HttpResponse handle(HttpRequest request) throws IOException;
+  }
+
+  /** starts building the response for one request, completes when it is ready */
+  interface AsyncHandler {
+    CompletableFuture<HttpResponse> handle(HttpRequest request) throws IOException;
+  }
+
+  /** a registered handler and the name it is counted under in /metrics */
+  private static final class Route {
+    final String name;
+    final Handler handler;
+    final AsyncHandler async;
+
+    Route(String name, Handler handler, AsyncHandler async) {
+      this.name = name;
+      this.handler = handler;
+      this.async = async;
+    }
+  }
+
+  /** one path segment in the prefix trie */
+  private static final class Node {
+    final HashMap<String, Node> children = new HashMap<>();
+    Route route;
+  }
+
+  /** route name of requests no route matches */
+  static final String UNMATCHED = "unmatched";
+
+  private final HashMap<String, Route> exact = new HashMap<>();
+  /** exactIgnoreCase routes by lower-case path, also in exact */
+  private final HashMap<String, Route> ignoreCase = new HashMap<>();
+  private final HashMap<String, Route> posts = new HashMap<>();
+  private final Node prefixes = new Node();
+  private final Route notFound;
+  private final Route notAllowed;
+
+  /**
+   * @param notFound handler for paths no route matches
+   * @param notAllowed handler for POST requests to paths without a POST route
+   */
+  Router(Handler notFound, Handler notAllowed) {
+    this.notFound = new Route(UNMATCHED, notFound, null);
+    this.notAllowed = new Route(UNMATCHED, notAllowed, null);
+  }
+
+  /**
+   * Registers a handler for exactly one path
+   * @param path path without the leading "/" and without a query, "" for the root
+   * @return this router, so routes can be chained
+   */
+  Router exact(String path, Handler handler) {
+    return exact(path, new Route("/" + path, handler, null));
+  }
+
+  /**
+   * Registers an asynchronous handler for exactly one path
+   * @param path path without the leading "/" and without a query
+   * @return this router, so routes can be chained
+   */
+  Router exactAsync(String path, AsyncHandler handler) {
+    return exact(path, new Route("/" + path, null, handler));
+  }
+
+  /**
+   * Registers a handler for exactly one path, matched in any case
+   * ("/json", "/JSON", "/Json")
+   * @param path lower-case path without the leading "/" and without a query
+   * @return this router, so routes can be chained
+   */
+  Router exactIgnoreCase(String path, Handler handler) {
+    Route route = new Route("/" + path, handler, null);
+    ignoreCase.put(path.toLowerCase(Locale.ROOT), route);
+    return exact(path.toLowerCase(Locale.ROOT), route);
+  }
+
+  private Router exact(String path, Route route) {
+    if (exact.putIfAbsent(path, route) != null) {
+      throw new IllegalArgumentException("Route already registered: /" + path);
+    }
+    return this;
+  }
+
+  /**
+   * Registers a handler for POST requests to exactly one path. It is counted
+   * in /metrics apart from the GET route of the same path.
+   * @param path path without the leading "/" and without a query
+   * @return this router, so routes can be chained
+   */
+  Router post(String path, Handler handler) {
+    if (posts.putIfAbsent(path, new Route("POST /" + path, handler, null)) != null) {
+      throw new IllegalArgumentException("POST route already registered: /" + path);
+    }
+    return this;
+  }
+
+  /**
+   * Registers a handler for a path and everything below it. The part of the
+   * request path after the prefix is passed on in HttpRequest.subPath.
+   * @param prefix path segments without the leading "/", e.g. "file"
+   * @return this router, so routes can be chained
+   */
+  Router prefix(String prefix, Handler handler) {
+    Node node = prefixes;
+    for (String segment : prefix.split("/")) {
+      node = node.children.computeIfAbsent(segment, s -> new Node());
+    }
+    if (node.route != null) {
+      throw new IllegalArgumentException("Prefix already registered: /" + prefix);
+    }
+    node.route = new Route("/" + prefix + "/", handler, null);
+    return this;
+  }
+
+  /**
+   * Splits the request target into path and query, picks the handler and runs it.
+   * Sets the request's path, query, subPath and route name.
+   * @param request request whose target is set
+   * @return the handler's response, already complete unless the route is asynchronous
+   */
+  CompletableFuture<HttpResponse> route(HttpRequest request) throws IOException {
+    String target = request.target;
+    int q = target.indexOf('?');
+    request.path = q < 0 ? target : target.substring(0, q);
+    request.query = q < 0 ? null : target.substring(q + 1);
+
+    Route route = "POST".equals(request.method)
+        ? posts.getOrDefault(request.path, notAllowed) : find(request);
+    request.route = route.name;
+    if (route.async != null) {
+      return route.async.handle(request);
+    }
+    return CompletableFuture.completedFuture(route.handler.handle(request));
+  }
+
+  private Route find(HttpRequest request) {
+    String path = request.path;
+    Route route = exact.get(path);
+    if (route == null && !ignoreCase.isEmpty()) {
+      route = ignoreCase.get(path.toLowerCase(Locale.ROOT));
+    }
+    if (route != null) {
+      return route;
+    }
+
+    Node node = prefixes;
+    Route best = null;
+    int bestEnd = 0;
+    int start = 0;
+    while (start <= path.length()) {
+      int end = path.indexOf('/', start);
+      if (end < 0) {
+        end = path.length();
+      }
+      node = node.children.get(path.substring(start, end));
+      if (node == null) {
+        break;
+      }
+      if (node.route != null) {
+        best = node.route;
+        bestEnd = end;
+      }
+      start = end + 1;
+    }
+    if (best == null) {
+      return notFound;
+    }
+    request.subPath = bestEnd < path.length() ? path.substring(bestEnd + 1) : "";
+    return best;
+  }
+}
@@ -0,0 +1,212 @@
+package funHttpServer;
+
+import java.util.Properties;
+
+/**
+ * Startup settings for the fun web server. Every value has a sensible default
+ * and can be overridden with a system property, for example
+ * gradle FunWebServer -Dfun.executor=virtual -Dfun.threads=64
+ */
+final class ServerConfig {
+
+  /** port the server listens on (fun.port) */
+  final int port;
+
+  /** "blocking" (thread per connection) or "nio" (selector) engine (fun.engine) */
+  final String engine;
+
+  /** how accepted sockets are run: "pool" or "virtual" (fun.executor) */
+  final String executor;
+
+  /** size of the platform thread pool when executor is "pool" (fun.threads) */
+  final int workerThreads;
+
+  /**
+   * listening sockets sharing the port with SO_REUSEPORT, each with its own
+   * accept loop and workers (fun.shards, 0 for one per core)
+   */
+  final int shards;
+
+  /** how long a kept-alive connection may sit idle, in ms (fun.idleTimeout) */
+  final int idleTimeoutMillis;
+
+  /** requests served on one connection before it is closed (fun.maxRequests) */
+  final int maxRequestsPerConnection;
+
+  /** accept HTTP/2 over cleartext, by prior knowledge or Upgrade: h2c (fun.http2) */
+  final boolean http2;
+
+  /** streams an HTTP/2 client may have open at once (fun.http2Streams) */
+  final int http2Streams;
+
+  /** time from a request's first byte to the end of its headers, in ms (fun.headerTimeout) */
+  final int headerTimeoutMillis;
+
+  /** time from the end of the headers to the end of the body, in ms (fun.bodyTimeout) */
+  final int bodyTimeoutMillis;
+
+  /** connections open at once, more are answered 503 and closed (fun.maxConnections) */
+  final int maxConnections;
+
+  /** requests handled at once, 0 for no limit (fun.maxInFlight) */
+  final int maxInFlight;
+
+  /** requests waiting for a turn, more are answered 503 at once (fun.maxQueued) */
+  final int maxQueued;
+
+  /** longest a request waits for a turn before it gets 503, in ms (fun.queueTimeout) */
+  final int queueTimeoutMillis;
+
+  /** Retry-After sent with 503, in seconds (fun.retryAfter) */
+  final int retryAfterSeconds;
+
+  /** byte budget of the in-memory file cache (fun.cacheBytes) */
+  final long cacheBytes;
+
+  /** files larger than this are never cached (fun.cacheFileBytes) */
+  final long cacheFileBytes;
+
+  /** largest request line plus headers we accept (fun.maxHeaderBytes) */
+  final int maxHeaderBytes;
+
+  /** largest request body we accept (fun.maxBodyBytes) */
+  final int maxBodyBytes;
+
+  /** total size of docroot files that may be memory mapped (fun.mapBytes) */
+  final long mapBytes;
+
+  /** docroot files larger than this are streamed, never mapped (fun.mapFileBytes) */
+  final long mapFileBytes;
+
+  /** largest /circle or /triangle page, larger ones get 400 (fun.maxShapeBytes) */
+  final long maxShapeBytes;
+
+  /** time a /circle or /triangle page may take to render, in ms (fun.maxShapeMillis) */
+  final int maxShapeMillis;
+
+  /** gzip responses for clients that accept it (fun.gzip) */
+  final boolean gzip;
+
+  /** generated bodies smaller than this are not compressed (fun.gzipMinBytes) */
+  final int gzipMinBytes;
+
+  /** URL /github queries are appended to, e.g. a local stub (fun.githubBase) */
+  final String githubBase;
+
+  /** how long a GitHub answer is served from the cache, in ms (fun.githubTtl) */
+  final int githubTtlMillis;
+
+  /** how long to wait for GitHub, in ms (fun.githubTimeout) */
+  final int githubTimeoutMillis;
+
+  /** number of GitHub queries kept in the cache (fun.githubCacheEntries) */
+  final int githubCacheEntries;
+
+  /** where the access log goes: "stdout", "off" or a file path (fun.accessLog) */
+  final String accessLog;
+
+  /** entries waiting to be written, rounded up to a power of two (fun.accessLogBuffer) */
+  final int accessLogBuffer;
+
+  /** when the access log buffer is full, wait for room instead of dropping (fun.accessLogFull) */
+  final boolean accessLogBlock;
+
+  /** free direct buffers the BufferPool keeps for reuse, in bytes (fun.bufferPoolBytes) */
+  final int bufferPoolBytes;
+
+  /** report pooled buffers that are never released (fun.bufferLeaks) */
+  final boolean bufferLeaks;
+
+  /**
+   * Reads the settings from the given properties
+   * @param props where to look up the fun.* keys
+   * @param defaultPort port to use when fun.port is not set
+   */
+  ServerConfig(Properties props, int defaultPort) {
+    port = intValue(props, "fun.port", defaultPort);
+    engine = props.getProperty("fun.engine", "blocking").trim().toLowerCase();
+    executor = props.getProperty("fun.executor", "pool").trim().toLowerCase();
+    int cores = Runtime.getRuntime().availableProcessors();
+    workerThreads = Math.max(1, intValue(props, "fun.threads", cores * 8));
+    int shardsSetting = intValue(props, "fun.shards", 1);
+    shards = shardsSetting <= 0 ? cores : shardsSetting;
+    idleTimeoutMillis = Math.max(1, intValue(props, "fun.idleTimeout", 5000));
+    maxRequestsPerConnection = Math.max(1, intValue(props, "fun.maxRequests", 1000));
+    http2 = !props.getProperty("fun.http2", "true").trim().equalsIgnoreCase("false");
+    http2Streams = Math.max(1, intValue(props, "fun.http2Streams", 100));
+    headerTimeoutMillis = Math.max(0, intValue(props, "fun.headerTimeout", 10_000));
+    bodyTimeoutMillis = Math.max(0, intValue(props, "fun.bodyTimeout", 30_000));
+    maxConnections = Math.max(1, intValue(props, "fun.maxConnections", 10_000));
+    maxInFlight = Math.max(0, intValue(props, "fun.maxInFlight", cores * 2));
+    maxQueued = Math.max(0, intValue(props, "fun.maxQueued", cores * 32));
+    queueTimeoutMillis = Math.max(1, intValue(props, "fun.queueTimeout", 1000));
+    retryAfterSeconds = Math.max(0, intValue(props, "fun.retryAfter", 1));
+    cacheBytes = Math.max(0, intValue(props, "fun.cacheBytes", 32 * 1024 * 1024));
+    cacheFileBytes = Math.max(0, intValue(props, "fun.cacheFileBytes", 1024 * 1024));
+    maxHeaderBytes = Math.max(256, intValue(props, "fun.maxHeaderBytes",
+        RequestParser.DEFAULT_MAX_HEAD_BYTES));
+    maxBodyBytes = Math.max(0, intValue(props, "fun.maxBodyBytes",
+        RequestParser.DEFAULT_MAX_BODY_BYTES));
+    mapBytes = Math.max(0, intValue(props, "fun.mapBytes", 256 * 1024 * 1024));
+    mapFileBytes = Math.max(0, intValue(props, "fun.mapFileBytes", 64 * 1024 * 1024));
+    maxShapeBytes = Math.max(0, intValue(props, "fun.maxShapeBytes", 16 * 1024 * 1024));
+    maxShapeMillis = Math.max(1, intValue(props, "fun.maxShapeMillis", 1000));
+    gzip = !props.getProperty("fun.gzip", "true").trim().equalsIgnoreCase("false");
+    gzipMinBytes = Math.max(0, intValue(props, "fun.gzipMinBytes", 1024));
+    githubBase = props.getProperty("fun.githubBase", "https://api.github.com/").trim();
+    githubTtlMillis = Math.max(0, intValue(props, "fun.githubTtl", 60_000));
+    githubTimeoutMillis = Math.max(1, intValue(props, "fun.githubTimeout", 20_000));
+    githubCacheEntries = Math.max(1, intValue(props, "fun.githubCacheEntries", 1000));
+    accessLog = props.getProperty("fun.accessLog", "stdout").trim();
+    accessLogBuffer = Math.max(2, Math.min(1 << 24,
+        intValue(props, "fun.accessLogBuffer", 8192)));
+    accessLogBlock = props.getProperty("fun.accessLogFull", "drop").trim()
+        .equalsIgnoreCase("block");
+    bufferPoolBytes = Math.max(0, intValue(props, "fun.bufferPoolBytes",
+        BufferPool.DEFAULT_POOL_BYTES));
+    bufferLeaks = props.getProperty("fun.bufferLeaks", "false").trim().equalsIgnoreCase("true");
+  }
+
+  /**
+   * Settings taken from the JVM system properties
+   * @param defaultPort port to use when fun.port is not set
+   */
+  static ServerConfig fromSystemProperties(int defaultPort) {
+    return new ServerConfig(System.getProperties(), defaultPort);
+  }
+
+  static int intValue(Properties props, String key, int def) {
+    String value = props.getProperty(key);
+    if (value == null || value.isBlank()) {
+      return def;
+    }
+    try {
+      return Integer.parseInt(value.trim());
+    } catch (NumberFormatException e) {
+      System.out.println("Ignoring " + key + "=" + value + ", not a number. Using " + def);
+      return def;
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "port=" + port + ", engine=" + engine + ", executor=" + executor + ", threads=" + workerThreads
+        + ", shards=" + shards
+        + ", idleTimeout=" + idleTimeoutMillis + "ms, maxRequests=" + maxRequestsPerConnection
+        + ", http2=" + http2 + ", http2Streams=" + http2Streams
+        + ", headerTimeout=" + headerTimeoutMillis + "ms, bodyTimeout=" + bodyTimeoutMillis
+        + "ms, maxConnections=" + maxConnections + ", maxInFlight=" + maxInFlight
+        + ", maxQueued=" + maxQueued + ", queueTimeout=" + queueTimeoutMillis
+        + "ms, retryAfter=" + retryAfterSeconds + "s"
+        + ", cacheBytes=" + cacheBytes + ", cacheFileBytes=" + cacheFileBytes
+        + ", mapBytes=" + mapBytes + ", mapFileBytes=" + mapFileBytes
+        + ", maxHeaderBytes=" + maxHeaderBytes + ", maxBodyBytes=" + maxBodyBytes
+        + ", maxShapeBytes=" + maxShapeBytes + ", maxShapeMillis=" + maxShapeMillis
+        + "ms, gzip=" + gzip + ", gzipMinBytes=" + gzipMinBytes
+        + ", githubBase=" + githubBase + ", githubTtl=" + githubTtlMillis
+        + "ms, githubTimeout=" + githubTimeoutMillis + "ms, githubCacheEntries=" + githubCacheEntries
+        + ", accessLog=" + accessLog + ", accessLogBuffer=" + accessLogBuffer
+        + ", accessLogFull=" + (accessLogBlock ? "block" : "drop")
+        + ", bufferPoolBytes=" + bufferPoolBytes + ", bufferLeaks=" + bufferLeaks;
+  }
+}
@@ -0,0 +1,268 @@
+package funHttpServer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Streamed body for /circle and /triangle: "Result is: " followed by
+ * howMany shapes that shrink by one each time, each shape ended by "\n" and
+ * each row by "&lt;br&gt;".
+ *
+ * Nothing is built up front. Each row is worked out once (where the stars
+ * start and how many there are) and written as runs copied from prebuilt
+ * arrays of stars and spaces, straight into the response buffer as the
+ * socket takes it. The length is known in advance, so the response still has
+ * a Content-Length, and memory use does not depend on the size of the shapes.
+ *
+ * Each request has a budget: a body over maxBytes is refused before anything
+ * is sent, and one that takes longer than maxMillis to render (time spent in
+ * fill, not waiting for the client) is abandoned part way.
+ */
+class ShapeBody implements HttpResponse.Source {
+
+  enum Shape { CIRCLE, TRIANGLE }
+
+  private static final byte[] PREFIX = "Result is: ".getBytes(StandardCharsets.US_ASCII);
+  private static final byte[] BR = "<br>".getBytes(StandardCharsets.US_ASCII);
+  private static final byte[] NEWLINE = {'\n'};
+  private static final byte[] STARS = filled('*');
+  private static final byte[] SPACES = filled(' ');
+
+  // where nextRun is in the output
+  private static final int START = 0;
+  private static final int NEXT_SHAPE = 1;
+  private static final int NEXT_ROW = 2;
+  private static final int LEAD = 3;
+  private static final int MIDDLE = 4;
+  private static final int TRAIL = 5;
+  private static final int END_ROW = 6;
+
+  private final Shape shape;
+  private final int howMany;
+  private final int firstSize;
+  private final long length;
+  private final long maxNanos;
+  private long spentNanos;
+
+  private int phase = START;
+  private int shapeIndex;
+  private int size;
+  private int row;
+  private int rows;
+
+  /** spaces before and after the stars, and the stars, of the current row */
+  private int spaces;
+  private int stars;
+
+  /** the run being copied: from run at runOffset, or repeating run if uniform */
+  private byte[] run;
+  private int runOffset;
+  private long runLeft;
+  private boolean uniform;
+
+  /**
+   * @param shape circles (size is the radius) or triangles (size is the side length)
+   * @param howMany number of shapes
+   * @param firstSize size of the first shape, each next one is one smaller
+   * @param length the body length, from length()
+   * @param maxNanos time fill may take in total
+   */
+  private ShapeBody(Shape shape, int howMany, int firstSize, long length, long maxNanos) {
+    this.shape = shape;
+    this.howMany = howMany;
+    this.firstSize = firstSize;
+    this.length = length;
+    this.maxNanos = maxNanos;
+  }
+
+  /**
+   * Creates the body if it is not larger than maxBytes
+   * @param maxMillis time rendering may take before it is abandoned
+   * @return the body, or null if it would be larger than maxBytes
+   */
+  static ShapeBody of(Shape shape, int howMany, int firstSize, long maxBytes, int maxMillis) {
+    long length = length(shape, howMany, firstSize, maxBytes);
+    return length < 0 ? null
+        : new ShapeBody(shape, howMany, firstSize, length, maxMillis * 1_000_000L);
+  }
+
+  /**
+   * Works out the body length without rendering anything
+   * @return the length, or -1 as soon as it goes over maxBytes
+   */
+  static long length(Shape shape, int howMany, int firstSize, long maxBytes) {
+    long total = PREFIX.length;
+    for (int i = 0; i < howMany; i++) {
+      // every shape adds at least its newline, so this loop ends quickly
+      // when howMany is huge
+      total += shapeLength(shape, (long) firstSize - i) + NEWLINE.length;
+      if (total > maxBytes) {
+        return -1;
+      }
+    }
+    return total;
+  }
+
+  private static long shapeLength(Shape shape, long size) {
+    if (size <= 0 && !(shape == Shape.CIRCLE && size == 0)) {
+      return 0;
+    }
+    if (shape == Shape.CIRCLE) {
+      // 2r+1 rows of 2r+1 cells
+      long width = 2 * size + 1;
+      return width * (width + BR.length);
+    }
+    // rows of 1..n stars
+    return size * (size + 1) / 2 + size * BR.length;
+  }
+
+  @Override
+  public long length() {
+    return length;
+  }
+
+  @Override
+  public boolean fill(ByteBuffer out) throws IOException {
+    long start = System.nanoTime();
+    boolean more = render(out);
+    spentNanos += System.nanoTime() - start;
+    if (more && spentNanos > maxNanos) {
+      throw new IOException("Rendering went over its budget of " + maxNanos / 1_000_000
+          + " ms, abandoned");
+    }
+    return more;
+  }
+
+  /** fill without the time budget */
+  private boolean render(ByteBuffer out) {
+    while (out.hasRemaining()) {
+      if (runLeft == 0 && !nextRun()) {
+        return false;
+      }
+      int n = (int) Math.min(runLeft, out.remaining());
+      if (uniform) {
+        n = Math.min(n, run.length);
+        out.put(run, 0, n);
+      } else {
+        out.put(run, runOffset, n);
+        runOffset += n;
+      }
+      runLeft -= n;
+    }
+    return true;
+  }
+
+  /**
+   * Sets up the next run of bytes
+   * @return false when the whole body has been produced
+   */
+  private boolean nextRun() {
+    while (true) {
+      switch (phase) {
+        case START:
+          phase = NEXT_SHAPE;
+          literal(PREFIX);
+          return true;
+        case NEXT_SHAPE:
+          if (shapeIndex == howMany) {
+            return false;
+          }
+          // every size below zero draws nothing, clamping keeps it from wrapping
+          size = (int) Math.max((long) firstSize - shapeIndex, -1);
+          rows = shape == Shape.CIRCLE ? (size < 0 ? 0 : 2 * size + 1) : Math.max(size, 0);
+          row = 0;
+          phase = NEXT_ROW;
+          break;
+        case NEXT_ROW:
+          if (row == rows) {
+            shapeIndex++;
+            phase = NEXT_SHAPE;
+            literal(NEWLINE);
+            return true;
+          }
+          span();
+          phase = LEAD;
+          break;
+        case LEAD:
+          phase = MIDDLE;
+          if (spaces > 0) {
+            uniform(SPACES, spaces);
+            return true;
+          }
+          break;
+        case MIDDLE:
+          phase = TRAIL;
+          uniform(STARS, stars);
+          return true;
+        case TRAIL:
+          phase = END_ROW;
+          if (spaces > 0) {
+            uniform(SPACES, spaces);
+            return true;
+          }
+          break;
+        default: // END_ROW
+          row++;
+          phase = NEXT_ROW;
+          literal(BR);
+          return true;
+      }
+    }
+  }
+
+  /**
+   * Works out the current row: for a circle the cells with x*x + y*y <= r*r,
+   * which are the 2w+1 cells around the middle with w = floor(sqrt(r*r - y*y))
+   */
+  private void span() {
+    if (shape == Shape.TRIANGLE) {
+      spaces = 0;
+      stars = row + 1;
+      return;
+    }
+    long y = row - size;
+    long rest = (long) size * size - y * y;
+    long w = (long) Math.sqrt((double) rest);
+    while (w * w > rest) {
+      w--;
+    }
+    while ((w + 1) * (w + 1) <= rest) {
+      w++;
+    }
+    spaces = (int) (size - w);
+    stars = (int) (2 * w + 1);
+  }
+
+  private void literal(byte[] bytes) {
+    run = bytes;
+    runOffset = 0;
+    runLeft = bytes.length;
+    uniform = false;
+  }
+
+  private void uniform(byte[] bytes, long count) {
+    run = bytes;
+    runLeft = count;
+    uniform = true;
+  }
+
+  /**
+   * One shape on its own, without the prefix or the newline. Used by
+   * drawCircle and drawTriangle.
+   */
+  static String draw(Shape shape, int size) {
+    ShapeBody body = new ShapeBody(shape, 1, size, 0, Long.MAX_VALUE);
+    long length = shapeLength(shape, size);
+    ByteBuffer out = ByteBuffer.allocate(Math.toIntExact(length + PREFIX.length + 1));
+    body.render(out);
+    return new String(out.array(), PREFIX.length, (int) length, StandardCharsets.US_ASCII);
+  }
+
+  private static byte[] filled(char c) {
+    byte[] bytes = new byte[4096];
+    Arrays.fill(bytes, (byte) c);
+    return bytes;
+  }
+}
@@ -0,0 +1,39 @@
+package funHttpServer;
+
+import java.nio.channels.ServerSocketChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * One accept loop of the server with everything it does not share: its own
+ * listening socket, its own worker threads and, in the NIO engine, its own
+ * selector thread with its buffers. With fun.shards above one every shard
+ * binds the same port with SO_REUSEPORT and the kernel spreads new
+ * connections across them, so accepting is not limited to one thread.
+ * The counters show how evenly that worked.
+ */
+final class Shard {
+
+  /** position in the list of shards, the shard label in /metrics */
+  final int index;
+
+  final ServerSocketChannel server;
+
+  /** threads requests (or in the blocking engine, connections) are run on */
+  final ExecutorService workers;
+
+  /** connections this shard accepted, refused ones not included */
+  final LongAdder connections = new LongAdder();
+
+  /** responses this shard finished writing */
+  final LongAdder requests = new LongAdder();
+
+  /** the NIO engine while it runs, null for the blocking engine */
+  volatile NioServer nio;
+
+  Shard(int index, ServerSocketChannel server, ExecutorService workers) {
+    this.index = index;
+    this.server = server;
+    this.workers = workers;
+  }
+}
@@ -0,0 +1,87 @@
+package funHttpServer;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * A page with ${name} placeholders, parsed once into the literal byte
+ * segments between them. Rendering does no searching or copying: it returns
+ * the literal segments and the placeholder values as a list of buffers that
+ * can be written to the socket with a single gathering write.
+ */
+class Template {
+
+  /** literal bytes, one more than there are placeholders */
+  private final byte[][] segments;
+
+  /** placeholder names, segment i is followed by placeholder i */
+  private final String[] names;
+
+  private Template(byte[][] segments, String[] names) {
+    this.segments = segments;
+    this.names = names;
+  }
+
+  /**
+   * Splits a page into literal segments and placeholders
+   * @param source page bytes, UTF-8
+   * @return the compiled template
+   */
+  static Template compile(byte[] source) {
+    List<byte[]> segments = new ArrayList<>();
+    List<String> names = new ArrayList<>();
+
+    int start = 0;
+    int i = 0;
+    while (i < source.length - 1) {
+      if (source[i] == '$' && source[i + 1] == '{') {
+        int end = indexOf(source, (byte) '}', i + 2);
+        if (end < 0) {
+          break;
+        }
+        segments.add(Arrays.copyOfRange(source, start, i));
+        names.add(new String(source, i + 2, end - i - 2, StandardCharsets.UTF_8));
+        start = end + 1;
+        i = start;
+      } else {
+        i++;
+      }
+    }
+    segments.add(Arrays.copyOfRange(source, start, source.length));
+    return new Template(segments.toArray(new byte[0][]), names.toArray(new String[0]));
+  }
+
+  /**
+   * Fills in the placeholders
+   * @param values value bytes for a placeholder name, null to leave the
+   *        placeholder in the page as it is
+   * @return buffers to write in order, sharing the template's arrays
+   */
+  ByteBuffer[] render(Function<String, byte[]> values) {
+    ByteBuffer[] parts = new ByteBuffer[segments.length + names.length];
+    int p = 0;
+    for (int i = 0; i < names.length; i++) {
+      parts[p++] = ByteBuffer.wrap(segments[i]).asReadOnlyBuffer();
+      byte[] value = values.apply(names[i]);
+      if (value == null) {
+        value = ("${" + names[i] + "}").getBytes(StandardCharsets.UTF_8);
+      }
+      parts[p++] = ByteBuffer.wrap(value).asReadOnlyBuffer();
+    }
+    parts[p] = ByteBuffer.wrap(segments[names.length]).asReadOnlyBuffer();
+    return parts;
+  }
+
+  private static int indexOf(byte[] data, byte b, int from) {
+    for (int i = from; i < data.length; i++) {
+      if (data[i] == b) {
+        return i;
+      }
+    }
+    return -1;
+  }
+}
@@ -0,0 +1,122 @@
+package funHttpServer;
+
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Locale;
+
+/**
+ * ETag and Last-Modified of one version of a response body, and the check
+ * of a conditional request against them.
+ *
+ * Made once per version (a cached file, a rendered root page), so a request
+ * only compares strings. The gzip encoding of a body is a different
+ * representation and gets its own tag, the plain one with "-gz" appended.
+ */
+final class Validators {
+
+  /** IMF-fixdate, the RFC 1123 formatter would drop the leading zero of the day */
+  private static final DateTimeFormatter HTTP_DATE =
+      DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+
+  /** opaque part of the tag, without quotes */
+  final String tag;
+
+  /** strong ETag of the plain body, e.g. "5f3a-1c2" */
+  final String etag;
+
+  /** strong ETag of the gzip encoded body */
+  final String gzipEtag;
+
+  /** modification time in milliseconds, -1 if unknown */
+  final long lastModified;
+
+  /** lastModified as an HTTP date, null if unknown */
+  final String lastModifiedText;
+
+  /** the ETag and Last-Modified header lines, encoded, for the plain and the gzip body */
+  final byte[] headerLines;
+  final byte[] gzipHeaderLines;
+
+  /**
+   * @param tag opaque tag that changes with the body, without quotes
+   * @param lastModified modification time in milliseconds, -1 if unknown
+   */
+  Validators(String tag, long lastModified) {
+    this.tag = tag;
+    this.etag = '"' + tag + '"';
+    this.gzipEtag = '"' + tag + "-gz\"";
+    this.lastModified = lastModified;
+    this.lastModifiedText = lastModified < 0 ? null : httpDate(lastModified);
+    String lastModifiedLine =
+        lastModifiedText == null ? "" : "Last-Modified: " + lastModifiedText + "\r\n";
+    this.headerLines = ResponseHead.ascii("ETag: " + etag + "\r\n" + lastModifiedLine);
+    this.gzipHeaderLines = ResponseHead.ascii("ETag: " + gzipEtag + "\r\n" + lastModifiedLine);
+  }
+
+  /**
+   * Whether the client's copy is current, so a 304 can be sent instead of
+   * the body. If-None-Match wins over If-Modified-Since when both are sent.
+   * Tags are compared weakly, and a copy with either encoding counts.
+   */
+  boolean notModified(HttpRequest request) {
+    String ifNoneMatch = request.header("If-None-Match");
+    if (ifNoneMatch != null) {
+      for (String item : ifNoneMatch.split(",")) {
+        String candidate = item.trim();
+        if (candidate.startsWith("W/")) {
+          candidate = candidate.substring(2);
+        }
+        if (candidate.equals("*") || candidate.equals(etag) || candidate.equals(gzipEtag)) {
+          return true;
+        }
+      }
+      return false;
+    }
+    String ifModifiedSince = request.header("If-Modified-Since");
+    if (ifModifiedSince == null || lastModified < 0) {
+      return false;
+    }
+    long since = parseHttpDate(ifModifiedSince);
+    // HTTP dates have whole seconds
+    return since >= 0 && lastModified / 1000 <= since / 1000;
+  }
+
+  /**
+   * Whether a Range request may be answered with part of this version. It
+   * can without If-Range, with it only if If-Range names this version by
+   * its strong ETag or its exact Last-Modified date.
+   */
+  boolean rangeAllowed(HttpRequest request) {
+    String ifRange = request.header("If-Range");
+    if (ifRange == null) {
+      return true;
+    }
+    ifRange = ifRange.trim();
+    if (ifRange.startsWith("\"")) {
+      return ifRange.equals(etag);
+    }
+    if (ifRange.startsWith("W/") || lastModified < 0) {
+      return false;
+    }
+    long date = parseHttpDate(ifRange);
+    return date >= 0 && date / 1000 == lastModified / 1000;
+  }
+
+  /** formats milliseconds since the epoch as an HTTP date */
+  static String httpDate(long millis) {
+    return HTTP_DATE.format(ZonedDateTime.ofInstant(Instant.ofEpochMilli(millis), ZoneOffset.UTC));
+  }
+
+  /** parses an HTTP date, -1 if it is not one */
+  static long parseHttpDate(String text) {
+    try {
+      return ZonedDateTime.parse(text.trim(), DateTimeFormatter.RFC_1123_DATE_TIME)
+          .toInstant().toEpochMilli();
+    } catch (DateTimeParseException e) {
+      return -1;
+    }
+  }
+}
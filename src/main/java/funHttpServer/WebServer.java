@@ -5,7 +5,8 @@ You can also do some other simple GET requests:
 1) /random shows you a random picture (well random from the set defined)
 2) json shows you the response as JSON for /random instead the html page
 3) /file/filename shows you the raw file (not as HTML)
-4) /multiply?num1=3&num2=4 multiplies the two inputs and responses with the result
+4) /multiply?num1=3&num2=4 multiplies the two inputs and responses with the result,
+   a POST to /multiply multiplies every pair in the body (see MultiplyBatch)
 5) /github?query=users/amehlhase316/repos (or other GitHub repo owners) will lead to receiving
    JSON which will for now only be printed in the console. See the todo below
 6) /triangle?howMany=num&length=num will generate a number of triangles starting from the length given and slowly shrink based on how many given
@@ -23,16 +24,27 @@ import java.net.*;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
-import java.util.Random;
 import java.util.Map;
 import java.util.LinkedHashMap;
-import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.net.HttpURLConnection;
-import java.net.URL;
 import java.util.List;
+import java.nio.ByteBuffer;
+import java.nio.file.StandardOpenOption;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.lang.reflect.Method;
 
 
 class WebServer {
@@ -40,43 +52,442 @@ class WebServer {
     WebServer server = new WebServer(9000);
   }
 
+  private final ServerConfig config;
+
+  /** file contents shared by all requests */
+  private final FileCache fileCache;
+
+  /** the "/" page */
+  private final RootPage rootPage;
+
+  /** request path to handler */
+  private final Router router;
+
+  /** cached, non-blocking GitHub API client for /github */
+  private final GitHubClient github;
+
+  /** request counters and timings, shown at /metrics */
+  final Metrics metrics = new Metrics();
+
+  /** one line per response, written off the request path */
+  private final AccessLog accessLog;
+
+  /** limits how many requests are handled at once, see Admission */
+  final Admission admission;
+
+  /** connections open now, for fun.maxConnections */
+  private final AtomicInteger openConnections = new AtomicInteger();
+
+  /** the whole answer to a connection over fun.maxConnections */
+  private final byte[] refusal;
+
+  /** route name requests turned away by admission control are counted under */
+  private static final String SHED_ROUTE = "shed";
+
+  /** numbers the HTTP/2 connection threads */
+  private static final AtomicInteger HTTP2_CONNECTIONS = new AtomicInteger();
+
+  /** block size readFileInBytes reads with */
+  private static final int FILE_READ_BYTES = 64 * 1024;
+
+  /** listening sockets with their accept loops, from listen() */
+  private Shard[] shards = new Shard[0];
+
   /**
    * Main thread
    * @param port to listen on
    */
   public WebServer(int port) {
-    ServerSocket server = null;
-    Socket sock = null;
-    InputStream in = null;
-    OutputStream out = null;
+    this(ServerConfig.fromSystemProperties(port));
+  }
+
+  /**
+   * Main thread. Accepts sockets and hands each one to the configured executor
+   * so a slow client (or a slow /github call) does not hold up everyone else.
+   * Uses the blocking engine or the NIO selector engine depending on the config.
+   * @param config port, engine and executor settings
+   */
+  public WebServer(ServerConfig config) {
+    this(config, true);
+  }
+
+  /**
+   * Only builds responses, does not listen on a port yet. Used by the
+   * benchmarks to call createResponse directly, and by LoadTest, which
+   * calls listen and serve itself.
+   * @param config port, engine, cache, gzip and GitHub settings
+   */
+  static WebServer responder(ServerConfig config) {
+    return new WebServer(config, false);
+  }
 
+  private WebServer(ServerConfig config, boolean listen) {
+    this.config = config;
+    BufferPool.configure(config.bufferPoolBytes, config.bufferLeaks);
+    this.fileCache = new FileCache(config.cacheBytes, config.cacheFileBytes,
+        config.mapBytes, config.mapFileBytes, new File("www"));
+    this.rootPage = new RootPage(fileCache, new File("www/root.html"), new File("www"));
+    this.github = new GitHubClient(config.githubBase, config.githubTtlMillis,
+        config.githubTimeoutMillis, config.githubCacheEntries, GITHUB_FIELDS);
+    this.router = createRouter();
+    this.accessLog = new AccessLog(config);
+    this.admission = new Admission(config.maxInFlight, config.maxQueued,
+        config.queueTimeoutMillis);
+    this.refusal = ResponseHead.ascii("HTTP/1.1 503 Service Unavailable\r\n"
+        + "Retry-After: " + config.retryAfterSeconds + "\r\n"
+        + "Content-Length: 0\r\nConnection: close\r\n\r\n");
+    if (!listen) {
+      return;
+    }
+    System.out.println("Starting fun web server: " + config);
     try {
-      server = new ServerSocket(port);
-      while (true) {
-        sock = server.accept();
-        out = sock.getOutputStream();
-        in = sock.getInputStream();
-        byte[] response = createResponse(in);
-        out.write(response);
-        out.flush();
-        in.close();
-        out.close();
+      listen();
+      serve();
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * Opens the listening sockets on the configured port, one per shard. Port
+   * 0 picks a free one, e.g. for tests.
+   * @return the port the sockets are bound to
+   */
+  int listen() throws IOException {
+    int count = config.shards;
+    if (count > 1 && !reusePortSupported()) {
+      System.out.println("SO_REUSEPORT is not supported here, using one shard");
+      count = 1;
+    }
+    // fun.threads is split between the shards
+    int threads = Math.max(1, config.workerThreads / count);
+    int port = config.port;
+    shards = new Shard[count];
+    for (int i = 0; i < count; i++) {
+      // accepted through a channel so file bodies can be sent with transferTo
+      ServerSocketChannel server = ServerSocketChannel.open();
+      if (count > 1) {
+        server.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+      }
+      server.bind(new InetSocketAddress(port), 1024);
+      // the others join the port the first one got, which matters for port 0
+      port = ((InetSocketAddress) server.getLocalAddress()).getPort();
+      shards[i] = new Shard(i, server,
+          createExecutor(config, threads, count > 1 ? "fun-worker-" + i + "-" : "fun-worker-"));
+    }
+    return port;
+  }
+
+  private static boolean reusePortSupported() throws IOException {
+    try (ServerSocketChannel probe = ServerSocketChannel.open()) {
+      return probe.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+    }
+  }
+
+  /**
+   * Serves connections on the sockets from listen() with the configured
+   * engine, the first shard on the calling thread and each other one on a
+   * thread of its own. Returns once stop() has closed the sockets.
+   */
+  void serve() throws IOException {
+    Thread[] others = new Thread[shards.length - 1];
+    for (int i = 1; i < shards.length; i++) {
+      Shard shard = shards[i];
+      others[i - 1] = new Thread(() -> {
+        try {
+          serve(shard);
+        } catch (IOException e) {
+          e.printStackTrace();
+        }
+      }, "fun-shard-" + i);
+      others[i - 1].start();
+    }
+    try {
+      serve(shards[0]);
+    } finally {
+      for (Thread other : others) {
+        try {
+          other.join();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          break;
+        }
+      }
+    }
+  }
+
+  private void serve(Shard shard) throws IOException {
+    try {
+      if (config.engine.equals("nio")) {
+        NioServer engine = new NioServer(this, config, shard);
+        shard.nio = engine;
+        engine.serve();
+      } else {
+        serveBlocking(shard);
+      }
+    } catch (ClosedChannelException e) {
+      // stopped
+    } finally {
+      shard.workers.shutdown();
+    }
+  }
+
+  /**
+   * Stops accepting connections, serve() returns. Queued access log lines
+   * are written.
+   */
+  void stop() throws IOException {
+    for (Shard shard : shards) {
+      shard.server.close();
+      NioServer engine = shard.nio;
+      if (engine != null) {
+        engine.wakeup();
+      }
+    }
+    accessLog.close();
+  }
+
+  /** the shards from listen(), with their connection and request counts */
+  Shard[] shards() {
+    return shards;
+  }
+
+  /**
+   * The last byte of a response has been written: counts it in the metrics
+   * and queues its access log line
+   */
+  void responded(HttpResponse response) {
+    accessLog.log(response, metrics.responded(response));
+  }
+
+  /**
+   * Blocking engine: one worker thread per open connection
+   * @param shard the socket to accept from and the executor connections are
+   *        handed to
+   */
+  private void serveBlocking(Shard shard) throws IOException {
+    while (true) {
+      SocketChannel sock = shard.server.accept();
+      // headers and a file body go out in separate writes, Nagle would hold
+      // the body back until the client acks the headers
+      sock.setOption(StandardSocketOptions.TCP_NODELAY, true);
+      if (!connectionOpened(sock)) {
+        continue;
+      }
+      shard.connections.increment();
+      try {
+        shard.workers.execute(() -> handleConnection(sock, shard));
+      } catch (RejectedExecutionException e) {
+        System.out.println("Worker pool rejected connection: " + e.getMessage());
+        connectionClosed();
         sock.close();
       }
+    }
+  }
+
+  /**
+   * Counts a new connection, or answers 503 and closes it if
+   * fun.maxConnections are open already
+   * @return false if the connection was turned away
+   */
+  boolean connectionOpened(SocketChannel channel) {
+    if (openConnections.incrementAndGet() > config.maxConnections) {
+      openConnections.decrementAndGet();
+      metrics.connectionRefused();
+      try (channel) {
+        // best effort, a non-blocking channel takes this much at once
+        channel.write(ByteBuffer.wrap(refusal));
+      } catch (IOException e) {
+        // the client is gone already
+      }
+      return false;
+    }
+    metrics.connectionOpened();
+    return true;
+  }
+
+  /** a connection counted by connectionOpened was closed */
+  void connectionClosed() {
+    openConnections.decrementAndGet();
+    metrics.connectionClosed();
+  }
+
+  /**
+   * Serves requests from one accepted socket until the client closes it, asks
+   * for Connection: close, goes idle for too long or hits the request limit.
+   * Pipelined requests are answered in order. Runs on a worker thread. A
+   * client that switches to HTTP/2 is handed to serveHttp2.
+   * @param sock the accepted client socket, in blocking mode
+   * @param shard the shard that accepted it, for its request count
+   */
+  private void handleConnection(SocketChannel sock, Shard shard) {
+    boolean handedOff = false;
+    ByteBuffer head = ResponseHead.buffer();
+    try {
+      sock.socket().setSoTimeout(config.idleTimeoutMillis);
+      InputStream in = sock.socket().getInputStream();
+      RequestParser parser = new RequestParser(config.maxHeaderBytes, config.maxBodyBytes,
+          config.headerTimeoutMillis, config.bodyTimeoutMillis);
+
+      int served = 0;
+      boolean keepAlive = true;
+      while (keepAlive) {
+        HttpRequest request;
+        try {
+          request = parser.read(in, sock.socket(), config.idleTimeoutMillis);
+        } catch (RequestParser.BadRequest e) {
+          send(errorResponse(e.status, e.getMessage()), sock, false, head);
+          shard.requests.increment();
+          lingerAndClose(sock, in);
+          break;
+        }
+        if (request == null) {
+          break; // client closed the connection
+        }
+        if (http2Requested(request)) {
+          serveHttp2(sock, request, parser.remaining(), shard);
+          handedOff = true;
+          return;
+        }
+        served++;
+        keepAlive = request.keepAlive() && served < config.maxRequestsPerConnection;
+        // this thread waits for its turn, at most fun.queueTimeout
+        HttpResponse response = admission.enter().join()
+            ? admitted(request).join() : overloaded(request);
+        keepAlive = send(response, sock, keepAlive, head);
+        shard.requests.increment();
+        parser.next();
+      }
+    } catch (SocketTimeoutException e) {
+      // idle keep-alive connection, just close it
     } catch (IOException e) {
       e.printStackTrace();
     } finally {
-      if (sock != null) {
+      BufferPool.release(head);
+      if (!handedOff) {
         try {
-          server.close();
+          sock.close();
         } catch (IOException e) {
-          // TODO Auto-generated catch block
-          e.printStackTrace();
+          // already gone
         }
+        connectionClosed();
+      }
+    }
+  }
+
+  /**
+   * Whether a request starts HTTP/2 on its connection: the HTTP/2 preface
+   * from a client with prior knowledge, or an HTTP/1.1 request asking to
+   * upgrade to h2c. Only when fun.http2 is on.
+   */
+  boolean http2Requested(HttpRequest request) {
+    if (!config.http2) {
+      return false;
+    }
+    if ("PRI".equals(request.method)) {
+      return true;
+    }
+    String upgrade = request.header("Upgrade");
+    return upgrade != null && "HTTP/1.1".equals(request.version)
+        && request.header("HTTP2-Settings") != null
+        && Arrays.asList(upgrade.toLowerCase().split("\\s*,\\s*")).contains("h2c");
+  }
+
+  /**
+   * Serves an HTTP/2 connection on a thread of its own, the streams are
+   * handled on the shard's workers. Its own thread because a connection
+   * waiting for frames must not hold a worker its streams need. Closes the
+   * socket when the connection ends.
+   * @param sock the connection, switched to blocking mode
+   * @param request the preface, or the request asking to upgrade
+   * @param received bytes that came after the request
+   */
+  void serveHttp2(SocketChannel sock, HttpRequest request, byte[] received, Shard shard) {
+    Thread thread = new Thread(() -> {
+      try (sock) {
+        new Http2Connection(this, config, sock, shard).serve(request, received);
+      } catch (IOException e) {
+        // the client is gone
+      } finally {
+        connectionClosed();
+      }
+    }, "fun-h2-" + HTTP2_CONNECTIONS.incrementAndGet());
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Closes our side for writing and reads whatever the client still sends
+   * for a moment. Closing with unread request bytes makes the kernel send a
+   * reset, which can destroy the error response before the client reads it.
+   * A second in all, so a client trickling bytes cannot keep the thread.
+   */
+  private static void lingerAndClose(SocketChannel sock, InputStream in) throws IOException {
+    sock.shutdownOutput();
+    long deadline = System.nanoTime() + 1_000_000_000L;
+    byte[] discard = new byte[4096];
+    int total = 0;
+    while (total < 64 * 1024) {
+      long left = (deadline - System.nanoTime()) / 1_000_000;
+      if (left <= 0) {
+        break;
+      }
+      sock.socket().setSoTimeout((int) left);
+      int n = in.read(discard);
+      if (n < 0) {
+        break;
       }
+      total += n;
     }
   }
 
+  /**
+   * Writes a whole response to a blocking channel
+   * @param head the connection's buffer for the response head
+   * @return whether the connection can stay open
+   */
+  private boolean send(HttpResponse response, SocketChannel sock, boolean keepAlive,
+      ByteBuffer head) throws IOException {
+    try {
+      keepAlive = response.prepare(keepAlive, head);
+      while (!response.writeTo(sock)) {
+        // a blocking channel keeps writing until everything is sent
+      }
+      responded(response);
+      return keepAlive;
+    } finally {
+      response.close();
+    }
+  }
+
+  /**
+   * Creates the executor accepted sockets are handed to. "virtual" starts one
+   * virtual thread per connection (needs Java 21), anything else gets a fixed
+   * pool of platform threads.
+   * @param config which executor
+   * @param threads size of the pool
+   * @param name prefix of the pool's thread names
+   * @return executor for connection handling
+   */
+  static ExecutorService createExecutor(ServerConfig config, int threads, String name) {
+    if (config.executor.equals("virtual")) {
+      try {
+        // looked up reflectively so the server still builds and runs on Java 17
+        Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        return (ExecutorService) factory.invoke(null);
+      } catch (ReflectiveOperationException e) {
+        System.out.println("Virtual threads need Java 21+, using a pool of "
+            + threads + " platform threads instead");
+      }
+    }
+    AtomicInteger count = new AtomicInteger();
+    return Executors.newFixedThreadPool(threads, task -> {
+      Thread thread = new Thread(task, name + count.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
   /**
    * Used in the "/random" endpoint
    */
@@ -87,359 +498,572 @@ class WebServer {
     }
   };
 
-  private Random random = new Random();
-
   /**
    * Reads in socket stream and generates a response
    * @param inStream HTTP input stream from socket
    * @return the byte encoded HTTP response
    */
   public byte[] createResponse(InputStream inStream) {
+    try {
+      HttpResponse response;
+      try {
+        HttpRequest request = HttpRequest.read(inStream);
+        if (request == null) {
+          response = errorResponse("400 Bad Request", "Illegal request: no GET");
+        } else {
+          response = createResponse(request);
+        }
+      } catch (RequestParser.BadRequest e) {
+        response = errorResponse(e.status, e.getMessage());
+      }
+      return response.toBytes(false);
+    } catch (IOException e) {
+      e.printStackTrace();
+      return ("<html>ERROR: " + e.getMessage() + "</html>").getBytes();
+    }
+  }
 
-    byte[] response = null;
-    BufferedReader in = null;
+  /**
+   * Generates the response for one parsed request, waiting for it if the
+   * route is asynchronous
+   * @param req the parsed request
+   * @return the response, not yet written
+   */
+  public HttpResponse createResponse(HttpRequest req) {
+    return createResponseAsync(req).join();
+  }
 
+  /**
+   * createResponseAsync for a request admission control let in. Its turn is
+   * given back as soon as the handler returns, so asynchronous routes (e.g.
+   * /github) take up no turn while they wait.
+   */
+  CompletableFuture<HttpResponse> admitted(HttpRequest req) {
     try {
+      return createResponseAsync(req);
+    } finally {
+      admission.exit();
+    }
+  }
 
-      // Read from socket's input stream. Must use an
-      // InputStreamReader to bridge from streams to a reader
-      in = new BufferedReader(new InputStreamReader(inStream, "UTF-8"));
-
-      // Get header and save the request from the GET line:
-      // example GET format: GET /index.html HTTP/1.1
+  /**
+   * 503 for a request admission control turned away, the client is told when
+   * to try again
+   */
+  HttpResponse overloaded(HttpRequest req) {
+    HttpResponse response = errorResponse("503 Service Unavailable",
+        "The server is busy, please try again in a moment")
+        .header("Retry-After", Integer.toString(config.retryAfterSeconds));
+    if ("HEAD".equals(req.method)) {
+      response.omitBody();
+    }
+    response.route = SHED_ROUTE;
+    response.startNanos = req.startNanos;
+    response.method = req.method;
+    response.target = req.target;
+    return response;
+  }
 
-      String request = null;
+  /**
+   * Starts generating the response for one parsed request
+   * @param req the parsed request, must stay valid until the future completes
+   * @return the response, not yet written. Never completes exceptionally,
+   *         failures are turned into error responses.
+   */
+  public CompletableFuture<HttpResponse> createResponseAsync(HttpRequest req) {
 
-      boolean done = false;
-      while (!done) {
-        String line = in.readLine();
+    CompletableFuture<HttpResponse> response;
 
-        System.out.println("Received: " + line);
+    long start = System.nanoTime();
+    if (req.startNanos != 0) {
+      metrics.parsed(req, start);
+    }
 
-        // find end of header("\n\n")
-        if (line == null || line.equals(""))
-          done = true;
-        // parse GET format ("GET <path> HTTP/1.1")
-        else if (line.startsWith("GET")) {
-          int firstSpace = line.indexOf(" ");
-          int secondSpace = line.indexOf(" ", firstSpace + 1);
+    // HEAD is answered like GET, the body is dropped when writing
+    boolean head = "HEAD".equals(req.method);
+    // HTTP/1.0 has no chunked encoding, streamed bodies end with the connection
+    boolean http10 = "HTTP/1.0".equals(req.version);
+    req.acceptsGzip = config.gzip && Gzip.accepted(req.header("Accept-Encoding"));
+    boolean gzip = req.acceptsGzip;
+
+    // Generate an appropriate response to the user
+    if (!head && !"GET".equals(req.method) && !"POST".equals(req.method)) {
+      return CompletableFuture.completedFuture(adjust(errorResponse("405 Method Not Allowed",
+          "Method not allowed: " + req.method), req, start, head, http10, gzip));
+    }
+    try {
+      response = router.route(req);
+    } catch (IOException | RuntimeException e) {
+      // a handler bug must not leave the connection without an answer
+      e.printStackTrace();
+      HttpResponse error = errorResponse("500 Internal Server Error", "ERROR: " + e.getMessage());
+      return CompletableFuture.completedFuture(adjust(error, req, start, head, http10, gzip));
+    }
 
-          // extract the request, basically everything after the GET up to HTTP/1.1
-          request = line.substring(firstSpace + 2, secondSpace);
-        }
+    if (response.isDone() && !response.isCompletedExceptionally()) {
+      // the usual case, skip the extra stage
+      return CompletableFuture.completedFuture(
+          adjust(response.join(), req, start, head, http10, gzip));
+    }
+    return response.handle((r, error) -> {
+      if (error != null) {
+        error.printStackTrace();
+        r = errorResponse("500 Internal Server Error", "ERROR: " + error.getMessage());
+      }
+      return adjust(r, req, start, head, http10, gzip);
+    });
+  }
 
+  /**
+   * Finishes a handler's response for this request: 304 if the client's
+   * copy is current, compression, HEAD and HTTP/1.0 handling, and the
+   * fields Metrics needs
+   * @param start System.nanoTime() when routing started
+   */
+  private HttpResponse adjust(HttpResponse response, HttpRequest req, long start, boolean head,
+      boolean http10, boolean gzip) {
+    metrics.handled(System.nanoTime() - start);
+    if (gzip) {
+      try {
+        response.compress(config.gzipMinBytes);
+      } catch (IOException e) {
+        e.printStackTrace(); // the body is sent uncompressed
       }
-      System.out.println("FINISHED PARSING HEADER\n");
+    }
+    Validators validators = response.validators();
+    if (validators != null && validators.notModified(req)) {
+      // the client's copy is current, only the headers go out. Compressed
+      // first, so the 304 has the encoding and ETag the 200 would have had
+      response = response.notModified();
+    }
+    if (head) {
+      response.omitBody();
+    }
+    if (http10) {
+      response.disallowChunked();
+    }
+    response.route = req.route;
+    response.startNanos = req.startNanos;
+    response.method = req.method;
+    response.target = req.target;
+    return response;
+  }
 
-      // Generate an appropriate response to the user
-      if (request == null) {
-        response = "<html>Illegal request: no GET</html>".getBytes();
-      } else {
-        // create output buffer
-        StringBuilder builder = new StringBuilder();
-        // NOTE: output from buffer is at the end
-
-        if (request.length() == 0) {
-          // shows the default directory page
-
-          // opens the root.html file
-          String page = new String(readFileInBytes(new File("www/root.html")));
-          // performs a template replacement in the page
-          page = page.replace("${links}", buildFileList());
-
-          // Generate response
-          builder.append("HTTP/1.1 200 OK\n");
-          builder.append("Content-Type: text/html; charset=utf-8\n");
-          builder.append("\n");
-          builder.append(page);
-
-        } else if (request.equalsIgnoreCase("json")) {
-          // shows the JSON of a random image and sets the header name for that image
-          //<img src="https://media.tenor.com/c3GlOSMe6FEAAAAC/ed-edd-n-eddy.gif">
-          // pick a index from the map
-          int index = random.nextInt(_images.size());
-
-          // pull out the information
-          String header = (String) _images.keySet().toArray()[index];
-          String url = _images.get(header);
-
-          // Generate response
-          builder.append("HTTP/1.1 200 OK\n");
-          builder.append("Content-Type: application/json; charset=utf-8\n");
-          builder.append("\n");
-          builder.append("{");
-          builder.append("\"header\":\"").append(header).append("\",");
-          builder.append("\"image\":\"").append(url).append("\"");
-          builder.append("}");
-
-        } else if (request.equalsIgnoreCase("random")) {
-          // opens the random image page
-
-          // open the index.html
-          File file = new File("www/index.html");
-
-          // Generate response
-          builder.append("HTTP/1.1 200 OK\n");
-          builder.append("Content-Type: text/html; charset=utf-8\n");
-          builder.append("\n");
-          builder.append(new String(readFileInBytes(file)));
-
-        } else if (request.contains("file/")) {
-          // tries to find the specified file and shows it or shows an error
-
-          // take the path and clean it. try to open the file
-          File file = new File(request.replace("file/", ""));
-
-          // Generate response
-          if (file.exists()) { // success
-            builder.append("HTTP/1.1 200 OK\n");
-            builder.append("Content-Type: text/html; charset=utf-8\n");
-            builder.append("\n");
-            builder.append(new String(readFileInBytes(file)));
-          } else { // failure
-            builder.append("HTTP/1.1 404 Not Found\n");
-            builder.append("Content-Type: text/html; charset=utf-8\n");
-            builder.append("\n");
-            builder.append("File not found: " + file);
-          }
-        } else if (request.contains("multiply?")) {
-          // This multiplies two numbers, there is NO error handling, so when
-          // wrong data is given this just crashes
+  /**
+   * Registers all routes. Paths are matched without the leading "/" and
+   * without the query.
+   */
+  private Router createRouter() {
+    return new Router(this::noRoute, this::notAllowed)
+        .exact("", this::root)
+        .exactIgnoreCase("json", this::json)
+        .exactIgnoreCase("random", this::random)
+        .prefix("file", this::file)
+        .exact("multiply", this::multiply)
+        .post("multiply", MultiplyBatch::respond)
+        .exactAsync("github", this::github)
+        .exact("kiss", this::kiss)
+        .exact("circle", this::circle)
+        .exact("triangle", this::triangle)
+        .exact("metrics", this::metrics);
+  }
 
-          Map<String, String> query_pairs = new LinkedHashMap<String, String>();
-          // extract path parameters
+  /**
+   * html response from a builder
+   */
+  private static HttpResponse html(String status, StringBuilder builder) {
+    return HttpResponse.of(status, "text/html; charset=utf-8",
+        builder.toString().getBytes(StandardCharsets.UTF_8));
+  }
 
-          try {
-            query_pairs = splitQuery(request.replace("multiply?", ""));
-          } catch (UnsupportedEncodingException | StringIndexOutOfBoundsException e) {
-            System.out.println("Error 400: Invalid input. Must have two inputs.");
-          }
+  /**
+   * "/metrics" shows request counts, timings and traffic for Prometheus
+   */
+  private HttpResponse metrics(HttpRequest request) {
+    return HttpResponse.of("200 OK", "text/plain; version=0.0.4; charset=utf-8",
+        metrics.prometheus(admission, shards).getBytes(StandardCharsets.UTF_8));
+  }
 
+  private HttpResponse noRoute(HttpRequest request) {
+    return errorResponse("404 Not Found", "No route for: /" + request.target);
+  }
 
-          // extract required fields from parameters
+  private HttpResponse notAllowed(HttpRequest request) {
+    return errorResponse("405 Method Not Allowed", "Method not allowed: " + request.method);
+  }
 
-          //intiallizing the numbers
-          Integer num1 = null;
-          Integer num2 = null;
+  /**
+   * "/" shows the default directory page
+   */
+  private HttpResponse root(HttpRequest request) throws IOException {
+    // root.html is compiled once and ${links} filled in with the cached
+    // file list, so this only collects ready-made byte chunks
+    HttpResponse page = rootPage.render();
+
+    // Generate response
+    if (page == null) {
+      return errorResponse("404 Not Found", "File not found: www/root.html");
+    }
+    return page;
+  }
 
+  /**
+   * "/json" shows the JSON of a random image and sets the header name for that image
+   */
+  private HttpResponse json(HttpRequest request) {
+    //<img src="https://media.tenor.com/c3GlOSMe6FEAAAAC/ed-edd-n-eddy.gif">
+    // pick a index from the map
+    int index = ThreadLocalRandom.current().nextInt(_images.size());
+
+    // pull out the information
+    String header = (String) _images.keySet().toArray()[index];
+    String url = _images.get(header);
+
+    // Generate response
+    StringBuilder builder = new StringBuilder();
+    builder.append("{");
+    builder.append("\"header\":\"").append(header).append("\",");
+    builder.append("\"image\":\"").append(url).append("\"");
+    builder.append("}");
+    return HttpResponse.of("200 OK", "application/json; charset=utf-8",
+        builder.toString().getBytes(StandardCharsets.UTF_8));
+  }
 
-          //ensuring the program correctly errors out
-          try {
-            num1 = Integer.parseInt(query_pairs.getOrDefault("num1", "1"));
-          } catch (NumberFormatException e) {
-            System.out.println("Error 400: Invalid input. num1 must be an integer.");
-          } catch (NullPointerException e) {
-            System.out.println("Error 400: Invalid input. Must have two inputs.");
-          }
-          try {
-            num2 = Integer.parseInt(query_pairs.getOrDefault("num2", "1"));
-          } catch (NumberFormatException e) {
-            System.out.println("Error 400: Invalid input. num2 must be an integer.");
-          } catch (NullPointerException e) {
-            System.out.println("Error 400: Invalid input. Must have two inputs.");
-          }
-          //<img src="https://media.tenor.com/c3GlOSMe6FEAAAAC/ed-edd-n-eddy.gif">
-          //final safety measure to ensure the math works
-          if (num1 == null) {
-            num1 = 1;
-          }
-          if (num2 == null) {
-            num2 = 1;
-          }
+  /**
+   * "/random" opens the random image page
+   */
+  private HttpResponse random(HttpRequest request) throws IOException {
+    // open the index.html
+    File file = new File("www/index.html");
+
+    // Generate response
+    FileCache.Entry entry = fileCache.get(file);
+    if (entry == null) {
+      return errorResponse("404 Not Found", "File not found: " + file);
+    }
+    return fileResponse(entry, request);
+  }
 
-          // do math
-          Integer result = num1 * num2;
-
-          // Generate response
-          builder.append("HTTP/1.1 200 OK\n");
-          builder.append("Content-Type: text/html; charset=utf-8\n");
-          builder.append("\n");
-          builder.append("Result is: " + result);
-
-          // TODO: Include error handling here with a correct error code and
-          // a response that makes sense
-
-
-        } else if (request.contains("github?")) {
-          // pulls the query from the request and runs it with GitHub's REST API
-          // check out https://docs.github.com/rest/reference/
-          //
-          // HINT: REST is organized by nesting topics. Figure out the biggest one first,
-          //     then drill down to what you care about
-          // "Owner's repo is named RepoName. Example: find RepoName's contributors" translates to
-          //     "/repos/OWNERNAME/REPONAME/contributors"
-
-          Map<String, String> query_pairs = new LinkedHashMap<String, String>();
-          query_pairs = splitQuery(request.replace("github?", ""));
-          String json = fetchURL("https://api.github.com/" + query_pairs.get("query"));
-
-          String fullName = null;
-          String repoName = null;
-          int id = 0;
-          String loginName = null;
-          String ownerName = null;
-
-          try {
-            // parse the JSON string
-            int fullNameIndex = json.indexOf("\"full_name\":");
-            if (fullNameIndex != -1) {
-              int repoNameStartIndex = fullNameIndex + "\"full_name\":".length() + 1;
-              int repoNameEndIndex = json.indexOf("\",", repoNameStartIndex);
-              fullName = json.substring(repoNameStartIndex, repoNameEndIndex);
-            }
-
-            int repoNameIndex = json.indexOf("\"name\":");
-            if (repoNameIndex != -1) {
-              int repoNameStartIndex = repoNameIndex + "\"name\":".length() + 1;
-              int repoNameEndIndex = json.indexOf("\",", repoNameStartIndex);
-              repoName = json.substring(repoNameStartIndex, repoNameEndIndex);
-            }
-
-            int idIndex = json.indexOf("\"id\":");
-            if (idIndex != -1) {
-              int idStartIndex = idIndex + "\"id\":".length();
-              int idEndIndex = json.indexOf(",", idStartIndex);
-              id = Integer.parseInt(json.substring(idStartIndex, idEndIndex));
-            }
-
-            int loginNameIndex = json.indexOf("\"login\":");
-            if (loginNameIndex != -1) {
-              int loginNameStartIndex = loginNameIndex + "\"login\":".length() + 1;
-              int loginNameEndIndex = json.indexOf("\",", loginNameStartIndex);
-              loginName = json.substring(loginNameStartIndex, loginNameEndIndex);
-            }
-
-            int ownerNameIndex = json.indexOf("\"name\":");
-            if (ownerNameIndex != -1) {
-              int ownerNameStartIndex = ownerNameIndex + "\"name\":".length() + 1;
-              int ownerNameEndIndex = json.indexOf("\",", ownerNameStartIndex);
-              ownerName = json.substring(ownerNameStartIndex, ownerNameEndIndex);
-            }
-
-            builder.append("HTTP/1.1 200 OK\n");
-            builder.append("Content-Type: text/html; charset=utf-8\n");
-            builder.append("\n");
-            builder.append("Full Name: " + fullName + "<br>");
-            builder.append("Repository Name: " + repoName + "<br>");
-            builder.append("ID: " + id + "<br>");
-            builder.append("Login Name: " + loginName + "<br>");
-            builder.append("Owner Name: " + ownerName + "<br>");
-          } catch (Exception e) {
-            builder.append("HTTP/1.1 400 Bad Request\n");
-            builder.append("Content-Type: text/html; charset=utf-8\n");
-            builder.append("\n");
-            builder.append("Error parsing the JSON response from GitHub API: " + e.getMessage());
-          }
+  /**
+   * "/file/name" tries to find the specified file and shows it or shows an error
+   */
+  private HttpResponse file(HttpRequest request) throws IOException {
+    // the path below /file/. try to open the file
+    File file = new File(request.subPath);
+
+    // Generate response, the cache returns null for missing files.
+    // The bytes are sent as they are, from memory if cached and
+    // straight from disk with transferTo otherwise
+    FileCache.Entry entry = fileCache.get(file);
+    if (entry == null) { // failure
+      return errorResponse("404 Not Found", "File not found: " + file);
+    }
+    return fileResponse(entry, request); // success
+  }
 
+  /**
+   * Sends a file: the requested byte ranges, the cached gzip copy if the
+   * client takes gzip and the file compresses, the cached bytes, or
+   * straight from disk. The ETag and Last-Modified of the cache entry go
+   * along, a client whose copy is still current gets a 304 instead (see
+   * adjust).
+   */
+  private HttpResponse fileResponse(FileCache.Entry entry, HttpRequest request)
+      throws IOException {
+    String type = "text/html; charset=utf-8";
+    String range = request.header("Range");
+    if (range != null && "GET".equals(request.method)
+        && entry.validators.rangeAllowed(request)) {
+      long[] ranges = ByteRanges.parse(range, entry.size);
+      if (ranges != null) {
+        return rangeResponse(entry, ranges, type);
+      }
+    }
+    if (request.acceptsGzip) {
+      byte[] gz = fileCache.gzip(entry);
+      if (gz != null) {
+        return HttpResponse.of("200 OK", type, gz).encoded("gzip")
+            .validators(entry.validators);
+      }
+    }
+    if (entry.cached()) {
+      return HttpResponse.of("200 OK", type, entry.data())
+          .uncompressible().validators(entry.validators).header("Accept-Ranges", "bytes");
+    }
+    return HttpResponse.file("200 OK", type, entry.path, entry.size)
+        .validators(entry.validators).header("Accept-Ranges", "bytes");
+  }
 
-          // TODO: Parse the JSON returned by your fetch and create an appropriate
-          // response based on what the assignment document asks for
+  /**
+   * 206 with parts of a file, always unencoded. Cached files are sliced in
+   * memory, others are sent with positioned transfers from disk. Several
+   * ranges make a multipart/byteranges body.
+   * @param ranges from ByteRanges.parse, empty if none can be satisfied
+   */
+  private static HttpResponse rangeResponse(FileCache.Entry entry, long[] ranges, String type) {
+    long size = entry.size;
+    if (ranges.length == 0) {
+      return errorResponse("416 Range Not Satisfiable", "Range not satisfiable")
+          .header("Content-Range", "bytes */" + size);
+    }
+    String status = "206 Partial Content";
+    HttpResponse response;
+    if (ranges.length == 2) {
+      if (entry.cached()) {
+        response = HttpResponse.of(status, type, slice(entry, ranges[0], ranges[1]));
+      } else {
+        response = HttpResponse.fileRanges(status, type, entry.path, ranges, null);
+      }
+      response.header("Content-Range", ByteRanges.contentRange(ranges[0], ranges[1], size));
+    } else {
+      String boundary = ByteRanges.boundary();
+      String multipart = "multipart/byteranges; boundary=" + boundary;
+      ByteBuffer[] separators = ByteRanges.separators(ranges, size, type, boundary);
+      if (entry.cached()) {
+        ByteBuffer[] parts = new ByteBuffer[ranges.length + 1];
+        for (int i = 0; i < ranges.length / 2; i++) {
+          parts[2 * i] = separators[i];
+          parts[2 * i + 1] = slice(entry, ranges[2 * i], ranges[2 * i + 1]);
+        }
+        parts[ranges.length] = separators[separators.length - 1];
+        response = HttpResponse.of(status, multipart, parts);
+      } else {
+        response = HttpResponse.fileRanges(status, multipart, entry.path, ranges, separators);
+      }
+    }
+    return response.uncompressible().validators(entry.validators)
+        .header("Accept-Ranges", "bytes");
+  }
 
+  private static ByteBuffer slice(FileCache.Entry entry, long start, long end) {
+    return entry.data().slice((int) start, (int) (end - start));
+  }
 
-        } else if (request.contains("kiss?")) {
-          //<h1 style="color:blue">hello hunter :), click <a href="https://i.pinimg.com/originals/10/04/43/1004430dee8038f3bdfa86cde175057f.jpg">this</a> </h1>
-          //<script> alert("I AM UTTERLY INSANE!!!");</script>
-          //<img src="https://media.tenor.com/c3GlOSMe6FEAAAAC/ed-edd-n-eddy.gif">
-          String imageHtml = "<img src=\"https://i.pinimg.com/originals/10/04/43/1004430dee8038f3bdfa86cde175057f.jpg\">";
-          builder.append("HTTP/1.1 200 OK\n");
-          builder.append("Content-Type: text/html; charset=utf-8\n");
-          builder.append("\n");
-          builder.append("<html><body>" + imageHtml);
+  /**
+   * "/multiply?num1=3&num2=4" multiplies two numbers. Many pairs at once
+   * are POSTed to "/multiply" instead, see MultiplyBatch.
+   */
+  private HttpResponse multiply(HttpRequest request) {
+    Map<String, String> query_pairs;
+    try {
+      query_pairs = splitQuery(request.query);
+    } catch (UnsupportedEncodingException | IllegalArgumentException
+        | StringIndexOutOfBoundsException e) {
+      return errorResponse("400 Bad Request", "Invalid query, expected num1=...&num2=...");
+    }
 
+    // both inputs are required, there is no default
+    String num1 = query_pairs.get("num1");
+    String num2 = query_pairs.get("num2");
+    if (num1 == null || num2 == null) {
+      return errorResponse("400 Bad Request", "Must have two inputs: num1 and num2.");
+    }
 
-        } else if (request.contains("circle?")){
-          Map<String, String> query_pairs = new LinkedHashMap<String, String>();
-          try {
-            query_pairs = splitQuery(request.replace("circle?", ""));
-          } catch (UnsupportedEncodingException | StringIndexOutOfBoundsException e) {
-            System.out.println("Error 400: Invalid input. Must have two inputs.");
-          }
-          int howMany = 0;
-          int radius = 0;
-
-          try {
-            howMany = Integer.parseInt(query_pairs.getOrDefault("howMany", "1"));
-          } catch (NumberFormatException e) {
-            System.out.println("Error 400: Invalid input. num1 must be an integer.");
-          } catch (NullPointerException e) {
-            System.out.println("Error 400: Invalid input. Must have two inputs.");
-          }
-          try {
-            radius = Integer.parseInt(query_pairs.getOrDefault("radius", "1"));
-          } catch (NumberFormatException e) {
-            System.out.println("Error 400: Invalid input. num2 must be an integer.");
-          } catch (NullPointerException e) {
-            System.out.println("Error 400: Invalid input. Must have two inputs.");
-          }
+    long left;
+    long right;
+    try {
+      left = Long.parseLong(num1.trim());
+    } catch (NumberFormatException e) {
+      return errorResponse("400 Bad Request", "Invalid input. num1 must be an integer.");
+    }
+    try {
+      right = Long.parseLong(num2.trim());
+    } catch (NumberFormatException e) {
+      return errorResponse("400 Bad Request", "Invalid input. num2 must be an integer.");
+    }
 
+    // do math, refusing results that would wrap around
+    long result;
+    try {
+      result = Math.multiplyExact(left, right);
+    } catch (ArithmeticException e) {
+      return errorResponse("400 Bad Request", "The result does not fit in a long.");
+    }
 
-          StringBuilder sb = new StringBuilder();
-          for (int i = 0; i < howMany; i++) {
-            sb.append(drawCircle(radius - i)).append("\n");
-          }
+    // Generate response
+    StringBuilder builder = new StringBuilder();
+    builder.append("Result is: ").append(result);
+    return html("200 OK", builder);
+  }
 
-          builder.append("HTTP/1.1 200 OK\n");
-          builder.append("Content-Type: text/html; charset=utf-8\n");
-          builder.append("\n");
-          builder.append("Result is: " + sb);
-
-        } else if (request.contains("triangle?")){
-          Map<String, String> query_pairs = new LinkedHashMap<String, String>();
-          try {
-            query_pairs = splitQuery(request.replace("triangle?", ""));
-          } catch (UnsupportedEncodingException | StringIndexOutOfBoundsException e) {
-            System.out.println("Error 400: Invalid input. Must have two inputs.");
-          }
-          int howMany = 0;
-          int length = 0;
-
-          try {
-            howMany = Integer.parseInt(query_pairs.getOrDefault("howMany", "1"));
-          } catch (NumberFormatException e) {
-            System.out.println("Error 400: Invalid input. num1 must be an integer.");
-          } catch (NullPointerException e) {
-            System.out.println("Error 400: Invalid input. Must have two inputs.");
-          }
-          try {
-            length = Integer.parseInt(query_pairs.getOrDefault("length", "1"));
-          } catch (NumberFormatException e) {
-            System.out.println("Error 400: Invalid input. num2 must be an integer.");
-          } catch (NullPointerException e) {
-            System.out.println("Error 400: Invalid input. Must have two inputs.");
-          }
+  /**
+   * "/github?query=users/amehlhase316/repos" pulls the query from the request
+   * and runs it with GitHub's REST API. The lookup goes through the
+   * GitHubClient cache and does not hold a thread while GitHub answers.
+   */
+  private CompletableFuture<HttpResponse> github(HttpRequest request) throws IOException {
+    // check out https://docs.github.com/rest/reference/
+    //
+    // HINT: REST is organized by nesting topics. Figure out the biggest one first,
+    //     then drill down to what you care about
+    // "Owner's repo is named RepoName. Example: find RepoName's contributors" translates to
+    //     "/repos/OWNERNAME/REPONAME/contributors"
+
+    Map<String, String> query_pairs;
+    try {
+      query_pairs = splitQuery(request.query);
+    } catch (UnsupportedEncodingException | IllegalArgumentException
+        | StringIndexOutOfBoundsException e) {
+      return CompletableFuture.completedFuture(errorResponse("400 Bad Request",
+          "Invalid query, e.g. /github?query=users/amehlhase316/repos"));
+    }
+    String query = query_pairs.get("query");
+    if (query == null) {
+      return CompletableFuture.completedFuture(errorResponse("400 Bad Request",
+          "Missing query, e.g. /github?query=users/amehlhase316/repos"));
+    }
+    return github.fetch(query).handle((answer, error) -> {
+      if (error instanceof CompletionException && error.getCause() != null) {
+        error = error.getCause();
+      }
+      if (error instanceof IllegalArgumentException) {
+        return errorResponse("400 Bad Request", "Invalid query: " + error.getMessage());
+      }
+      if (error != null) {
+        // the access log has the 502, the error goes to the client
+        return errorResponse("502 Bad Gateway", "GitHub request failed: " + error);
+      }
+      return githubPage(answer);
+    });
+  }
 
+  /** JSON fields the /github page shows, read by GitHubClient as the answer streams in */
+  static final String[] GITHUB_FIELDS = {"full_name", "name", "id", "owner.login", "login",
+      "message"};
 
-          StringBuilder sb = new StringBuilder();
-          for (int i = 0; i < howMany; i++) {
-            sb.append(drawTriangle(length - i)).append("\n");
-          }
+  /**
+   * Builds the /github page from the fields GitHubClient extracted
+   */
+  private static HttpResponse githubPage(GitHubClient.Answer answer) {
+    Map<String, String> fields = answer.fields;
+    StringBuilder builder = new StringBuilder();
+    if (answer.status / 100 != 2) {
+      // GitHub explains its errors in "message", e.g. Not Found or a rate limit
+      builder.append("GitHub answered " + answer.status + ": " + fields.get("message"));
+      return html(answer.status == 404 ? "404 Not Found" : "502 Bad Gateway", builder);
+    }
 
-          builder.append("HTTP/1.1 200 OK\n");
-          builder.append("Content-Type: text/html; charset=utf-8\n");
-          builder.append("\n");
-          builder.append("Result is: " + sb);
+    String fullName = fields.get("full_name");
+    String repoName = fields.get("name");
+    String id = fields.get("id");
+    // repositories have an owner, a user query has the login at the top
+    String loginName = fields.get("owner.login") != null ? fields.get("owner.login")
+        : fields.get("login");
+    // full_name is "owner/repo"
+    String ownerName = fullName != null && fullName.indexOf('/') > 0
+        ? fullName.substring(0, fullName.indexOf('/')) : loginName;
+
+    builder.append("Full Name: " + fullName + "<br>");
+    builder.append("Repository Name: " + repoName + "<br>");
+    builder.append("ID: " + (id != null ? id : 0) + "<br>");
+    builder.append("Login Name: " + loginName + "<br>");
+    builder.append("Owner Name: " + ownerName + "<br>");
+    return html("200 OK", builder);
+  }
 
-        }
+  private HttpResponse kiss(HttpRequest request) {
+    //<h1 style="color:blue">hello hunter :), click <a href="https://i.pinimg.com/originals/10/04/43/1004430dee8038f3bdfa86cde175057f.jpg">this</a> </h1>
+    //<script> alert("I AM UTTERLY INSANE!!!");</script>
+    //<img src="https://media.tenor.com/c3GlOSMe6FEAAAAC/ed-edd-n-eddy.gif">
+    String imageHtml = "<img src=\"https://i.pinimg.com/originals/10/04/43/1004430dee8038f3bdfa86cde175057f.jpg\">";
+    StringBuilder builder = new StringBuilder();
+    builder.append("<html><body>" + imageHtml);
+    return html("200 OK", builder);
+  }
 
-        // Output
-        response = builder.toString().getBytes();
-      }
-    } catch (IOException e) {
-      e.printStackTrace();
-      response = ("<html>ERROR: " + e.getMessage() + "</html>").getBytes();
+  /**
+   * "/circle?howMany=20&radius=20" draws shrinking half circles
+   */
+  private HttpResponse circle(HttpRequest request) {
+    return shapes(ShapeBody.Shape.CIRCLE, request, "radius");
+  }
+
+  /**
+   * Reads howMany and the size of the first shape from the query and
+   * streams the shapes. Both are required, like the inputs of multiply; a
+   * missing, non-integer or negative value gets 400.
+   * @param sizeName query parameter with the size of the first shape
+   */
+  private HttpResponse shapes(ShapeBody.Shape shape, HttpRequest request, String sizeName) {
+    Map<String, String> query_pairs;
+    try {
+      query_pairs = splitQuery(request.query);
+    } catch (UnsupportedEncodingException | IllegalArgumentException
+        | StringIndexOutOfBoundsException e) {
+      return errorResponse("400 Bad Request",
+          "Invalid query, expected howMany=...&" + sizeName + "=...");
     }
 
-    return response;
+    String howMany = query_pairs.get("howMany");
+    String size = query_pairs.get(sizeName);
+    if (howMany == null || size == null) {
+      return errorResponse("400 Bad Request", "Must have two inputs: howMany and " + sizeName
+          + ".");
+    }
+
+    int count;
+    int first;
+    try {
+      count = Integer.parseInt(howMany.trim());
+    } catch (NumberFormatException e) {
+      return errorResponse("400 Bad Request", "Invalid input. howMany must be an integer.");
+    }
+    try {
+      first = Integer.parseInt(size.trim());
+    } catch (NumberFormatException e) {
+      return errorResponse("400 Bad Request", "Invalid input. " + sizeName
+          + " must be an integer.");
+    }
+    if (count < 0 || first < 0) {
+      return errorResponse("400 Bad Request", "Invalid input. howMany and " + sizeName
+          + " must not be negative.");
+    }
+
+    // rendered row by row while it is sent, see ShapeBody
+    return shapes(shape, count, first);
+  }
+
+  /**
+   * Streams howMany shapes, or answers 400 if the page would be larger than
+   * fun.maxShapeBytes. A page that takes longer than fun.maxShapeMillis to
+   * render is cut off and its connection closed.
+   */
+  private HttpResponse shapes(ShapeBody.Shape shape, int howMany, int size) {
+    ShapeBody body = ShapeBody.of(shape, howMany, size, config.maxShapeBytes,
+        config.maxShapeMillis);
+    if (body == null) {
+      return errorResponse("400 Bad Request", "Too many or too large shapes, the page would be"
+          + " over " + config.maxShapeBytes + " bytes");
+    }
+    return HttpResponse.stream("200 OK", "text/html; charset=utf-8", body);
+  }
+
+  /**
+   * "/triangle?howMany=num&length=num" draws shrinking triangles
+   */
+  private HttpResponse triangle(HttpRequest request) {
+    return shapes(ShapeBody.Shape.TRIANGLE, request, "length");
+  }
+
+  /**
+   * Small html error response
+   */
+  static HttpResponse errorResponse(String status, String message) {
+    return HttpResponse.of(status, "text/html; charset=utf-8",
+        ("<html>" + message + "</html>").getBytes(StandardCharsets.UTF_8));
   }
 
   /**
    * Method to read in a query and split it up correctly
-   * @param query parameters on path
+   * @param query parameters on path, the part after the "?" (may be null)
    * @return Map of all parameters and their specific values
    * @throws UnsupportedEncodingException If the URLs aren't encoded with UTF-8
    */
   public static Map<String, String> splitQuery(String query) throws UnsupportedEncodingException {
     Map<String, String> query_pairs = new LinkedHashMap<String, String>();
+    if (query == null || query.isEmpty()) {
+      return query_pairs; // no "?" or nothing after it
+    }
     // "q=hello+world%2Fme&bob=5"
     String[] pairs = query.split("&");
     // ["q=hello+world%2Fme", "bob=5"]
@@ -477,89 +1101,51 @@ class WebServer {
   }
 
   /**
-   * Read bytes from a file and return them in the byte array. We read in blocks
-   * of 512 bytes for efficiency.
+   * Read bytes from a file and return them in the byte array. The array is
+   * made the size of the file and filled in blocks through a pooled direct
+   * buffer, so nothing else is allocated per file.
    */
   public static byte[] readFileInBytes(File f) throws IOException {
-
-    FileInputStream file = new FileInputStream(f);
-    ByteArrayOutputStream data = new ByteArrayOutputStream(file.available());
-
-    byte buffer[] = new byte[512];
-    int numRead = file.read(buffer);
-    while (numRead > 0) {
-      data.write(buffer, 0, numRead);
-      numRead = file.read(buffer);
-    }
-    file.close();
-
-    byte[] result = data.toByteArray();
-    data.close();
-
-    return result;
-  }
-  //<img src="https://media.tenor.com/c3GlOSMe6FEAAAAC/ed-edd-n-eddy.gif">
-  /**
-   *
-   * a method to make a web request. Note that this method will block execution
-   * for up to 20 seconds while the request is being satisfied. Better to use a
-   * non-blocking request.
-   * 
-   * @param aUrl the String indicating the query url for the OMDb api search
-   * @return the String result of the http request.
-   *
-   **/
-  public String fetchURL(String aUrl) {
-    StringBuilder sb = new StringBuilder();
-    URLConnection conn = null;
-    InputStreamReader in = null;
-    try {
-      URL url = new URL(aUrl);
-      conn = url.openConnection();
-      if (conn != null)
-        conn.setReadTimeout(20 * 1000); // timeout in 20 seconds
-      if (conn != null && conn.getInputStream() != null) {
-        in = new InputStreamReader(conn.getInputStream(), Charset.defaultCharset());
-        BufferedReader br = new BufferedReader(in);
-        if (br != null) {
-          int ch;
-          // read the next character until end of reader
-          while ((ch = br.read()) != -1) {
-            sb.append((char) ch);
+    try (FileChannel file = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+      long size = file.size();
+      if (size > Integer.MAX_VALUE - 8) {
+        throw new IOException(f + " is too large to read into memory");
+      }
+      byte[] result = new byte[(int) size];
+      ByteBuffer buffer = BufferPool.acquire(FILE_READ_BYTES);
+      try {
+        int length = 0;
+        while (file.read(buffer) >= 0) {
+          buffer.flip();
+          if (length + buffer.remaining() > result.length) {
+            // the file grew since it was measured
+            result = Arrays.copyOf(result, Math.max(length + buffer.remaining(),
+                (int) Math.min(Integer.MAX_VALUE - 8, result.length * 2L)));
           }
-          br.close();
+          int n = buffer.remaining();
+          buffer.get(result, length, n);
+          length += n;
+          buffer.clear();
         }
+        return length == result.length ? result : Arrays.copyOf(result, length);
+      } finally {
+        BufferPool.release(buffer);
       }
-      in.close();
-    } catch (Exception ex) {
-      System.out.println("Exception in url request:" + ex.getMessage());
     }
-    return sb.toString();
   }
-
+  //<img src="https://media.tenor.com/c3GlOSMe6FEAAAAC/ed-edd-n-eddy.gif">
+  /**
+   * Draws a circle of stars, one row per line ending in &lt;br&gt;
+   */
   public static String drawCircle(int radius) {
-    StringBuilder sb = new StringBuilder();
-    for (int i = -radius; i <= radius; i++) {
-      for (int j = -radius; j <= radius; j++) {
-        if (i * i + j * j <= radius * radius) {
-          sb.append("*");
-        } else {
-          sb.append(" ");
-        }
-      }
-      sb.append("<br>");
-    }
-    return sb.toString();
+    return ShapeBody.draw(ShapeBody.Shape.CIRCLE, radius);
   }
+
+  /**
+   * Draws a right triangle of stars, one row per line ending in &lt;br&gt;
+   */
   public static String drawTriangle(int sideLength) {
-    StringBuilder sb = new StringBuilder();
-    for (int i = 0; i < sideLength; i++) {
-      for (int j = 0; j <= i; j++) {
-        sb.append("*");
-      }
-      sb.append("<br>");
-    }
-    return sb.toString();
+    return ShapeBody.draw(ShapeBody.Shape.TRIANGLE, sideLength);
   }
 
 }
@@ -0,0 +1,186 @@
+package httpServer;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+
+/**
+ * Non-blocking version of the simple web server. A single selector thread
+ * reads each request until the blank line that ends the header, answers it
+ * with the same logic as the blocking server and writes the bytes whenever
+ * the socket can take them. Start it with: WebServer <port> nio
+ */
+class NioWebServer {
+
+    /** largest request header we wait for before giving up */
+    private static final int MAX_HEADER = 16 * 1024;
+
+    private final WebServer responder = new WebServer();
+
+    public NioWebServer(int port) {
+
+        try (Selector selector = Selector.open();
+             ServerSocketChannel server = ServerSocketChannel.open()) {
+
+            server.bind(new InetSocketAddress(port));
+            server.configureBlocking(false);
+            server.register(selector, SelectionKey.OP_ACCEPT);
+
+            while (true) {
+                selector.select();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    try {
+                        if (key.isAcceptable()) {
+                            SocketChannel client = server.accept();
+                            if (client != null) {
+                                client.configureBlocking(false);
+                                client.register(selector, SelectionKey.OP_READ,
+                                                ByteBuffer.allocate(1024));
+                            }
+                        }
+                        else if (key.isReadable()) {
+                            read(key);
+                        }
+                        else if (key.isWritable()) {
+                            write(key);
+                        }
+                    }
+                    catch (IOException e) {
+                        close(key);
+                    }
+                }
+            }
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /** Collects request bytes until the header is complete, then
+        builds the response and switches the key to writing.
+    */
+    private void read(SelectionKey key) throws IOException {
+        SocketChannel client = (SocketChannel) key.channel();
+        ByteBuffer request = (ByteBuffer) key.attachment();
+
+        if (!request.hasRemaining()) {
+            if (request.capacity() >= MAX_HEADER) {
+                throw new IOException("request header too large");
+            }
+            ByteBuffer bigger = ByteBuffer.allocate(request.capacity() * 2);
+            request.flip();
+            bigger.put(request);
+            request = bigger;
+            key.attach(request);
+        }
+
+        if (client.read(request) == -1) {
+            throw new EOFException();
+        }
+        if (!headerComplete(request)) {
+            return;
+        }
+
+        WebServer.Request parsed = responder.readRequest(
+            new ByteArrayInputStream(request.array(), 0, request.position()));
+        File file = (parsed.filename == null) ? null : new File(parsed.filename);
+        if (file != null && file.isFile()) {
+            FileChannel channel = FileChannel.open(file.toPath(),
+                                                   StandardOpenOption.READ);
+            long size = channel.size();
+            if (WebServer.notModified(parsed, file, size)) {
+                // the client's copy is current, only the header goes out
+                channel.close();
+                key.attach(ByteBuffer.wrap(WebServer.fileHeader(file, size, true)));
+            } else {
+                key.attach(new Transfer(
+                    ByteBuffer.wrap(WebServer.fileHeader(file, size, false)),
+                    channel, size));
+            }
+        } else {
+            key.attach(ByteBuffer.wrap(
+                responder.createErrorMessage(parsed.filename)));
+        }
+        key.interestOps(SelectionKey.OP_WRITE);
+    }
+
+    /** Writes as much of the response as the socket takes and closes
+        the connection once everything is sent. Files are handed to
+        the socket with transferTo, they never pass through the heap.
+    */
+    private void write(SelectionKey key) throws IOException {
+        SocketChannel client = (SocketChannel) key.channel();
+        boolean done;
+
+        if (key.attachment() instanceof Transfer) {
+            Transfer transfer = (Transfer) key.attachment();
+            if (transfer.header.hasRemaining()) {
+                client.write(transfer.header);
+                if (transfer.header.hasRemaining()) {
+                    return;
+                }
+            }
+            long sent = transfer.file.transferTo(transfer.position,
+                            transfer.size - transfer.position, client);
+            transfer.position += sent;
+            done = transfer.position >= transfer.size
+                || (sent == 0 && transfer.position >= transfer.file.size());
+        } else {
+            ByteBuffer response = (ByteBuffer) key.attachment();
+            client.write(response);
+            done = !response.hasRemaining();
+        }
+
+        if (done) {
+            close(key);
+        }
+    }
+
+    /** Closes the connection and the file being sent, if any */
+    private static void close(SelectionKey key) {
+        key.cancel();
+        try {
+            if (key.attachment() instanceof Transfer) {
+                ((Transfer) key.attachment()).file.close();
+            }
+            key.channel().close();
+        }
+        catch (IOException e) {
+            // nothing more we can do for this client
+        }
+    }
+
+    /** A file being sent after its header, and how far we got */
+    private static class Transfer {
+        final ByteBuffer header;
+        final FileChannel file;
+        final long size;
+        long position;
+
+        Transfer(ByteBuffer header, FileChannel file, long size) {
+            this.header = header;
+            this.file = file;
+            this.size = size;
+        }
+    }
+
+    /** True once the buffer holds the blank line ending the header */
+    private static boolean headerComplete(ByteBuffer buf) {
+        byte[] data = buf.array();
+        int end = buf.position();
+        for (int i = 1; i < end; i++) {
+            if (data[i] == '\n'
+                && (data[i-1] == '\n'
+                    || (i >= 3 && data[i-1] == '\r' && data[i-2] == '\n'))) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
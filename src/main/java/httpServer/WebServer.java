@@ -2,84 +2,146 @@ package httpServer;
 
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Arrays;
+import java.util.Locale;
 
 class WebServer {
 
+    /** Last-Modified format, always two digit days and GMT */
+    private static final DateTimeFormatter HTTP_DATE =
+        DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US)
+                         .withZone(ZoneOffset.UTC);
+
     // 
     public static void main(String args[]) {
-        if (args.length != 1) {
-            System.out.println("Usage: WebServer <port>");
+        if (args.length < 1 || args.length > 2) {
+            System.out.println("Usage: WebServer <port> [blocking|nio]");
             System.exit(1);
         }
-        
-        WebServer server = new WebServer(Integer.parseInt(args[0]));
+
+        int port = Integer.parseInt(args[0]);
+        if (args.length == 2 && args[1].equalsIgnoreCase("nio")) {
+            new NioWebServer(port);
+        } else {
+            WebServer server = new WebServer(port);
+        }
     }
 
     public WebServer(int port) {
         
-        ServerSocket    server = null;
-        Socket          sock = null;
-        InputStream     in = null;
-        OutputStream    out = null;
+        ServerSocketChannel server = null;
 
         //*** Open the server socket on the specified port
         //*** Loop forever accepting socket requests
-        //***   Get the response bytes from createResponse
-        //***   Write the bytes to the socket's output stream
+        //***   Send the response with sendResponse, which streams
+        //***   files straight to the socket's channel
         //***   close streams and socket appropriatels
+        //***   a client that fails (e.g. resets mid download) only
+        //***   loses its own connection, the loop goes on
+        try {
+            server = ServerSocketChannel.open();
+            server.bind(new InetSocketAddress(port));
+            while (true) {
+                SocketChannel accepted = server.accept();
+                try (SocketChannel sock = accepted;
+                     InputStream in = sock.socket().getInputStream()) {
+                    sendResponse(in, sock);
+                }
+                catch (IOException | RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+        }
+        finally {
+            if (server != null) {
+                try {
+                    server.close();
+                }
+                catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
     }
 
 
-    public byte[] createResponse(InputStream inStream) {
-
-        byte[] response = null;
-        BufferedReader in = null;
-
-        try {
-
-            // Read from socket's input stream.  Must use an
-            // InputStreamReader to bridge from streams to a reader
-            in = new BufferedReader(
-                        new InputStreamReader(inStream, "UTF-8"));
+    /** Only builds responses, does not listen on a port.
+        Used by NioWebServer to share createResponse.
+    */
+    WebServer() {
+    }
 
-            // Get header and save the filename from the GET line:
-            //    example GET format: GET /index.html HTTP/1.1
+    /** Reads the request and writes the response to the channel.
+        Every response starts with a status line and headers, files get
+        an ETag and Last-Modified so a client that already has the
+        current version is answered with a 304 and no body.
+        Files are not loaded into memory, FileChannel.transferTo
+        hands them to the kernel which copies them straight from
+        the page cache to the socket (sendfile). Heap use is the
+        same for a 1 KB file and a 1 GB file.
+    */
+    public void sendResponse(InputStream inStream, WritableByteChannel out)
+        throws IOException {
 
-            String filename = null;
+        Request request = readRequest(inStream);
+        File file = (request.filename == null) ? null : new File(request.filename);
 
-            boolean done = false;
-            while (!done) {
-                String line = in.readLine();
+        if (file == null || !file.isFile()) {
+            // the error pages are small, build them as before
+            write(out, createErrorMessage(request.filename));
+            return;
+        }
 
-System.out.println("Received: " + line);
-                if (line == null || line.equals(""))
-                    done = true;
+        try (FileChannel channel = FileChannel.open(file.toPath(),
+                                                     StandardOpenOption.READ)) {
+            long position = 0;
+            long size = channel.size();
+            boolean current = notModified(request, file, size);
+            write(out, fileHeader(file, size, current));
+            if (current) {
+                return;   // the client's copy is up to date, no body
+            }
+            while (position < size) {
+                long sent = channel.transferTo(position, size - position, out);
+                if (sent <= 0) {
+                    break;   // file got shorter while sending
+                }
+                position += sent;
+            }
+        }
+    }
 
-                else if (line.startsWith("GET")) {
-                    int firstSpace = line.indexOf(" ");
-                    int secondSpace = line.indexOf(" ", firstSpace+1);
+    private static void write(WritableByteChannel out, byte[] bytes)
+        throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(bytes);
+        while (buf.hasRemaining()) {
+            out.write(buf);
+        }
+    }
 
-                    // skipt the leading / (our docroot is the current dir)
-                    filename = line.substring(firstSpace+2, secondSpace);
-                }
+    public byte[] createResponse(InputStream inStream) {
 
-            }
-System.out.println("FINISHED\n");
+        byte[] response = null;
 
+        try {
+            String filename = readFilename(inStream);
 
             // Generate an appropriate response to the user
-            if (filename == null) {
-                response =
-                    "<html>Illegal request: no GET</html>".getBytes();
+            if (filename == null || !new File(filename).exists()) {
+                response = createErrorResponse(filename);
             } else {
-            
-                File file = new File(filename);
-                if (!file.exists()) {
-                    response = ("<html>File not found: " +
-                                filename + "</html>").getBytes();
-                } else {
-                    response = readFileInBytes(file);
-                }
+                response = readFileInBytes(new File(filename));
             }
         }
         catch (IOException e) {
@@ -91,6 +153,150 @@ System.out.println("FINISHED\n");
         return response;
     }
 
+    /** Response for a request without GET line or a missing file */
+    byte[] createErrorResponse(String filename) {
+        if (filename == null) {
+            return "<html>Illegal request: no GET</html>".getBytes();
+        }
+        return ("<html>File not found: " +
+                filename + "</html>").getBytes();
+    }
+
+    /** createErrorResponse with status line and headers in front */
+    byte[] createErrorMessage(String filename) {
+        byte[] body = createErrorResponse(filename);
+        byte[] header = ("HTTP/1.1 " + (filename == null ? "400 Bad Request"
+                                                       : "404 Not Found") + "\r\n"
+                         + "Content-Type: text/html\r\n"
+                         + "Content-Length: " + body.length + "\r\n"
+                         + "Connection: close\r\n\r\n").getBytes();
+        byte[] message = Arrays.copyOf(header, header.length + body.length);
+        System.arraycopy(body, 0, message, header.length, body.length);
+        return message;
+    }
+
+    /** Strong ETag of the current version of a file. It is made from
+        the modification time and the size, so it changes whenever the
+        file does without reading the file.
+    */
+    static String etag(File file, long size) {
+        return "\"" + Long.toHexString(file.lastModified()) + "-"
+            + Long.toHexString(size) + "\"";
+    }
+
+    /** True if the client sent validators that match the file, so a
+        304 without a body is enough. If-None-Match wins over
+        If-Modified-Since when both are sent.
+    */
+    static boolean notModified(Request request, File file, long size) {
+        if (request.ifNoneMatch != null) {
+            String etag = etag(file, size);
+            for (String tag : request.ifNoneMatch.split(",")) {
+                tag = tag.trim();
+                if (tag.startsWith("W/")) {
+                    tag = tag.substring(2);
+                }
+                if (tag.equals("*") || tag.equals(etag)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        if (request.ifModifiedSince != null) {
+            try {
+                long since = ZonedDateTime.parse(request.ifModifiedSince.trim(),
+                    DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+                // HTTP dates have whole seconds
+                return file.lastModified() / 1000 <= since / 1000;
+            }
+            catch (DateTimeParseException e) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    /** Status line and headers for a file: 200 with the length, or 304
+        if the client's copy is current. Both carry ETag and
+        Last-Modified.
+    */
+    static byte[] fileHeader(File file, long size, boolean notModified) {
+        StringBuilder header = new StringBuilder();
+        if (notModified) {
+            header.append("HTTP/1.1 304 Not Modified\r\n");
+        } else {
+            header.append("HTTP/1.1 200 OK\r\n");
+            String type = URLConnection.guessContentTypeFromName(file.getName());
+            if (type != null) {
+                header.append("Content-Type: ").append(type).append("\r\n");
+            }
+            header.append("Content-Length: ").append(size).append("\r\n");
+        }
+        header.append("ETag: ").append(etag(file, size)).append("\r\n");
+        header.append("Last-Modified: ")
+              .append(HTTP_DATE.format(Instant.ofEpochMilli(file.lastModified())))
+              .append("\r\n");
+        header.append("Connection: close\r\n\r\n");
+        return header.toString().getBytes();
+    }
+
+    /** The parts of a request header we use */
+    static class Request {
+        /** file from the GET line, null if there was none */
+        String filename;
+        /** validators of the client's cached copy, null if not sent */
+        String ifNoneMatch;
+        String ifModifiedSince;
+    }
+
+    /** Reads the request header and returns the filename from the GET
+        line, or null if there was no GET line.
+    */
+    String readFilename(InputStream inStream) throws IOException {
+        return readRequest(inStream).filename;
+    }
+
+    /** Reads the request header: the filename from the GET line and the
+        conditional headers.
+    */
+    Request readRequest(InputStream inStream) throws IOException {
+
+        // Read from socket's input stream.  Must use an
+        // InputStreamReader to bridge from streams to a reader
+        BufferedReader in = new BufferedReader(
+                    new InputStreamReader(inStream, "UTF-8"));
+
+        // Get header and save the filename from the GET line:
+        //    example GET format: GET /index.html HTTP/1.1
+
+        Request request = new Request();
+
+        boolean done = false;
+        while (!done) {
+            String line = in.readLine();
+
+            if (line == null || line.equals(""))
+                done = true;
+
+            else if (line.startsWith("GET")) {
+                int firstSpace = line.indexOf(" ");
+                int secondSpace = line.indexOf(" ", firstSpace+1);
+
+                // skipt the leading / (our docroot is the current dir)
+                request.filename = line.substring(firstSpace+2, secondSpace);
+            }
+            else if (line.regionMatches(true, 0, "If-None-Match:", 0, 14)) {
+                request.ifNoneMatch = line.substring(14).trim();
+            }
+            else if (line.regionMatches(true, 0, "If-Modified-Since:", 0, 18)) {
+                request.ifModifiedSince = line.substring(18).trim();
+            }
+
+        }
+
+        return request;
+    }
+
     /** Read bytes from a file and return them in the byte array.
         We read in blocks of 512 bytes for efficiency.
     */
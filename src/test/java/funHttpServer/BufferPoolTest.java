@@ -0,0 +1,161 @@
+package funHttpServer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * The pool is shared by the whole process, so these tests look at how its
+ * counters change and run on threads of their own, whose caches start empty.
+ */
+class BufferPoolTest {
+
+  private static final int LARGEST = BufferPool.SIZES.length - 1;
+
+  @AfterEach
+  void defaults() {
+    BufferPool.configure(BufferPool.DEFAULT_POOL_BYTES, false);
+  }
+
+  /** runs a task on a new platform thread and waits for it */
+  private static <T> T onNewThread(Callable<T> task) throws Exception {
+    FutureTask<T> future = new FutureTask<>(task);
+    Thread thread = new Thread(future);
+    thread.start();
+    thread.join();
+    try {
+      return future.get();
+    } catch (ExecutionException e) {
+      throw (Exception) e.getCause();
+    }
+  }
+
+  @Test
+  void sizesAreRoundedUp() throws Exception {
+    onNewThread(() -> {
+      assertEquals(1024, BufferPool.acquire(1).capacity());
+      assertEquals(1024, BufferPool.acquire(1024).capacity());
+      assertEquals(2048, BufferPool.acquire(1025).capacity());
+      assertEquals(64 * 1024, BufferPool.acquire(40_000).capacity());
+      return null;
+    });
+  }
+
+  @Test
+  void largerBuffersAreNotPooled() throws Exception {
+    onNewThread(() -> {
+      long unpooled = BufferPool.unpooled();
+      int size = BufferPool.SIZES[LARGEST] + 1;
+      ByteBuffer buffer = BufferPool.acquire(size);
+
+      assertEquals(size, buffer.capacity());
+      assertTrue(buffer.isDirect());
+      assertEquals(unpooled + 1, BufferPool.unpooled());
+
+      BufferPool.release(buffer);
+      assertNotSame(buffer, BufferPool.acquire(size));
+      return null;
+    });
+  }
+
+  @Test
+  void releasedBufferIsHandedOutAgainCleared() throws Exception {
+    onNewThread(() -> {
+      long inUse = BufferPool.inUse(0);
+      ByteBuffer buffer = BufferPool.acquire(100);
+      assertTrue(buffer.isDirect());
+      assertEquals(inUse + 1, BufferPool.inUse(0));
+      buffer.put(new byte[10]).flip();
+
+      BufferPool.release(buffer);
+      assertEquals(inUse, BufferPool.inUse(0));
+
+      long allocated = BufferPool.allocated(0);
+      ByteBuffer again = BufferPool.acquire(500);
+      assertSame(buffer, again);
+      assertEquals(0, again.position());
+      assertEquals(again.capacity(), again.limit());
+      assertEquals(allocated, BufferPool.allocated(0));
+      BufferPool.release(again);
+      return null;
+    });
+  }
+
+  @Test
+  void threadCacheOverflowsToTheSharedList() throws Exception {
+    // a thread keeps a single buffer of the largest size for itself
+    List<ByteBuffer> shared = onNewThread(() -> {
+      int free = BufferPool.free(LARGEST);
+      List<ByteBuffer> buffers = new ArrayList<>();
+      for (int i = 0; i < 3; i++) {
+        buffers.add(BufferPool.acquire(BufferPool.SIZES[LARGEST]));
+      }
+      for (ByteBuffer buffer : buffers) {
+        BufferPool.release(buffer);
+      }
+      assertEquals(free + 2, BufferPool.free(LARGEST));
+      return buffers.subList(1, 3);
+    });
+
+    List<ByteBuffer> taken = onNewThread(() -> List.of(
+        BufferPool.acquire(BufferPool.SIZES[LARGEST]),
+        BufferPool.acquire(BufferPool.SIZES[LARGEST])));
+    for (ByteBuffer buffer : taken) {
+      assertTrue(shared.stream().anyMatch(b -> b == buffer));
+    }
+  }
+
+  @Test
+  void fullPoolDropsReleasedBuffers() throws Exception {
+    BufferPool.configure(0, false);
+    onNewThread(() -> {
+      long dropped = BufferPool.dropped(LARGEST);
+      ByteBuffer first = BufferPool.acquire(BufferPool.SIZES[LARGEST]);
+      ByteBuffer second = BufferPool.acquire(BufferPool.SIZES[LARGEST]);
+      BufferPool.release(first);
+      BufferPool.release(second);
+
+      assertEquals(dropped + 1, BufferPool.dropped(LARGEST));
+      return null;
+    });
+  }
+
+  @Test
+  void foreignBuffersAreIgnored() throws Exception {
+    onNewThread(() -> {
+      BufferPool.release(null);
+      ByteBuffer heap = ByteBuffer.allocate(1024);
+      BufferPool.release(heap);
+      assertNotSame(heap, BufferPool.acquire(1024));
+      return null;
+    });
+  }
+
+  @Test
+  void bufferReleasedTwiceIsNotPooledTwice() throws Exception {
+    BufferPool.configure(BufferPool.DEFAULT_POOL_BYTES, true);
+    onNewThread(() -> {
+      ByteBuffer buffer = BufferPool.acquire(2048);
+      BufferPool.release(buffer);
+      // reported on stderr
+      BufferPool.release(buffer);
+
+      ByteBuffer first = BufferPool.acquire(2048);
+      ByteBuffer second = BufferPool.acquire(2048);
+      assertNotSame(first, second);
+      BufferPool.release(first);
+      BufferPool.release(second);
+      return null;
+    });
+  }
+}
@@ -0,0 +1,103 @@
+package funHttpServer;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import org.junit.jupiter.api.Test;
+
+class ByteRangesTest {
+
+  @Test
+  void singleRanges() {
+    assertArrayEquals(new long[] {0, 100}, ByteRanges.parse("bytes=0-99", 1000));
+    assertArrayEquals(new long[] {500, 1000}, ByteRanges.parse("bytes=500-", 1000));
+    assertArrayEquals(new long[] {900, 1000}, ByteRanges.parse("bytes=-100", 1000));
+    assertArrayEquals(new long[] {0, 1}, ByteRanges.parse("bytes=0-0", 1000));
+  }
+
+  @Test
+  void rangesAreClampedToTheFile() {
+    assertArrayEquals(new long[] {900, 1000}, ByteRanges.parse("bytes=900-5000", 1000));
+    assertArrayEquals(new long[] {0, 1000}, ByteRanges.parse("bytes=-5000", 1000));
+  }
+
+  @Test
+  void unitAndSpacesAreLenient() {
+    assertArrayEquals(new long[] {0, 10, 20, 30},
+        ByteRanges.parse(" Bytes=0-9, 20 - 29 ", 1000));
+  }
+
+  @Test
+  void rangesAreSortedAndMerged() {
+    assertArrayEquals(new long[] {0, 10, 200, 300},
+        ByteRanges.parse("bytes=200-299,0-9", 1000));
+    // overlapping
+    assertArrayEquals(new long[] {0, 150}, ByteRanges.parse("bytes=0-99,50-149", 1000));
+    // touching
+    assertArrayEquals(new long[] {0, 200}, ByteRanges.parse("bytes=100-199,0-99", 1000));
+    // contained
+    assertArrayEquals(new long[] {0, 1000}, ByteRanges.parse("bytes=0-,10-19,-5", 1000));
+  }
+
+  @Test
+  void unsatisfiableRangesAreEmpty() {
+    assertArrayEquals(new long[0], ByteRanges.parse("bytes=1000-", 1000));
+    assertArrayEquals(new long[0], ByteRanges.parse("bytes=2000-2999", 1000));
+    assertArrayEquals(new long[0], ByteRanges.parse("bytes=-0", 1000));
+    assertArrayEquals(new long[0], ByteRanges.parse("bytes=0-", 0));
+  }
+
+  @Test
+  void unsatisfiablePartsAreDropped() {
+    assertArrayEquals(new long[] {0, 10}, ByteRanges.parse("bytes=0-9,5000-", 1000));
+  }
+
+  @Test
+  void malformedHeadersAreIgnored() {
+    assertNull(ByteRanges.parse("items=0-9", 1000));
+    assertNull(ByteRanges.parse("bytes=", 1000));
+    assertNull(ByteRanges.parse("bytes=10", 1000));
+    assertNull(ByteRanges.parse("bytes=9-0", 1000));
+    assertNull(ByteRanges.parse("bytes=a-9", 1000));
+    assertNull(ByteRanges.parse("bytes=0-9,x", 1000));
+    assertNull(ByteRanges.parse("bytes=--5", 1000));
+  }
+
+  @Test
+  void tooManyRangesAreIgnored() {
+    StringBuilder header = new StringBuilder("bytes=0-0");
+    for (int i = 1; i < ByteRanges.MAX_RANGES; i++) {
+      header.append(',').append(2 * i).append('-').append(2 * i);
+    }
+    assertEquals(2 * ByteRanges.MAX_RANGES, ByteRanges.parse(header.toString(), 1000).length);
+
+    header.append(",100-100");
+    assertNull(ByteRanges.parse(header.toString(), 1000));
+  }
+
+  @Test
+  void contentRange() {
+    assertEquals("bytes 0-99/1234", ByteRanges.contentRange(0, 100, 1234));
+    assertEquals("bytes 1233-1233/1234", ByteRanges.contentRange(1233, 1234, 1234));
+  }
+
+  @Test
+  void separatorsFrameEachRange() {
+    ByteBuffer[] separators = ByteRanges.separators(new long[] {0, 10, 20, 30}, 100,
+        "text/plain", "b0undary");
+
+    assertEquals(3, separators.length);
+    assertEquals("--b0undary\r\nContent-Type: text/plain\r\n"
+        + "Content-Range: bytes 0-9/100\r\n\r\n", text(separators[0]));
+    assertEquals("\r\n--b0undary\r\nContent-Type: text/plain\r\n"
+        + "Content-Range: bytes 20-29/100\r\n\r\n", text(separators[1]));
+    assertEquals("\r\n--b0undary--\r\n", text(separators[2]));
+  }
+
+  private static String text(ByteBuffer buffer) {
+    return StandardCharsets.US_ASCII.decode(buffer.duplicate()).toString();
+  }
+}
@@ -0,0 +1,142 @@
+package funHttpServer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class HpackTest {
+
+  private final Hpack.Encoder encoder = new Hpack.Encoder();
+  private final Hpack.Decoder decoder = new Hpack.Decoder();
+
+  private List<String> decode(byte[] block) throws IOException {
+    List<String> fields = new ArrayList<>();
+    decoder.decode(block, 0, block.length, (name, value) -> fields.add(name + ": " + value));
+    return fields;
+  }
+
+  private static byte[] hex(String hex) {
+    hex = hex.replace(" ", "");
+    byte[] data = new byte[hex.length() / 2];
+    for (int i = 0; i < data.length; i++) {
+      data[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+    }
+    return data;
+  }
+
+  /** one response head: the status and a few fields, the repeating ones indexed */
+  private byte[] response(String status, String length) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    encoder.status(out, status);
+    encoder.field(out, "content-type", "text/html; charset=utf-8", true);
+    encoder.field(out, "vary", "Accept-Encoding", true);
+    encoder.field(out, "content-length", length, false);
+    return out.toByteArray();
+  }
+
+  @Test
+  void responsesRoundTrip() throws IOException {
+    byte[] first = response("200 OK", "1234");
+    byte[] second = response("200 OK", "99");
+    byte[] third = response("404 Not Found", "0");
+
+    List<String> expected = List.of(":status: 200", "content-type: text/html; charset=utf-8",
+        "vary: Accept-Encoding", "content-length: 1234");
+    assertEquals(expected, decode(first));
+    assertEquals(List.of(":status: 200", "content-type: text/html; charset=utf-8",
+        "vary: Accept-Encoding", "content-length: 99"), decode(second));
+    assertEquals(List.of(":status: 404", "content-type: text/html; charset=utf-8",
+        "vary: Accept-Encoding", "content-length: 0"), decode(third));
+
+    // the repeated fields come from the dynamic table the second time
+    assertTrue(second.length < first.length / 3, second.length + " vs " + first.length);
+  }
+
+  @Test
+  void everyByteValueRoundTrips() throws IOException {
+    StringBuilder value = new StringBuilder();
+    for (char c = 0; c < 256; c++) {
+      value.append(c);
+    }
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    String text = "mostly lower case text that Huffman codes well";
+    encoder.field(out, "x-all", value.toString(), true);
+    encoder.field(out, "x-text", text, false);
+    encoder.field(out, "x-all", value.toString(), true);
+
+    assertEquals(List.of("x-all: " + value, "x-text: " + text, "x-all: " + value),
+        decode(out.toByteArray()));
+  }
+
+  @Test
+  void longValuesUseMultiByteIntegers() throws IOException {
+    String value = "v".repeat(5000);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    encoder.field(out, "x-long", value, false);
+
+    assertEquals(List.of("x-long: " + value), decode(out.toByteArray()));
+  }
+
+  @Test
+  void smallerTableIsAnnouncedAndFollowed() throws IOException {
+    encoder.maxTableSize(64);
+    byte[] first = response("200 OK", "1");
+    byte[] second = response("200 OK", "2");
+
+    // 0x20 | 31, then 64 - 31 = 33: the size update at the start of the first block only
+    assertEquals(0x3f, first[0] & 0xff);
+    assertEquals(33, first[1]);
+    assertTrue((second[0] & 0xe0) != 0x20);
+    assertEquals(4, decode(first).size());
+    assertEquals(List.of(":status: 200", "content-type: text/html; charset=utf-8",
+        "vary: Accept-Encoding", "content-length: 2"), decode(second));
+  }
+
+  @Test
+  void decodesRfcExampleWithoutHuffman() throws IOException {
+    // RFC 7541 C.3.1
+    assertEquals(List.of(":method: GET", ":scheme: http", ":path: /",
+        ":authority: www.example.com"),
+        decode(hex("8286 8441 0f77 7777 2e65 7861 6d70 6c65 2e63 6f6d")));
+    // C.3.2, :authority now from the dynamic table
+    assertEquals(List.of(":method: GET", ":scheme: http", ":path: /",
+        ":authority: www.example.com", "cache-control: no-cache"),
+        decode(hex("8286 84be 5808 6e6f 2d63 6163 6865")));
+  }
+
+  @Test
+  void decodesRfcExampleWithHuffman() throws IOException {
+    // RFC 7541 C.4.1 and C.4.2
+    assertEquals(List.of(":method: GET", ":scheme: http", ":path: /",
+        ":authority: www.example.com"),
+        decode(hex("8286 8441 8cf1 e3c2 e5f2 3a6b a0ab 90f4 ff")));
+    assertEquals(List.of(":method: GET", ":scheme: http", ":path: /",
+        ":authority: www.example.com", "cache-control: no-cache"),
+        decode(hex("8286 84be 5886 a8eb 1064 9cbf")));
+  }
+
+  @Test
+  void malformedBlocksAreCompressionErrors() {
+    String[] blocks = {
+      // index 0 and an index past both tables
+      "80", "ff00",
+      // string longer than the block
+      "400a 6e61 6d65",
+      // integer continued past the end
+      "7f",
+      // size update after a field, and above the limit
+      "82 3f e1 1f", "3f e1 ff 03",
+      // Huffman string of EOS, and padding that is not all ones
+      "0003 6162 63 84 ffff ffff", "0003 6162 63 81 00",
+    };
+    for (String block : blocks) {
+      assertThrows(Hpack.CompressionError.class, () -> decode(hex(block)), block);
+    }
+  }
+}
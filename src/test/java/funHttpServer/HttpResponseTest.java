@@ -0,0 +1,239 @@
+package funHttpServer;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class HttpResponseTest {
+
+  /**
+   * A non-blocking socket with a small send buffer: every write takes at
+   * most a few bytes, and every other write of something takes none at all
+   */
+  private static class SlowChannel implements GatheringByteChannel {
+    final ByteArrayOutputStream data = new ByteArrayOutputStream();
+    private final int perWrite;
+    private boolean full;
+
+    SlowChannel(int perWrite) {
+      this.perWrite = perWrite;
+    }
+
+    @Override
+    public int write(ByteBuffer src) {
+      if (!src.hasRemaining()) {
+        return 0;
+      }
+      full = !full;
+      if (full) {
+        return 0;
+      }
+      int n = Math.min(perWrite, src.remaining());
+      for (int i = 0; i < n; i++) {
+        data.write(src.get());
+      }
+      return n;
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs, int offset, int length) {
+      if (HttpResponse.drained(Arrays.copyOfRange(srcs, offset, offset + length))) {
+        return 0;
+      }
+      full = !full;
+      if (full) {
+        return 0;
+      }
+      int left = perWrite;
+      for (int i = offset; i < offset + length && left > 0; i++) {
+        int n = Math.min(left, srcs[i].remaining());
+        for (int j = 0; j < n; j++) {
+          data.write(srcs[i].get());
+        }
+        left -= n;
+      }
+      return perWrite - left;
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs) {
+      return write(srcs, 0, srcs.length);
+    }
+
+    @Override
+    public boolean isOpen() {
+      return true;
+    }
+
+    @Override
+    public void close() {
+      // nothing to close
+    }
+  }
+
+  /** the same channel seen only as a WritableByteChannel, without gathering writes */
+  private static class PlainChannel implements WritableByteChannel {
+    final SlowChannel out;
+
+    PlainChannel(int perWrite) {
+      out = new SlowChannel(perWrite);
+    }
+
+    @Override
+    public int write(ByteBuffer src) {
+      return out.write(src);
+    }
+
+    @Override
+    public boolean isOpen() {
+      return true;
+    }
+
+    @Override
+    public void close() {
+      // nothing to close
+    }
+  }
+
+  @TempDir
+  Path dir;
+
+  private static byte[] bytes(int length, int seed) {
+    byte[] data = new byte[length];
+    for (int i = 0; i < length; i++) {
+      data[i] = (byte) (i * 31 + seed);
+    }
+    return data;
+  }
+
+  private static byte[] concat(byte[]... parts) {
+    ByteArrayOutputStream all = new ByteArrayOutputStream();
+    for (byte[] part : parts) {
+      all.write(part, 0, part.length);
+    }
+    return all.toByteArray();
+  }
+
+  /** calls writeTo until it reports the response complete, counting the calls */
+  private static int writeAll(HttpResponse response, WritableByteChannel out)
+      throws IOException {
+    int calls = 1;
+    while (!response.writeTo(out)) {
+      calls++;
+      assertTrue(calls < 1_000_000, "writeTo makes no progress");
+    }
+    return calls;
+  }
+
+  /** the head and body as a blocking channel would get them */
+  private static byte[] expected(HttpResponse response) throws IOException {
+    return response.toBytes(true);
+  }
+
+  private static byte[] body(byte[] response) {
+    String text = new String(response, StandardCharsets.ISO_8859_1);
+    int start = text.indexOf("\r\n\r\n") + 4;
+    return Arrays.copyOfRange(response, start, response.length);
+  }
+
+  private static HttpResponse parts(byte[]... parts) {
+    ByteBuffer[] buffers = new ByteBuffer[parts.length];
+    for (int i = 0; i < parts.length; i++) {
+      buffers[i] = ByteBuffer.wrap(parts[i]);
+    }
+    return HttpResponse.of("200 OK", "application/octet-stream", buffers);
+  }
+
+  @Test
+  void writesEveryPartThroughGatheringWrites() throws IOException {
+    byte[][] body = {bytes(1000, 1), bytes(10, 2), new byte[0], bytes(300, 3)};
+    byte[] expected = expected(parts(body));
+
+    HttpResponse response = parts(body);
+    response.prepare(true);
+    SlowChannel out = new SlowChannel(7);
+    assertTrue(writeAll(response, out) > 1);
+
+    assertArrayEquals(expected, out.data.toByteArray());
+    assertArrayEquals(concat(body), body(out.data.toByteArray()));
+  }
+
+  @Test
+  void writesEveryPartThroughPlainWrites() throws IOException {
+    byte[][] body = {bytes(1000, 1), bytes(10, 2), new byte[0], bytes(300, 3)};
+    byte[] expected = expected(parts(body));
+
+    HttpResponse response = parts(body);
+    response.prepare(true);
+    PlainChannel out = new PlainChannel(7);
+    writeAll(response, out);
+
+    assertArrayEquals(expected, out.out.data.toByteArray());
+  }
+
+  @Test
+  void emptyLastPartDoesNotEndTheResponse() throws IOException {
+    byte[] large = bytes(64 * 1024, 4);
+    HttpResponse response = parts(large, new byte[0]);
+    response.prepare(true);
+    SlowChannel out = new SlowChannel(1000);
+
+    assertFalse(response.writeTo(out));
+    writeAll(response, out);
+
+    assertArrayEquals(large, body(out.data.toByteArray()));
+  }
+
+  @Test
+  void completeResponseStaysComplete() throws IOException {
+    HttpResponse response = parts(bytes(10, 5));
+    response.prepare(false);
+    SlowChannel out = new SlowChannel(1000);
+    writeAll(response, out);
+    int written = out.data.size();
+
+    assertTrue(response.writeTo(out));
+    assertEquals(written, out.data.size());
+  }
+
+  @Test
+  void headRequestSendsNoBody() throws IOException {
+    HttpResponse response = parts(bytes(500, 6));
+    response.omitBody();
+    response.prepare(true);
+    SlowChannel out = new SlowChannel(5);
+    writeAll(response, out);
+
+    String text = new String(out.data.toByteArray(), StandardCharsets.ISO_8859_1);
+    assertTrue(text.contains("Content-Length: 500\r\n"), text);
+    assertTrue(text.endsWith("\r\n\r\n"), text);
+  }
+
+  @Test
+  void fileBodyIsSentToTheEnd() throws IOException {
+    byte[] contents = bytes(100_000, 7);
+    Path file = dir.resolve("data.bin");
+    Files.write(file, contents);
+
+    HttpResponse response = HttpResponse.file("200 OK", "application/octet-stream", file,
+        contents.length);
+    response.prepare(true);
+    SlowChannel out = new SlowChannel(4096);
+    writeAll(response, out);
+
+    assertArrayEquals(contents, body(out.data.toByteArray()));
+  }
+}
@@ -0,0 +1,295 @@
+package funHttpServer;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import org.junit.jupiter.api.Test;
+
+class RequestParserTest {
+
+  private static InputStream stream(String data) {
+    return new ByteArrayInputStream(data.getBytes(StandardCharsets.ISO_8859_1));
+  }
+
+  /** a stream that hands out one byte per read, like a very slow client */
+  private static InputStream trickle(String data) {
+    return new ByteArrayInputStream(data.getBytes(StandardCharsets.ISO_8859_1)) {
+      @Override
+      public synchronized int read(byte[] b, int off, int len) {
+        return super.read(b, off, Math.min(len, 1));
+      }
+    };
+  }
+
+  private static RequestParser parser() {
+    return new RequestParser(RequestParser.DEFAULT_MAX_HEAD_BYTES,
+        RequestParser.DEFAULT_MAX_BODY_BYTES);
+  }
+
+  private static String body(HttpRequest request) {
+    return new String(request.body, StandardCharsets.ISO_8859_1);
+  }
+
+  @Test
+  void parsesRequestLineAndHeaders() throws IOException {
+    HttpRequest request = parser().read(stream(
+        "GET /multiply?num1=3&num2=4 HTTP/1.1\r\nHost: localhost\r\nX-Test:  a b \r\n\r\n"));
+
+    assertEquals("GET", request.method);
+    assertEquals("multiply?num1=3&num2=4", request.target);
+    assertEquals("HTTP/1.1", request.version);
+    assertEquals("localhost", request.header("host"));
+    assertEquals("a b", request.header("X-TEST"));
+    assertNull(request.header("Accept"));
+    assertEquals(0, request.body.length);
+    assertTrue(request.keepAlive());
+  }
+
+  @Test
+  void keepAliveFollowsVersionAndConnection() throws IOException {
+    assertFalse(parser().read(stream("GET / HTTP/1.1\r\nConnection: close\r\n\r\n")).keepAlive());
+    assertFalse(parser().read(stream("GET / HTTP/1.0\r\n\r\n")).keepAlive());
+    assertTrue(parser().read(stream("GET / HTTP/1.0\r\nConnection: keep-alive\r\n\r\n"))
+        .keepAlive());
+  }
+
+  @Test
+  void readsContentLengthBody() throws IOException {
+    HttpRequest request = parser().read(stream(
+        "POST /multiply HTTP/1.1\r\nContent-Length: 11\r\n\r\nhello world"));
+
+    assertEquals("POST", request.method);
+    assertEquals("hello world", body(request));
+  }
+
+  @Test
+  void requestSplitOverManyReads() throws IOException {
+    HttpRequest request = parser().read(trickle(
+        "POST /multiply HTTP/1.1\r\nHost: localhost\r\nContent-Length: 5\r\n\r\n12345"));
+
+    assertEquals("multiply", request.target);
+    assertEquals("localhost", request.header("Host"));
+    assertEquals("12345", body(request));
+  }
+
+  @Test
+  void pipelinedRequestsAreReadInOrder() throws IOException {
+    RequestParser parser = parser();
+    InputStream in = stream("GET /first HTTP/1.1\r\n\r\n"
+        + "POST /second HTTP/1.1\r\nContent-Length: 3\r\n\r\nabc"
+        + "GET /third HTTP/1.1\r\nConnection: close\r\n\r\n");
+
+    HttpRequest first = parser.read(in);
+    assertEquals("first", first.target);
+    parser.next();
+
+    HttpRequest second = parser.read(in);
+    assertEquals("second", second.target);
+    assertEquals("abc", body(second));
+    parser.next();
+
+    HttpRequest third = parser.read(in);
+    assertEquals("third", third.target);
+    assertFalse(third.keepAlive());
+    parser.next();
+
+    assertNull(parser.read(in));
+  }
+
+  @Test
+  void remainingHoldsBytesPastTheRequest() throws IOException {
+    RequestParser parser = parser();
+    parser.read(stream("GET / HTTP/1.1\r\n\r\nextra"));
+
+    assertArrayEquals("extra".getBytes(StandardCharsets.ISO_8859_1), parser.remaining());
+  }
+
+  @Test
+  void emptyStreamIsNoRequest() throws IOException {
+    assertNull(parser().read(stream("")));
+  }
+
+  @Test
+  void headLargerThanTheBufferIs431() {
+    RequestParser parser = new RequestParser(64, 1024);
+    RequestParser.BadRequest e = assertThrows(RequestParser.BadRequest.class,
+        () -> parser.read(stream("GET / HTTP/1.1\r\nX-Long: " + "x".repeat(100) + "\r\n\r\n")));
+
+    assertTrue(e.status.startsWith("431"), e.status);
+  }
+
+  @Test
+  void tooManyHeadersIs431() {
+    StringBuilder request = new StringBuilder("GET / HTTP/1.1\r\n");
+    for (int i = 0; i <= RequestParser.MAX_HEADERS; i++) {
+      request.append("X-").append(i).append(": y\r\n");
+    }
+    request.append("\r\n");
+    RequestParser.BadRequest e = assertThrows(RequestParser.BadRequest.class,
+        () -> parser().read(stream(request.toString())));
+
+    assertTrue(e.status.startsWith("431"), e.status);
+  }
+
+  @Test
+  void bodyLargerThanTheLimitIs413() {
+    RequestParser parser = new RequestParser(1024, 10);
+    RequestParser.BadRequest e = assertThrows(RequestParser.BadRequest.class,
+        () -> parser.read(stream("POST / HTTP/1.1\r\nContent-Length: 11\r\n\r\nhello world")));
+
+    assertTrue(e.status.startsWith("413"), e.status);
+  }
+
+  @Test
+  void malformedRequestsAre400() {
+    String[] requests = {
+      "GET\r\n\r\n",
+      "GET index.html HTTP/1.1\r\n\r\n",
+      "get / HTTP/1.1\r\n\r\n",
+      "GET / HTTP/1.1\r\nNo colon\r\n\r\n",
+      "GET / HTTP/1.1\r\nContent-Length: 12a\r\n\r\n",
+      "GET / HTTP/1.1\r\nContent-Length: 1\r\nContent-Length: 2\r\n\r\n",
+    };
+    for (String request : requests) {
+      RequestParser.BadRequest e = assertThrows(RequestParser.BadRequest.class,
+          () -> parser().read(stream(request)), request);
+      assertTrue(e.status.startsWith("400"), request + " -> " + e.status);
+    }
+  }
+
+  @Test
+  void unknownVersionIs505() {
+    RequestParser.BadRequest e = assertThrows(RequestParser.BadRequest.class,
+        () -> parser().read(stream("GET / HTTP/3.0\r\n\r\n")));
+
+    assertTrue(e.status.startsWith("505"), e.status);
+  }
+
+  @Test
+  void streamEndingMidRequestFails() {
+    IOException e = assertThrows(IOException.class,
+        () -> parser().read(stream("POST / HTTP/1.1\r\nContent-Length: 10\r\n\r\nabc")));
+
+    assertFalse(e instanceof RequestParser.BadRequest);
+  }
+
+  @Test
+  void http2PrefaceIsRecognized() throws IOException {
+    HttpRequest request = parser().read(stream("PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n"));
+
+    assertNotNull(request);
+    assertEquals("PRI", request.method);
+    assertEquals("HTTP/2.0", request.version);
+  }
+
+  @Test
+  void decodesChunkedBody() throws IOException {
+    HttpRequest request = parser().read(stream("POST /multiply HTTP/1.1\r\nHost: localhost\r\n"
+        + "Transfer-Encoding: chunked\r\n\r\n"
+        + "5\r\nhello\r\n1;name=value\r\n \r\n5\r\nworld\r\n0\r\nX-Trailer: t\r\n\r\n"));
+
+    assertEquals("hello world", body(request));
+    assertEquals("localhost", request.header("Host"));
+    assertTrue(request.keepAlive());
+  }
+
+  @Test
+  void chunkedBodySplitOverManyReads() throws IOException {
+    HttpRequest request = parser().read(trickle("POST / HTTP/1.1\r\n"
+        + "Transfer-Encoding: chunked\r\n\r\na\r\n0123456789\r\n0\r\n\r\n"));
+
+    assertEquals("0123456789", body(request));
+  }
+
+  @Test
+  void chunkedBodyLargerThanTheHeadBuffer() throws IOException {
+    StringBuilder chunks = new StringBuilder();
+    StringBuilder expected = new StringBuilder();
+    for (int i = 0; i < 50; i++) {
+      String data = String.valueOf((char) ('a' + i % 26)).repeat(1000);
+      chunks.append(Integer.toHexString(data.length())).append("\r\n").append(data).append("\r\n");
+      expected.append(data);
+    }
+    RequestParser parser = new RequestParser(256, 100_000);
+    HttpRequest request = parser.read(stream("POST / HTTP/1.1\r\nX-Name: value\r\n"
+        + "Transfer-Encoding: chunked\r\n\r\n" + chunks + "0\r\n\r\n"));
+
+    assertEquals(expected.toString(), body(request));
+    assertEquals("value", request.header("X-Name"));
+  }
+
+  @Test
+  void requestAfterChunkedBodyIsRead() throws IOException {
+    RequestParser parser = parser();
+    InputStream in = stream("POST /first HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n"
+        + "3\r\nabc\r\n0\r\n\r\n"
+        + "GET /second HTTP/1.1\r\n\r\n");
+
+    assertEquals("abc", body(parser.read(in)));
+    parser.next();
+    HttpRequest second = parser.read(in);
+
+    assertEquals("second", second.target);
+    assertEquals(0, second.body.length);
+  }
+
+  @Test
+  void chunkedFromHttp10ClosesTheConnection() throws IOException {
+    HttpRequest request = parser().read(stream("POST / HTTP/1.0\r\nConnection: keep-alive\r\n"
+        + "Transfer-Encoding: chunked\r\n\r\n1\r\nx\r\n0\r\n\r\n"));
+
+    assertEquals("x", body(request));
+    assertFalse(request.keepAlive());
+  }
+
+  @Test
+  void chunkedBodyLargerThanTheLimitIs413() {
+    RequestParser parser = new RequestParser(1024, 10);
+    RequestParser.BadRequest e = assertThrows(RequestParser.BadRequest.class,
+        () -> parser.read(stream("POST / HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n"
+            + "6\r\nhello \r\n5\r\nworld\r\n0\r\n\r\n")));
+
+    assertTrue(e.status.startsWith("413"), e.status);
+  }
+
+  @Test
+  void malformedChunkedBodiesAre400() {
+    String head = "POST / HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n";
+    String[] bodies = {
+      "x\r\nhello\r\n0\r\n\r\n",
+      "5x\r\nhello\r\n0\r\n\r\n",
+      "5\r\nhelloX\r\n0\r\n\r\n",
+    };
+    for (String body : bodies) {
+      RequestParser.BadRequest e = assertThrows(RequestParser.BadRequest.class,
+          () -> parser().read(stream(head + body)), body);
+      assertTrue(e.status.startsWith("400"), body + " -> " + e.status);
+    }
+  }
+
+  @Test
+  void chunkedWithContentLengthIs400() {
+    RequestParser.BadRequest e = assertThrows(RequestParser.BadRequest.class,
+        () -> parser().read(stream("POST / HTTP/1.1\r\nContent-Length: 5\r\n"
+            + "Transfer-Encoding: chunked\r\n\r\n5\r\nhello\r\n0\r\n\r\n")));
+
+    assertTrue(e.status.startsWith("400"), e.status);
+  }
+
+  @Test
+  void otherTransferCodingsAre501() {
+    RequestParser.BadRequest e = assertThrows(RequestParser.BadRequest.class,
+        () -> parser().read(stream("POST / HTTP/1.1\r\nTransfer-Encoding: gzip, chunked\r\n\r\n")));
+
+    assertTrue(e.status.startsWith("501"), e.status);
+  }
+}
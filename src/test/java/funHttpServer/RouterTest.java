@@ -0,0 +1,140 @@
+package funHttpServer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import org.junit.jupiter.api.Test;
+
+class RouterTest {
+
+  /** a handler answering with its own name, so tests can see which one ran */
+  private static Router.Handler named(String name) {
+    byte[] body = name.getBytes(StandardCharsets.UTF_8);
+    return request -> HttpResponse.of("200 OK", "text/plain", body);
+  }
+
+  private final Router router = new Router(
+      request -> HttpResponse.of("404 Not Found", "text/plain", new byte[0]),
+      request -> HttpResponse.of("405 Method Not Allowed", "text/plain", new byte[0]))
+      .exact("", named("root"))
+      .exact("multiply", named("multiply"))
+      .exactIgnoreCase("json", named("json"))
+      .exactIgnoreCase("random", named("random"))
+      .exactAsync("github", request -> CompletableFuture.completedFuture(
+          HttpResponse.of("200 OK", "text/plain", "github".getBytes(StandardCharsets.UTF_8))))
+      .post("multiply", named("post multiply"))
+      .prefix("file", named("file"))
+      .prefix("file/www", named("www"));
+
+  private static HttpRequest request(String method, String target) {
+    HttpRequest request = new HttpRequest();
+    request.method = method;
+    request.target = target;
+    return request;
+  }
+
+  /** routes a request: the body of a 200, the handler's name, otherwise the status code */
+  private String route(HttpRequest request) throws IOException {
+    byte[] response = router.route(request).join().toBytes(false);
+    String text = new String(response, StandardCharsets.UTF_8);
+    String status = text.substring(9, 12);
+    return status.equals("200") ? text.substring(text.indexOf("\r\n\r\n") + 4) : status;
+  }
+
+  private String get(String target) throws IOException {
+    return route(request("GET", target));
+  }
+
+  @Test
+  void exactRoutes() throws IOException {
+    assertEquals("root", get(""));
+    assertEquals("multiply", get("multiply"));
+    assertEquals("404", get("multiply/more"));
+    assertEquals("404", get("Multiply"));
+  }
+
+  @Test
+  void queryIsSplitOff() throws IOException {
+    HttpRequest request = request("GET", "multiply?num1=3&num2=4");
+
+    assertEquals("multiply", route(request));
+    assertEquals("multiply", request.path);
+    assertEquals("num1=3&num2=4", request.query);
+    assertEquals("/multiply", request.route);
+  }
+
+  @Test
+  void ignoreCaseRoutesMatchAnyCase() throws IOException {
+    assertEquals("json", get("json"));
+    assertEquals("json", get("JSON"));
+    assertEquals("json", get("Json?x=1"));
+    assertEquals("random", get("random"));
+    assertEquals("random", get("Random"));
+    assertEquals("random", get("RANDOM"));
+  }
+
+  @Test
+  void ignoreCaseRouteIsCountedUnderItsRegisteredName() throws IOException {
+    HttpRequest request = request("GET", "JSON");
+    route(request);
+
+    assertEquals("/json", request.route);
+  }
+
+  @Test
+  void asyncRoute() throws IOException {
+    assertEquals("github", get("github?query=users"));
+  }
+
+  @Test
+  void longestPrefixWins() throws IOException {
+    HttpRequest file = request("GET", "file/README.md");
+    assertEquals("file", route(file));
+    assertEquals("README.md", file.subPath);
+    assertEquals("/file/", file.route);
+
+    HttpRequest www = request("GET", "file/www/index.html?v=2");
+    assertEquals("www", route(www));
+    assertEquals("index.html", www.subPath);
+
+    HttpRequest dir = request("GET", "file");
+    assertEquals("file", route(dir));
+    assertEquals("", dir.subPath);
+  }
+
+  @Test
+  void prefixMatchesWholeSegmentsOnly() throws IOException {
+    assertEquals("404", get("files/README.md"));
+  }
+
+  @Test
+  void unmatchedPathIsNotFound() throws IOException {
+    HttpRequest request = request("GET", "nothing/here");
+
+    assertEquals("404", route(request));
+    assertEquals(Router.UNMATCHED, request.route);
+    assertNull(request.subPath);
+  }
+
+  @Test
+  void postGoesToPostRoutesOnly() throws IOException {
+    HttpRequest post = request("POST", "multiply");
+    assertEquals("post multiply", route(post));
+    assertEquals("POST /multiply", post.route);
+
+    assertEquals("405", route(request("POST", "json")));
+  }
+
+  @Test
+  void duplicateRoutesAreRejected() {
+    assertThrows(IllegalArgumentException.class, () -> router.exact("multiply", named("again")));
+    assertThrows(IllegalArgumentException.class, () -> router.exactIgnoreCase("JSON",
+        named("again")));
+    assertThrows(IllegalArgumentException.class, () -> router.post("multiply", named("again")));
+    assertThrows(IllegalArgumentException.class, () -> router.prefix("file", named("again")));
+  }
+}
@@ -0,0 +1,101 @@
+package funHttpServer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import org.junit.jupiter.api.Test;
+
+class ValidatorsTest {
+
+  /** Sun, 13 Sep 2020 12:26:40.123 GMT */
+  private static final long MODIFIED = 1_600_000_000_123L;
+
+  private final Validators validators = new Validators("5f3a-1c2", MODIFIED);
+
+  private static HttpRequest request(String... headers) throws IOException {
+    StringBuilder head = new StringBuilder("GET /file/README.md HTTP/1.1\r\n");
+    for (String header : headers) {
+      head.append(header).append("\r\n");
+    }
+    head.append("\r\n");
+    return new RequestParser(RequestParser.DEFAULT_MAX_HEAD_BYTES, 0).read(
+        new ByteArrayInputStream(head.toString().getBytes(StandardCharsets.ISO_8859_1)));
+  }
+
+  private static String head(byte[] response) {
+    String text = new String(response, StandardCharsets.ISO_8859_1);
+    return text.substring(0, text.indexOf("\r\n\r\n") + 2);
+  }
+
+  @Test
+  void tagsAndDate() {
+    assertEquals("\"5f3a-1c2\"", validators.etag);
+    assertEquals("\"5f3a-1c2-gz\"", validators.gzipEtag);
+    assertEquals("Sun, 13 Sep 2020 12:26:40 GMT", validators.lastModifiedText);
+    assertEquals(MODIFIED / 1000 * 1000, Validators.parseHttpDate(validators.lastModifiedText));
+    assertEquals(-1, Validators.parseHttpDate("yesterday"));
+  }
+
+  @Test
+  void ifNoneMatch() throws IOException {
+    assertTrue(validators.notModified(request("If-None-Match: \"5f3a-1c2\"")));
+    assertTrue(validators.notModified(request("If-None-Match: \"5f3a-1c2-gz\"")));
+    assertTrue(validators.notModified(request("If-None-Match: W/\"5f3a-1c2\"")));
+    assertTrue(validators.notModified(request("If-None-Match: \"old\", \"5f3a-1c2\"")));
+    assertTrue(validators.notModified(request("If-None-Match: *")));
+    assertFalse(validators.notModified(request("If-None-Match: \"old\"")));
+    assertFalse(validators.notModified(request("If-None-Match: 5f3a-1c2")));
+    assertFalse(validators.notModified(request()));
+  }
+
+  @Test
+  void ifModifiedSince() throws IOException {
+    assertTrue(validators.notModified(request("If-Modified-Since: Sun, 13 Sep 2020 12:26:40 GMT")));
+    assertTrue(validators.notModified(request("If-Modified-Since: Mon, 14 Sep 2020 00:00:00 GMT")));
+    assertFalse(validators.notModified(
+        request("If-Modified-Since: Sun, 13 Sep 2020 12:26:39 GMT")));
+    assertFalse(validators.notModified(request("If-Modified-Since: not a date")));
+    assertFalse(new Validators("tag", -1).notModified(
+        request("If-Modified-Since: Sun, 13 Sep 2020 12:26:40 GMT")));
+  }
+
+  @Test
+  void ifNoneMatchWinsOverIfModifiedSince() throws IOException {
+    assertFalse(validators.notModified(request("If-None-Match: \"old\"",
+        "If-Modified-Since: Mon, 14 Sep 2020 00:00:00 GMT")));
+  }
+
+  @Test
+  void ifRange() throws IOException {
+    assertTrue(validators.rangeAllowed(request()));
+    assertTrue(validators.rangeAllowed(request("If-Range: \"5f3a-1c2\"")));
+    assertTrue(validators.rangeAllowed(request("If-Range: Sun, 13 Sep 2020 12:26:40 GMT")));
+    // only the strong tag of the plain body, and only the exact date
+    assertFalse(validators.rangeAllowed(request("If-Range: \"5f3a-1c2-gz\"")));
+    assertFalse(validators.rangeAllowed(request("If-Range: W/\"5f3a-1c2\"")));
+    assertFalse(validators.rangeAllowed(request("If-Range: Mon, 14 Sep 2020 00:00:00 GMT")));
+  }
+
+  @Test
+  void notModifiedKeepsTheValidatorsOfTheEncodedBody() throws IOException {
+    byte[] body = "hello, hello, hello, hello ".repeat(100).getBytes(StandardCharsets.US_ASCII);
+    HttpResponse gzipped = HttpResponse.of("200 OK", "text/plain", body).validators(validators);
+    gzipped.compress(10);
+    byte[] response = gzipped.notModified().toBytes(true);
+    String head = head(response);
+
+    assertTrue(head.startsWith("HTTP/1.1 304 Not Modified\r\n"), head);
+    assertTrue(head.contains("ETag: \"5f3a-1c2-gz\"\r\n"), head);
+    assertTrue(head.contains("Vary: Accept-Encoding\r\n"), head);
+    assertTrue(head.contains("Last-Modified: Sun, 13 Sep 2020 12:26:40 GMT\r\n"), head);
+    assertEquals(head.length() + 2, response.length, "a 304 has no body");
+
+    String plain = head(HttpResponse.of("200 OK", "text/plain", body).validators(validators)
+        .notModified().toBytes(true));
+    assertTrue(plain.contains("ETag: \"5f3a-1c2\"\r\n"), plain);
+  }
+}